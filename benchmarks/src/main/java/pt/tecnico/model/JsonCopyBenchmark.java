@@ -0,0 +1,63 @@
+package pt.tecnico.model;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the JSON handling around every message: the copies made by rendering and parsing again
+ * (new JSONObject(jo.toString())), the rendering sent on the wire and the indented rendering of the logs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonCopyBenchmark {
+    // announcements in the READ response
+    @Param({"1", "10", "100"})
+    public int announcements;
+
+    private JSONObject response;
+    private String rendered;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPair keyPair = MyCrypto.generateKeyPair();
+        response = Payloads.readResponse(keyPair, announcements);
+        rendered = response.toString();
+    }
+
+    @Benchmark
+    public JSONObject copyThroughString() {
+        return new JSONObject(response.toString());
+    }
+
+    @Benchmark
+    public String render() {
+        return response.toString();
+    }
+
+    @Benchmark
+    public String renderIndented() {
+        return response.toString(2);
+    }
+
+    @Benchmark
+    public JSONObject parse() {
+        return new JSONObject(rendered);
+    }
+}
@@ -0,0 +1,59 @@
+package pt.tecnico.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning the Base64 public keys and signatures carried by every message back into usable values
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyCodingBenchmark {
+    private PublicKey publicKey;
+    private String encodedKey;
+    private String encodedSignature;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPair keyPair = MyCrypto.generateKeyPair();
+        publicKey = keyPair.getPublic();
+        encodedKey = MyCrypto.publicKeyToB64String(publicKey);
+        encodedSignature = MyCrypto.digestAndSignToB64(Payloads.bytes(256), keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public PublicKey publicKeyFromB64String() throws Exception {
+        return MyCrypto.publicKeyFromB64String(encodedKey);
+    }
+
+    @Benchmark
+    public String publicKeyToB64String() {
+        return MyCrypto.publicKeyToB64String(publicKey);
+    }
+
+    @Benchmark
+    public byte[] decodeSignature() {
+        return MyCrypto.decodeB64(encodedSignature);
+    }
+
+    @Benchmark
+    public String randomNonce() {
+        return MyCrypto.getRandomNonce();
+    }
+}
@@ -0,0 +1,57 @@
+package pt.tecnico.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the MyCrypto operations every message goes through, by message size
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MyCryptoBenchmark {
+    // a client request, a batch of requests broadcast between servers, a large read response
+    @Param({"256", "4096", "65536"})
+    public int size;
+
+    private KeyPair keyPair;
+    private byte[] message;
+    private byte[] signature;                   // Signature of the message digest
+
+    @Setup
+    public void setUp() throws Exception {
+        keyPair = MyCrypto.generateKeyPair();
+        message = Payloads.bytes(size);
+        signature = MyCrypto.digestAndSign(message, keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public byte[] digest() throws Exception {
+        return MyCrypto.digest(message);
+    }
+
+    @Benchmark
+    public String digestAndSignToB64() throws Exception {
+        return MyCrypto.digestAndSignToB64(message, keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public boolean verifySignature() throws Exception {
+        return MyCrypto.verifySignature(signature, message, keyPair.getPublic());
+    }
+}
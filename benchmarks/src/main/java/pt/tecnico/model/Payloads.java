@@ -0,0 +1,79 @@
+package pt.tecnico.model;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Messages shaped like the ones the servers and clients exchange, for the benchmarks
+ */
+class Payloads {
+    private static final Random RANDOM = new Random(42);        // Fixed seed, so every run measures the same data
+
+    private Payloads() {
+    }
+
+    /**
+     * @param size int corresponding to the number of bytes
+     * @return random bytes, the same on every run
+     */
+    static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param kp         KeyPair of the client posting
+     * @param references int corresponding to the number of announcements the post refers to
+     * @return a POST request as the client sends it, before the nonce and request signature are added
+     */
+    static JSONObject postRequest(KeyPair kp, int references) throws Exception {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 1; i <= references; i++)
+            ids.add(i);
+        JSONObject postData = new JSONObject();
+        postData.put(Parameters.message.name(), message());
+        postData.put(Parameters.announcements.name(), new JSONArray(ids));
+        postData.put(Parameters.action.name(), Action.POST.name());
+        JSONObject req = new JSONObject(postData.toString());
+        req.put(Parameters.post_signature.name(), MyCrypto.digestAndSignToB64(postData.toString().getBytes(), kp.getPrivate()));
+        return req;
+    }
+
+    /**
+     * @param kp            KeyPair of the client owning the board
+     * @param announcements int corresponding to the number of announcements read
+     * @return the response of a READ, before the server signature is added
+     */
+    static JSONObject readResponse(KeyPair kp, int announcements) throws Exception {
+        String owner = MyCrypto.publicKeyToB64String(kp.getPublic());
+        List<Announcement> list = new ArrayList<>();
+        for (int i = 1; i <= announcements; i++) {
+            String signature = MyCrypto.digestAndSignToB64(bytes(64), kp.getPrivate());
+            list.add(new Announcement(owner, signature, message(), List.of(), i));
+        }
+        BoardRange range = new BoardRange(list, BoardRange.EMPTY_DIGEST, bytes(64));
+        JSONObject resp = new JSONObject();
+        resp.put(Parameters.board_digest.name(), range.getBoardDigest());
+        resp.put(Parameters.prefix_digest.name(), range.getPrefixDigest());
+        resp.put(Parameters.data.name(), new JSONArray(range.getAnnouncements()));
+        resp.put(Parameters.client_nonce.name(), MyCrypto.getRandomNonce());
+        resp.put(Parameters.status.name(), Status.OK.name());
+        return resp;
+    }
+
+    /**
+     * @return a message of the maximum length a post accepts
+     */
+    private static String message() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 254)
+            sb.append("announcement ").append(RANDOM.nextInt(1000)).append(' ');
+        return sb.substring(0, 254);
+    }
+}
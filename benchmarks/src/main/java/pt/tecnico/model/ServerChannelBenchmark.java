@@ -0,0 +1,70 @@
+package pt.tecnico.model;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of signing a request and checking a response on the client side, JSON rendering included
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerChannelBenchmark {
+    // announcements referred to by the post, and returned by the read
+    @Param({"0", "10", "100"})
+    public int announcements;
+
+    private ServerChannel channel;
+    private KeyPair serverKeyPair;
+    private JSONObject request;
+    private JSONObject response;                // READ response as the server signs it
+    private JSONObject signedResponse;
+    private String nonce;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPair clientKeyPair = MyCrypto.generateKeyPair();
+        serverKeyPair = MyCrypto.generateKeyPair();
+        channel = new ServerChannel(0, serverKeyPair.getPublic(), clientKeyPair.getPublic(), clientKeyPair.getPrivate());
+        request = Payloads.postRequest(clientKeyPair, announcements);
+        nonce = MyCrypto.getRandomNonce();
+        request.put(Parameters.client_nonce.name(), nonce);
+        response = Payloads.readResponse(clientKeyPair, announcements);
+        response.put(Parameters.client_nonce.name(), nonce);
+        signedResponse = new JSONObject(response.toString());
+        ServerChannel.sign(signedResponse, serverKeyPair.getPrivate());
+    }
+
+    @Benchmark
+    public JSONObject signRequest() {
+        return channel.signed(request);
+    }
+
+    @Benchmark
+    public JSONObject signResponse() {
+        JSONObject resp = new JSONObject(response.toString());
+        ServerChannel.sign(resp, serverKeyPair.getPrivate());
+        return resp;
+    }
+
+    @Benchmark
+    public boolean verifyResponse() {
+        return ServerChannel.verifySignature(signedResponse, nonce, serverKeyPair.getPublic());
+    }
+}
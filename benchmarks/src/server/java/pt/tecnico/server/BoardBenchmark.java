@@ -0,0 +1,73 @@
+package pt.tecnico.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pt.tecnico.model.Announcement;
+import pt.tecnico.model.BoardRange;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the in-memory Board by number of announcements it holds, reads of the most recent ones and appends
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")     // the largest board takes about 2 GB
+public class BoardBenchmark {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private Board board;
+    private int nextId;
+    private String owner;
+    private String signature;
+    private String message;
+
+    @Setup
+    public void setUp() {
+        // the announcements share their strings, so the memory measured is the one of the Board itself
+        owner = "o".repeat(392);
+        signature = "s".repeat(344);
+        message = "m".repeat(254);
+        List<Announcement> announcements = new ArrayList<>(size);
+        for (nextId = 1; nextId <= size; nextId++)
+            announcements.add(new Announcement(owner, signature, message, List.of(), nextId));
+        board = new Board(owner, 1, announcements);
+    }
+
+    @Benchmark
+    public List<Announcement> getAnnouncementsRecent() {
+        return board.getAnnouncements(10);
+    }
+
+    @Benchmark
+    public List<Announcement> getAnnouncementsAll() {
+        return board.getAnnouncements(0);
+    }
+
+    @Benchmark
+    public BoardRange getRangeAfter() {
+        return board.getRangeAfter(size - 10);
+    }
+
+    @Benchmark
+    public Board addAnnouncement() {
+        // the board keeps growing during the run, by far less than its size for the larger ones
+        board.addAnnouncement(new Announcement(owner, signature, message, List.of(), nextId++));
+        return board;
+    }
+}
@@ -0,0 +1,90 @@
+package pt.tecnico.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pt.tecnico.model.Announcement;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the SQLite persistence: inserting an announcement, and loading every board at startup
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ConnectBenchmark {
+    // announcements already stored in the database
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    private Path dir;
+    private String alias;
+    private Connect conn;
+    private Board board;
+    private String signature;
+    private String message;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        dir = TempDatabase.create();
+        alias = dir.resolve("bench").toString();
+        conn = new Connect(alias, new ArrayList<>(), new ArrayList<>());
+        board = new Board("o".repeat(392));
+        conn.insertBoard(board);
+        signature = "s".repeat(344);
+        message = "m".repeat(254);
+        // a single transaction, inserting them one by one through Connect would take most of the run
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + alias + ".db");
+             PreparedStatement insert = c.prepareStatement("INSERT INTO announcements(board_id, public_key, signature, message) VALUES(?,?,?,?)")) {
+            c.setAutoCommit(false);
+            for (int i = 0; i < rows; i++) {
+                insert.setInt(1, board.getId());
+                insert.setString(2, board.getPublicKey());
+                insert.setString(3, signature);
+                insert.setString(4, message);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            c.commit();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        TempDatabase.delete(dir);
+    }
+
+    @Benchmark
+    public boolean insertAnnouncement() {
+        return conn.insertAnnouncement(board, new Announcement(board.getPublicKey(), signature, message, List.of()));
+    }
+
+    @Benchmark
+    public List<Board> populateBoards() {
+        // the tables exist, so Connect loads every board and announcement from them
+        List<Board> boards = new ArrayList<>();
+        new Connect(alias, boards, new ArrayList<>());
+        return boards;
+    }
+}
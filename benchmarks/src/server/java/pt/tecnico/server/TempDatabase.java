@@ -0,0 +1,26 @@
+package pt.tecnico.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Temporary directory holding the SQLite files of a benchmark
+ */
+class TempDatabase {
+    private TempDatabase() {
+    }
+
+    static Path create() throws IOException {
+        return Files.createTempDirectory("dpas-bench");
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+}
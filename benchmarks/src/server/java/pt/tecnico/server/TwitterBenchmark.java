@@ -0,0 +1,83 @@
+package pt.tecnico.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pt.tecnico.model.Announcement;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the Twitter operations the servers execute, persistence in a temporary SQLite file included
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TwitterBenchmark {
+    private static final int PRELOADED = 1000;      // Announcements posted in the board before the run
+
+    private Path dir;
+    private Twitter twitter;
+    private String owner;
+    private String signature;
+    private String message;
+    private long registered = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = TempDatabase.create();
+        twitter = new Twitter(dir.resolve("bench").toString());
+        owner = "o".repeat(392);
+        signature = "s".repeat(344);
+        message = "m".repeat(254);
+        twitter.register(owner);
+        for (int i = 0; i < PRELOADED; i++)
+            twitter.post(owner, signature, message, List.of());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        TempDatabase.delete(dir);
+    }
+
+    @Benchmark
+    public long register() {
+        // every board needs a key of its own, and the boards accumulate during the run
+        twitter.register("key-" + registered);
+        return registered++;
+    }
+
+    @Benchmark
+    public boolean post() {
+        return twitter.post(owner, signature, message, List.of());
+    }
+
+    @Benchmark
+    public boolean postGeneral() {
+        return twitter.postGeneral(owner, signature, message, List.of());
+    }
+
+    @Benchmark
+    public List<Announcement> read() {
+        return twitter.read(owner, 10);
+    }
+
+    @Benchmark
+    public List<Announcement> readGeneral() {
+        return twitter.readGeneral(10);
+    }
+}
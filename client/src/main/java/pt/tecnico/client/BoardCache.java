@@ -0,0 +1,241 @@
+package pt.tecnico.client;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import pt.tecnico.model.Announcement;
+import pt.tecnico.model.BoardRange;
+import pt.tecnico.model.Log;
+import pt.tecnico.model.MyCrypto;
+import pt.tecnico.model.Parameters;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Client side copy of the most recent announcements of some boards, kept up to date by delta reads.
+ * <p>
+ * For each board the cache remembers the id of the last announcement it verified and the hash chain value after it.
+ * A read only asks the servers for the announcements posted after that id, and the servers prove with the prefix
+ * digest that they continue the chain the cache holds. If they do not (the cache is stale or corrupted), the board is
+ * read again from scratch. Memory is bounded: each board keeps at most capacity announcements, and the least recently
+ * read boards are dropped past maxBoards.
+ */
+public class BoardCache {
+    public static final int DEFAULT_CAPACITY = 1000;    // Announcements kept per board
+    public static final int DEFAULT_BOARDS = 64;        // Boards kept at once
+    private static final String GENERAL_BOARD = "";     // Cache key of the general board, never a valid public key
+
+    private final DpasClient client;
+    private final int capacity;
+    private final Map<String, CachedBoard> boards;            // Cached boards by public key, least recently read first
+
+    /**
+     * @param client DpasClient used to read the boards
+     */
+    public BoardCache(DpasClient client) {
+        this(client, DEFAULT_CAPACITY, DEFAULT_BOARDS);
+    }
+
+    /**
+     * @param client    DpasClient used to read the boards
+     * @param capacity  int corresponding to the maximum number of announcements kept per board
+     * @param maxBoards int corresponding to the maximum number of boards kept
+     */
+    public BoardCache(DpasClient client, int capacity, int maxBoards) {
+        if (capacity < 1 || maxBoards < 1)
+            throw new IllegalArgumentException("The cache must hold at least one announcement of one board");
+        this.client = client;
+        this.capacity = capacity;
+        this.boards = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedBoard> eldest) {
+                return size() > maxBoards;
+            }
+        };
+    }
+
+    /**
+     * Bring the copy of a board up to date and read its most recent announcements
+     *
+     * @param key    Base64 encoded String corresponding to the Board public key
+     * @param number int corresponding to the number of announcements to read (0 for all the cached announcements)
+     * @return a CompletableFuture completed with the announcements, oldest first
+     */
+    public CompletableFuture<List<Announcement>> read(String key, int number) {
+        return sync(key, key).thenApply(entry -> entry.latest(number));
+    }
+
+    /**
+     * Bring the copy of the general board up to date and read its most recent announcements
+     *
+     * @param number int corresponding to the number of announcements to read (0 for all the cached announcements)
+     * @return a CompletableFuture completed with the announcements, oldest first
+     */
+    public CompletableFuture<List<Announcement>> readGeneral(int number) {
+        return sync(GENERAL_BOARD, null).thenApply(entry -> entry.latest(number));
+    }
+
+    /**
+     * Save the cache to a file, replacing its previous content at once, to load it back in a later run
+     *
+     * @param file Path of the file to write
+     * @throws IOException in case the file can not be written
+     */
+    public void save(Path file) throws IOException {
+        JSONArray saved = new JSONArray();
+        synchronized (boards) {
+            boards.forEach((key, entry) -> saved.put(entry.toJSON(key)));
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(tmp, new JSONObject().put(Parameters.data.name(), saved).toString(), StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the number of boards currently cached
+     */
+    public int size() {
+        synchronized (boards) {
+            return boards.size();
+        }
+    }
+
+    /**
+     * Fetch what the cache misses of a board: the announcements after the last one held, or the whole window if the
+     * board is not cached or its copy does not continue into what the servers have
+     */
+    private CompletableFuture<CachedBoard> sync(String cacheKey, String boardKey) {
+        CachedBoard cached;
+        synchronized (boards) {
+            cached = boards.get(cacheKey);
+        }
+        if (cached == null)
+            return reload(cacheKey, boardKey);
+        return client.readRangeAfter(boardKey, cached.getLastId())
+                .thenCompose(resp -> cached.append(resp) ? CompletableFuture.completedFuture(cached) : reload(cacheKey, boardKey));
+    }
+
+    private CompletableFuture<CachedBoard> reload(String cacheKey, String boardKey) {
+        return client.readRange(boardKey, capacity).thenApply(resp -> {
+            CachedBoard entry = new CachedBoard(resp.getString(Parameters.prefix_digest.name()));
+            entry.append(resp);
+            synchronized (boards) {
+                boards.put(cacheKey, entry);
+            }
+            return entry;
+        });
+    }
+
+    /**
+     * Load the boards saved by a previous run, if the file exists. Boards whose copy does not match its own digests
+     * are left out, and every board is brought up to date by the servers on its next read
+     *
+     * @param file Path of the file written by save
+     * @throws IOException in case the file exists but can not be read
+     */
+    public void load(Path file) throws IOException {
+        if (!Files.exists(file))
+            return;
+        JSONArray entries = new JSONObject(Files.readString(file, StandardCharsets.UTF_8)).optJSONArray(Parameters.data.name());
+        if (entries == null)
+            return;
+        for (int i = 0; i < entries.length(); i++) {
+            try {
+                JSONObject jo = entries.getJSONObject(i);
+                String prefixDigest = jo.getString(Parameters.prefix_digest.name());
+                String boardDigest = jo.getString(Parameters.board_digest.name());
+                JSONArray data = jo.getJSONArray(Parameters.data.name());
+                // a copy that does not fold into its own digest is not trusted, the board will simply be read again
+                if (!BoardRange.verify(prefixDigest, data, boardDigest))
+                    continue;
+                CachedBoard entry = new CachedBoard(prefixDigest);
+                entry.append(new JSONObject()
+                        .put(Parameters.prefix_digest.name(), prefixDigest)
+                        .put(Parameters.board_digest.name(), boardDigest)
+                        .put(Parameters.data.name(), data));
+                synchronized (boards) {
+                    boards.put(jo.optString(Parameters.board_public_key.name(), GENERAL_BOARD), entry);
+                }
+            } catch (JSONException e) {
+                Log.warn("Ignoring a malformed board in the cache file %s: %s", file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Verified copy of the most recent announcements of one board
+     */
+    private class CachedBoard {
+        private final Deque<JSONObject> window = new ArrayDeque<>();    // Announcements held, oldest first
+        private String prefixDigest;                                    // Base64 encoded chain value before the window
+        private String boardDigest;                                     // Base64 encoded chain value after the window
+        private int lastId = 0;                                         // Id of the last announcement held
+
+        /**
+         * @param prefixDigest Base64 encoded chain value the first appended range must continue from
+         */
+        private CachedBoard(String prefixDigest) {
+            this.prefixDigest = prefixDigest;
+            this.boardDigest = prefixDigest;
+        }
+
+        private synchronized int getLastId() {
+            return lastId;
+        }
+
+        /**
+         * Append a verified range to the window, dropping the oldest announcements past the capacity
+         *
+         * @param resp JSONObject corresponding to the read response the servers agreed on
+         * @return false if the range does not continue the announcements held
+         */
+        private synchronized boolean append(JSONObject resp) {
+            String rangeDigest = resp.getString(Parameters.board_digest.name());
+            if (!boardDigest.equals(resp.getString(Parameters.prefix_digest.name())))
+                // another read may have brought this copy up to date already
+                return boardDigest.equals(rangeDigest);
+            JSONArray data = resp.getJSONArray(Parameters.data.name());
+            for (int i = 0; i < data.length(); i++) {
+                JSONObject announcement = data.getJSONObject(i);
+                window.addLast(announcement);
+                lastId = announcement.getInt("id");
+            }
+            while (window.size() > capacity) {
+                // the chain value before the new oldest announcement is the old one folded over the dropped one
+                byte[] digest = BoardRange.chain(MyCrypto.decodeB64(prefixDigest), Announcement.fromJSON(window.removeFirst()));
+                prefixDigest = Base64.getEncoder().encodeToString(digest);
+            }
+            boardDigest = rangeDigest;
+            return true;
+        }
+
+        private synchronized List<Announcement> latest(int number) {
+            List<Announcement> announcements = new ArrayList<>(window.size());
+            window.forEach(jo -> announcements.add(Announcement.fromJSON(jo)));
+            int from = number == 0 || number > announcements.size() ? 0 : announcements.size() - number;
+            return announcements.subList(from, announcements.size());
+        }
+
+        private synchronized JSONObject toJSON(String key) {
+            JSONObject jo = new JSONObject();
+            if (!GENERAL_BOARD.equals(key))
+                jo.put(Parameters.board_public_key.name(), key);
+            jo.put(Parameters.prefix_digest.name(), prefixDigest);
+            jo.put(Parameters.board_digest.name(), boardDigest);
+            jo.put(Parameters.data.name(), new JSONArray(window));
+            return jo;
+        }
+    }
+}
@@ -57,8 +57,9 @@ public class Client {
             String clientKeyStore = opts.get("client_keystore_path");
             String clientAlias = opts.get("client_alias");
             String clientPasswd = opts.get("client_store_pass");
-            priv = MyCrypto.getPrivateKey(clientKeyStore, clientAlias, clientPasswd);
-            pub = MyCrypto.getPublicKey(clientKeyStore, clientAlias, clientPasswd);
+            KeyStoreLoader keyStore = new KeyStoreLoader(clientKeyStore, clientPasswd);
+            priv = keyStore.getPrivateKey(clientAlias);
+            pub = keyStore.getPublicKey(clientAlias);
             System.out.println("Reusing public key: " + MyCrypto.publicKeyToB64String(pub).substring(0, 60) + "...");
         } else {
             KeyPair kp = MyCrypto.generateKeyPair();
@@ -68,14 +69,14 @@ public class Client {
         }
         // We get the servers's public keys a
         // nd we parse the ports
-        PublicKey serverPublicKey;
         ports = ports.replace(" ", "");
         ports = ports.substring(1, ports.length() - 1);
         String[] list = ports.split(",");
         int N = list.length;
+        // the keystore is only opened when the optional cache is missing or was made from another keystore
+        List<PublicKey> serverKeys = KeyStoreLoader.serverKeys(serverkeyStore, serverKeyPasswd, N, opts.get("server_keys_cache"));
         for (int i = 0; i < N; i++) {
-            serverPublicKey = MyCrypto.getPublicKey(serverkeyStore, "server_" + i, serverKeyPasswd);
-            servers.add(new ServerChannel(Integer.parseInt(list[i]), serverPublicKey, pub, priv));
+            servers.add(new ServerChannel(Integer.parseInt(list[i]), serverKeys.get(i), pub, priv));
         }
         // done
         ProtocolImp p = new ProtocolImp(N, F, servers, priv);
@@ -188,6 +189,18 @@ public class Client {
                         }
                     };
                     break;
+                case SEARCH:
+                    method = () -> {
+                        String query = textIO.newStringInputReader().read("Type the words to search for");
+                        String who = textIO.newStringInputReader().withDefaultValue("").read("Which board do you want to search in? (leave empty for all boards)");
+                        Integer num = textIO.newIntInputReader().withMinVal(0).read("How many announcements?");
+                        try {
+                            proto.search(who.isEmpty() ? null : who, query, num);
+                        } catch (BadResponseException e) {
+                            e.printStackTrace();
+                        }
+                    };
+                    break;
                 case POST:
                     method = () -> {
                         String msg = textIO.newStringInputReader().read("Type the announcement message");
@@ -229,6 +242,7 @@ public class Client {
         REGISTER,
         READ,
         READ_GENERAL,
+        SEARCH,
         POST,
         POST_GENERAL,
         EXIT
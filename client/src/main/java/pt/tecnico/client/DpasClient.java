@@ -0,0 +1,170 @@
+package pt.tecnico.client;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import pt.tecnico.model.Announcement;
+import pt.tecnico.model.BadResponseException;
+import pt.tecnico.model.Parameters;
+import pt.tecnico.model.ServerChannel;
+import pt.tecnico.model.Status;
+
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous client library for the announcement servers, to embed in other programs.
+ * <p>
+ * Every method sends its request to all servers and returns right away. The future completes with the result once
+ * N-F servers agreed on it. It completes exceptionally with a RequestException if they agreed to reject the request,
+ * or with a BadResponseException if they could not agree. A single instance is thread safe and can be shared by many
+ * concurrent callers: each request opens its own connections to the servers.
+ */
+public class DpasClient implements AutoCloseable {
+    private final ProtocolImp protocol;
+    private final ExecutorService executor;         // Runs the requests of the callers
+
+    /**
+     * @param f                int corresponding to the maximum number of faulty servers
+     * @param servers          List of ServerChannel to the servers, holding the client key pair
+     * @param clientPrivateKey PrivateKey of the client, used to sign the posts
+     */
+    public DpasClient(int f, List<ServerChannel> servers, PrivateKey clientPrivateKey) {
+        this.protocol = new ProtocolImp(servers.size(), f, servers, clientPrivateKey, false);
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "dpas-client-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Register the client board
+     *
+     * @return a CompletableFuture completed once the servers registered the board
+     */
+    public CompletableFuture<Void> register() {
+        return submit(protocol::register).thenApply(resp -> null);
+    }
+
+    /**
+     * Post an announcement in the client board
+     *
+     * @param message       String corresponding to the message
+     * @param announcements List of announcements ids to refer to
+     * @return a CompletableFuture completed once the servers stored the announcement
+     */
+    public CompletableFuture<Void> post(String message, List<Integer> announcements) {
+        return submit(() -> protocol.post(message, announcements)).thenApply(resp -> null);
+    }
+
+    /**
+     * Post an announcement in the general board
+     *
+     * @param message       String corresponding to the message
+     * @param announcements List of announcements ids to refer to
+     * @return a CompletableFuture completed once the servers stored the announcement
+     */
+    public CompletableFuture<Void> postGeneral(String message, List<Integer> announcements) {
+        return submit(() -> protocol.postGeneral(message, announcements)).thenApply(resp -> null);
+    }
+
+    /**
+     * Read announcements from the specified board
+     *
+     * @param key    Base64 encoded String corresponding to the Board public key
+     * @param number int corresponding to the number of announcements to read (0 for all announcements)
+     * @return a CompletableFuture completed with the announcements, checked against the digests the servers agreed on
+     */
+    public CompletableFuture<List<Announcement>> read(String key, int number) {
+        return submit(() -> protocol.read(key, number)).thenApply(DpasClient::announcements);
+    }
+
+    /**
+     * Read announcements from the general board
+     *
+     * @param number int corresponding to the number of announcements to read (0 for all announcements)
+     * @return a CompletableFuture completed with the announcements, checked against the digests the servers agreed on
+     */
+    public CompletableFuture<List<Announcement>> readGeneral(int number) {
+        return submit(() -> protocol.readGeneral(number)).thenApply(DpasClient::announcements);
+    }
+
+    /**
+     * Search announcements containing the words of a query
+     *
+     * @param key    Base64 encoded String corresponding to the Board public key (null to search all boards)
+     * @param query  String corresponding to the words to search for
+     * @param number int corresponding to the number of best ranked announcements to get (0 for all matches)
+     * @return a CompletableFuture completed with the announcements, most relevant first
+     */
+    public CompletableFuture<List<Announcement>> search(String key, String query, int number) {
+        return submit(() -> protocol.search(key, query, number)).thenApply(DpasClient::announcements);
+    }
+
+    /**
+     * Read a verified range of a board, with its digests, for the BoardCache
+     *
+     * @param key    Base64 encoded String corresponding to the Board public key (null for the general board)
+     * @param number int corresponding to the number of most recent announcements to read (0 for all announcements)
+     * @return a CompletableFuture completed with the response the servers agreed on
+     */
+    CompletableFuture<JSONObject> readRange(String key, int number) {
+        return submit(() -> key == null ? protocol.readGeneral(number) : protocol.read(key, number));
+    }
+
+    /**
+     * Read the verified announcements of a board posted after a given one, with their digests, for the BoardCache
+     *
+     * @param key     Base64 encoded String corresponding to the Board public key (null for the general board)
+     * @param afterId int corresponding to the id of the last announcement already held
+     * @return a CompletableFuture completed with the response the servers agreed on
+     */
+    CompletableFuture<JSONObject> readRangeAfter(String key, int afterId) {
+        return submit(() -> key == null ? protocol.readGeneralAfter(afterId) : protocol.readAfter(key, afterId));
+    }
+
+    /**
+     * Stop the threads of the client, the requests in progress are abandoned
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Run a request, and turn the error responses the servers agreed on into a RequestException
+     */
+    private CompletableFuture<JSONObject> submit(Request request) {
+        return CompletableFuture.supplyAsync(() -> {
+            JSONObject resp;
+            try {
+                resp = request.send();
+            } catch (BadResponseException e) {
+                throw new CompletionException(e);
+            }
+            Status status = Status.valueOf(resp.optString(Parameters.status.name(), Status.SERVER_ERROR.name()));
+            if (status != Status.OK)
+                throw new CompletionException(new RequestException(status, resp.optString(Parameters.err_msg.name())));
+            return resp;
+        }, executor);
+    }
+
+    private static List<Announcement> announcements(JSONObject resp) {
+        List<Announcement> announcements = new ArrayList<>();
+        JSONArray data = resp.optJSONArray(Parameters.data.name());
+        if (data != null)
+            data.forEach(jo -> announcements.add(Announcement.fromJSON((JSONObject) jo)));
+        return announcements;
+    }
+
+    private interface Request {
+        JSONObject send() throws BadResponseException;
+    }
+}
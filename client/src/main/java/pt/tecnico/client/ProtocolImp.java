@@ -1,6 +1,7 @@
 package pt.tecnico.client;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import pt.tecnico.model.*;
 
@@ -11,9 +12,8 @@ import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class ProtocolImp {
 
@@ -21,64 +21,228 @@ public class ProtocolImp {
     private int N;
     private int F;
     private List<ServerChannel> servers;
+    private final ExecutorService executor;     // Sends the requests to the servers in parallel
+    private final boolean verbose;              // true to print the exchanges with the servers
 
     public ProtocolImp(int n, int f, List<ServerChannel> servers, PrivateKey clientPrivateKey) {
+        this(n, f, servers, clientPrivateKey, true);
+    }
+
+    /**
+     * @param n                int corresponding to the number of servers
+     * @param f                int corresponding to the maximum number of faulty servers
+     * @param servers          List of ServerChannel to the servers, shared by every request
+     * @param clientPrivateKey PrivateKey used to sign the posts
+     * @param verbose          boolean, true to print the exchanges with the servers
+     */
+    public ProtocolImp(int n, int f, List<ServerChannel> servers, PrivateKey clientPrivateKey, boolean verbose) {
+        this.verbose = verbose;
         this.N = n;
         this.F = f;
         this.servers = servers;
         this.clientPrivateKey = clientPrivateKey;
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "client-fanout");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
-    private JSONObject broadcast(JSONObject jsonObject, String clientNonce) throws BadResponseException {
-        Map<Integer, Integer> bodyCount = new HashMap<>();
-        Map<Integer, JSONObject> bodies = new HashMap<>();
-        servers.forEach(s -> {
-            JSONObject resp;
-            try {
-                resp = s.send(new JSONObject(jsonObject.toString()), clientNonce);
-                if (!resp.getString(Parameters.client_nonce.name()).equals(clientNonce)) {
-                    throw new BadResponseException("Nonce don't match");
-                }
-                s.close();
-            } catch (IOException | BadResponseException | BadSignatureException e) {
-                System.out.printf("Error sending to server %d %s\n", s.port, e.getMessage());
-                return;
+    /**
+     * Send a request to every server at once, and wait until N-F of them sent the same verified response
+     *
+     * @param jsonObject  JSONObject corresponding to the request
+     * @param clientNonce String corresponding to the nonce of the request
+     * @return the Quorum of servers that agreed, the servers still answering are not waited for
+     * @throws BadResponseException in case N-F servers can no longer agree
+     */
+    private Quorum broadcast(JSONObject jsonObject, String clientNonce) throws BadResponseException {
+        CompletionService<Answer> answers = new ExecutorCompletionService<>(executor);
+        Map<ServerChannel, Future<Answer>> pending = new HashMap<>();
+        Map<ServerChannel, ServerChannel> channels = new HashMap<>();   // Channel of this request to each server
+        for (ServerChannel s : servers) {
+            ServerChannel channel = s.copy();
+            channels.put(s, channel);
+            pending.put(s, answers.submit(() -> ask(s, channel, jsonObject, clientNonce)));
+        }
+        Map<String, List<ServerChannel>> agreeing = new HashMap<>();
+        Map<String, JSONObject> bodies = new HashMap<>();
+        String quorumKey = null;
+        int received = 0, highestCount = 0;
+        try {
+            // we stop as soon as a response reaches N-F servers, or can not anymore
+            while (quorumKey == null && received < servers.size() && highestCount + servers.size() - received >= N - F) {
+                Answer answer = answers.take().get();
+                received++;
+                pending.remove(answer.server);
+                if (answer.body == null)
+                    continue;
+                // we add the server to the ones that agree on this body
+                String key = agreementKey(answer.body);
+                List<ServerChannel> agree = agreeing.computeIfAbsent(key, k -> new ArrayList<>());
+                agree.add(answer.server);
+                // we save the message
+                bodies.put(key, answer.body);
+                highestCount = Math.max(highestCount, agree.size());
+                if (agree.size() >= N - F)
+                    quorumKey = key;
             }
-            // we add 1 to the count
-            resp.remove(Parameters.signature.name());
-            int count = 1;
-            int hash = resp.toString().hashCode();
-            if (bodyCount.containsKey(hash)) {
-                count = bodyCount.get(hash) + 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BadResponseException("Interrupted while waiting for the servers");
+        } catch (ExecutionException e) {
+            throw new InternalError(e.getCause());
+        } finally {
+            // the stragglers are not needed anymore
+            pending.forEach((s, future) -> {
+                future.cancel(true);
+                channels.get(s).abort();
+            });
+        }
+        if (quorumKey == null) {
+            throw new BadResponseException("More than F servers differed in their response.");
+        }
+        log("%d servers answered with the same correct message, %d produced an error, %d were not waited for\n",
+                highestCount, received - highestCount, servers.size() - received);
+        return new Quorum(bodies.get(quorumKey), agreeing.get(quorumKey));
+    }
+
+    /**
+     * Send a request to a single server, on a channel of its own so that concurrent requests do not interfere
+     *
+     * @param s       ServerChannel of the server
+     * @param channel ServerChannel used for this request only
+     * @return the Answer of the server, with a null body in case of error
+     */
+    private Answer ask(ServerChannel s, ServerChannel channel, JSONObject req, String clientNonce) {
+        try {
+            JSONObject resp = channel.send(new JSONObject(req.toString()), clientNonce);
+            if (!resp.getString(Parameters.client_nonce.name()).equals(clientNonce)) {
+                throw new BadResponseException("Nonce don't match");
             }
-            bodyCount.put(hash, count);
-            // we save the message
-            bodies.put(hash, resp);
-        });
-        // we find the response with the highest count
-        int highestHash = 0;
-        int highestCount = 0;
-        for (Integer hash : bodyCount.keySet()) {
-            int count = bodyCount.get(hash);
-            if (count > highestCount) {
-                highestCount = count;
-                highestHash = hash;
+            resp.remove(Parameters.signature.name());
+            return new Answer(s, resp);
+        } catch (IOException | BadResponseException | BadSignatureException | RuntimeException e) {
+            // a faulty server must only fail its own answer; an aborted straggler is not an error
+            if (!Thread.currentThread().isInterrupted())
+                log("Error sending to server %d %s\n", s.port, e.getMessage());
+            return new Answer(s, null);
+        } finally {
+            try {
+                channel.close();
+            } catch (RuntimeException e) {
+                log("Error closing the connection to server %d %s\n", s.port, e.getMessage());
             }
         }
-        JSONObject resp = bodies.get(highestHash);
-        if (N - highestCount > F) {
-            throw new BadResponseException("More than F servers differed in their response.");
+    }
+
+    private void log(String format, Object... args) {
+        if (verbose)
+            System.out.printf(format, args);
+    }
+
+    /**
+     * Compute the key servers must agree on: the board digests when the response carries them, so the announcements
+     * themselves need not be compared, or else the digest of the whole response
+     *
+     * @param resp JSONObject corresponding to the unsigned response
+     * @return a Base64 encoded String identifying the response
+     */
+    private static String agreementKey(JSONObject resp) {
+        String body = resp.toString();
+        if (resp.has(Parameters.board_digest.name())) {
+            JSONObject digests = new JSONObject(body);
+            digests.remove(Parameters.data.name());
+            body = digests.toString();
+        }
+        try {
+            return Base64.getEncoder().encodeToString(MyCrypto.digest(body.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalError(e);
         }
-        System.out.printf("%d servers answered with the same correct message, %d produced an error\n", highestCount, N - highestCount);
-        return resp;
     }
 
     private JSONObject request(JSONObject req) throws BadResponseException {
-        // for each open connection we send the message
-        String nonce = MyCrypto.getRandomNonce();
-        JSONObject respBody = broadcast(req, nonce);
-        System.out.printf("Servers answered: %s \n", respBody.toString(2));
-        return respBody;
+        long start = System.nanoTime();
+        trace(req);
+        try {
+            // for each open connection we send the message
+            String nonce = MyCrypto.getRandomNonce();
+            JSONObject respBody = broadcast(req, nonce).body;
+            log("Servers answered: %s \n", Log.lazy(() -> respBody.toString(2)));
+            return respBody;
+        } finally {
+            timer(req).recordSince(start);
+            Trace.span(req.optString(Parameters.trace_id.name(), null), "client", "request", start, req.opt(Parameters.action.name()));
+        }
+    }
+
+    /**
+     * Give a request its trace id, when tracing
+     *
+     * @param req JSONObject corresponding to a request, before it is signed
+     */
+    private static void trace(JSONObject req) {
+        if (Trace.isEnabled())
+            req.put(Parameters.trace_id.name(), Trace.newId());
+    }
+
+    /**
+     * @param req JSONObject corresponding to a request
+     * @return the timer of the action of the request, failed requests included
+     */
+    private static Metrics.Timer timer(JSONObject req) {
+        return Metrics.timer("client.action." + req.optString(Parameters.action.name()));
+    }
+
+    /**
+     * Read a board range: first all servers are asked for the digests only, then the announcements of the agreed
+     * state are fetched from a single server of the quorum and checked against the agreed digests. The fetch names
+     * the agreed board digest, so that the posts made since the digest round do not change the range it gets
+     *
+     * @param req JSONObject corresponding to the READ or READGENERAL request
+     * @return JSONObject corresponding to the verified response, announcements included
+     * @throws BadResponseException in case no quorum was reached or no agreeing server sent a matching range
+     */
+    private JSONObject requestRange(JSONObject req) throws BadResponseException {
+        long start = System.nanoTime();
+        trace(req);
+        try {
+            return fetchRange(req);
+        } finally {
+            timer(req).recordSince(start);
+            Trace.span(req.optString(Parameters.trace_id.name(), null), "client", "request", start, req.opt(Parameters.action.name()));
+        }
+    }
+
+    private JSONObject fetchRange(JSONObject req) throws BadResponseException {
+        JSONObject digestReq = new JSONObject(req.toString());
+        digestReq.put(Parameters.digest_only.name(), true);
+        Quorum quorum = broadcast(digestReq, MyCrypto.getRandomNonce());
+        if (!quorum.body.has(Parameters.board_digest.name())) {
+            // the servers agreed on an error, there is nothing to fetch
+            log("Servers answered: %s \n", Log.lazy(() -> quorum.body.toString(2)));
+            return quorum.body;
+        }
+        String boardDigest = quorum.body.getString(Parameters.board_digest.name());
+        String prefixDigest = quorum.body.getString(Parameters.prefix_digest.name());
+        JSONObject dataReq = new JSONObject(req.toString());
+        dataReq.put(Parameters.board_digest.name(), boardDigest);
+        for (ServerChannel s : quorum.servers) {
+            JSONObject resp = ask(s, s.copy(), dataReq, MyCrypto.getRandomNonce()).body;
+            try {
+                if (resp != null && boardDigest.equals(resp.optString(Parameters.board_digest.name()))
+                        && prefixDigest.equals(resp.optString(Parameters.prefix_digest.name()))
+                        && BoardRange.verify(prefixDigest, resp.getJSONArray(Parameters.data.name()), boardDigest)) {
+                    log("Servers answered: %s \n", Log.lazy(() -> resp.toString(2)));
+                    return resp;
+                }
+                log("Server %d sent announcements not matching the agreed digest\n", s.port);
+            } catch (JSONException e) {
+                log("Error fetching from server %d %s\n", s.port, e.getMessage());
+            }
+        }
+        throw new BadResponseException("No server sent announcements matching the agreed digest.");
     }
 
     public void printServersPublicKey() {
@@ -87,11 +251,13 @@ public class ProtocolImp {
 
     /**
      * Register the user
+     *
+     * @return JSONObject corresponding to the response the servers agreed on
      */
-    void register() throws BadResponseException {
+    JSONObject register() throws BadResponseException {
         JSONObject req = new JSONObject();
         req.put(Parameters.action.name(), Action.REGISTER.name());
-        request(req);
+        return request(req);
     }
 
     /**
@@ -99,9 +265,10 @@ public class ProtocolImp {
      *
      * @param message       String corresponding to the message
      * @param announcements List of announcements ids to refer to
+     * @return JSONObject corresponding to the response the servers agreed on
      */
-    void post(String message, List<Integer> announcements) throws BadResponseException {
-        genericPost(message, announcements, Action.POST);
+    JSONObject post(String message, List<Integer> announcements) throws BadResponseException {
+        return genericPost(message, announcements, Action.POST);
     }
 
     /**
@@ -109,9 +276,10 @@ public class ProtocolImp {
      *
      * @param message       String corresponding to the message
      * @param announcements List of announcements ids to refer to
+     * @return JSONObject corresponding to the response the servers agreed on
      */
-    void postGeneral(String message, List<Integer> announcements) throws BadResponseException {
-        genericPost(message, announcements, Action.POSTGENERAL);
+    JSONObject postGeneral(String message, List<Integer> announcements) throws BadResponseException {
+        return genericPost(message, announcements, Action.POSTGENERAL);
     }
 
     /**
@@ -120,8 +288,9 @@ public class ProtocolImp {
      * @param message       String corresponding to the message
      * @param announcements List of announcements ids to refer to
      * @param action        Action chosen (POST or POST_GENERAL)
+     * @return JSONObject corresponding to the response the servers agreed on
      */
-    private void genericPost(String message, List<Integer> announcements, Action action) throws BadResponseException {
+    private JSONObject genericPost(String message, List<Integer> announcements, Action action) throws BadResponseException {
         JSONObject req = new JSONObject();
         JSONObject postData = new JSONObject();
         JSONArray ann = new JSONArray(announcements);
@@ -142,7 +311,7 @@ public class ProtocolImp {
         // we add the post signature
         req.put(Parameters.post_signature.name(), postSig);
         // we sign and send
-        request(req);
+        return request(req);
     }
 
     /**
@@ -150,24 +319,100 @@ public class ProtocolImp {
      *
      * @param key    Base64 encoded String corresponding to the Board public key
      * @param number int corresponding to the number of announcements to read (0 for all announcements)
+     * @return JSONObject corresponding to the response the servers agreed on
      */
-    void read(String key, int number) throws BadResponseException {
+    JSONObject read(String key, int number) throws BadResponseException {
         JSONObject req = new JSONObject();
         req.put(Parameters.action.name(), Action.READ.name());
         req.put(Parameters.board_public_key.name(), key);
         req.put(Parameters.number.name(), number);
-        request(req);
+        return requestRange(req);
     }
 
     /**
      * Read announcements from the general board
      *
      * @param number int corresponding to the number of announcements to read (0 for all announcements)
+     * @return JSONObject corresponding to the response the servers agreed on
+     */
+    JSONObject readGeneral(int number) throws BadResponseException {
+        JSONObject req = new JSONObject();
+        req.put(Parameters.action.name(), Action.READGENERAL.name());
+        req.put(Parameters.number.name(), number);
+        return requestRange(req);
+    }
+
+    /**
+     * Read the announcements posted in the specified board after a given one
+     *
+     * @param key     Base64 encoded String corresponding to the Board public key
+     * @param afterId int corresponding to the id of the last announcement already held (0 for all announcements)
+     * @return JSONObject corresponding to the response the servers agreed on, its prefix digest being the chain value
+     * the newer announcements continue from
+     */
+    JSONObject readAfter(String key, int afterId) throws BadResponseException {
+        JSONObject req = new JSONObject();
+        req.put(Parameters.action.name(), Action.READ.name());
+        req.put(Parameters.board_public_key.name(), key);
+        req.put(Parameters.after_id.name(), afterId);
+        return requestRange(req);
+    }
+
+    /**
+     * Read the announcements posted in the general board after a given one
+     *
+     * @param afterId int corresponding to the id of the last announcement already held (0 for all announcements)
+     * @return JSONObject corresponding to the response the servers agreed on, its prefix digest being the chain value
+     * the newer announcements continue from
      */
-    void readGeneral(int number) throws BadResponseException {
+    JSONObject readGeneralAfter(int afterId) throws BadResponseException {
         JSONObject req = new JSONObject();
         req.put(Parameters.action.name(), Action.READGENERAL.name());
+        req.put(Parameters.after_id.name(), afterId);
+        return requestRange(req);
+    }
+
+    /**
+     * Search announcements containing the words of a query
+     *
+     * @param key    Base64 encoded String corresponding to the Board public key (null to search all boards)
+     * @param query  String corresponding to the words to search for
+     * @param number int corresponding to the number of best ranked announcements to get (0 for all matches)
+     * @return JSONObject corresponding to the response the servers agreed on
+     */
+    JSONObject search(String key, String query, int number) throws BadResponseException {
+        JSONObject req = new JSONObject();
+        req.put(Parameters.action.name(), Action.SEARCH.name());
+        if (key != null)
+            req.put(Parameters.board_public_key.name(), key);
+        req.put(Parameters.query.name(), query);
         req.put(Parameters.number.name(), number);
-        request(req);
+        return request(req);
+    }
+
+    /**
+     * Response of a single server, null if it failed
+     */
+    private static class Answer {
+        private final ServerChannel server;
+        private final JSONObject body;
+
+        private Answer(ServerChannel server, JSONObject body) {
+            this.server = server;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Response a quorum of servers agreed on, and the servers that sent it
+     */
+    private static class Quorum {
+        private final JSONObject body;
+        private final List<ServerChannel> servers;
+
+        private Quorum(JSONObject body, List<ServerChannel> servers) {
+            this.body = body;
+            this.servers = servers;
+        }
     }
 }
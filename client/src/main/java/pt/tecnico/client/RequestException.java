@@ -0,0 +1,28 @@
+package pt.tecnico.client;
+
+import pt.tecnico.model.Status;
+
+/**
+ * Exception thrown when a quorum of servers agreed to reject a request
+ */
+public class RequestException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final Status status;
+
+    /**
+     * @param status  Status the servers answered with (CLIENT_ERROR or SERVER_ERROR)
+     * @param message String corresponding to the error message of the servers
+     */
+    public RequestException(Status status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * @return the Status the servers answered with, CLIENT_ERROR in case the request itself was wrong
+     */
+    public Status getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,116 @@
+package pt.tecnico.client;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import pt.tecnico.model.Announcement;
+import pt.tecnico.model.BadResponseException;
+import pt.tecnico.model.MyCrypto;
+import pt.tecnico.model.Parameters;
+import pt.tecnico.model.Status;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The futures of the client library must complete with what the servers agreed on, and fail with a RequestException
+ * when they agreed to reject the request, or with a BadResponseException when they could not agree
+ */
+@Timeout(60)
+class DpasClientTest {
+    private static final int F = 1;
+    private static final int N = 4;
+
+    private MemoryServers servers;
+    private DpasClient client;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        servers = new MemoryServers(N);
+        KeyPair keys = MyCrypto.generateKeyPair();
+        client = new DpasClient(F, servers.channels(keys), keys.getPrivate());
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        client.close();
+        servers.close();
+    }
+
+    private static JSONObject announcement(int id, String message) {
+        JSONObject announcement = new JSONObject();
+        announcement.put("owner", "owner");
+        announcement.put("signature", "signature");
+        announcement.put("message", message);
+        announcement.put("announcements", new JSONArray());
+        announcement.put("id", id);
+        return announcement;
+    }
+
+    @Test
+    void completesOnceServersAgree() throws Exception {
+        servers.behave(N - 1, MemoryServers.Behavior.CLOSE);
+        assertNull(client.register().get());
+        assertNull(client.post("hello", List.of()).get());
+        assertNull(client.postGeneral("hello", List.of()).get());
+    }
+
+    @Test
+    void agreedRejectionIsRequestException() {
+        for (int i = 0; i < N; i++)
+            servers.answer(i, request -> MemoryServers.error(Status.CLIENT_ERROR, "Already registered"));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> client.register().get());
+        RequestException cause = requestException(e.getCause());
+        assertEquals(Status.CLIENT_ERROR, cause.getStatus());
+        assertEquals("Already registered", cause.getMessage());
+    }
+
+    @Test
+    void disagreementIsBadResponseException() {
+        servers.answer(0, request -> MemoryServers.error(Status.CLIENT_ERROR, "Already registered"));
+        servers.answer(1, request -> MemoryServers.error(Status.SERVER_ERROR, "Ups"));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> client.register().get());
+        assertEquals(BadResponseException.class, e.getCause().getClass());
+    }
+
+    @Test
+    void searchCompletesWithAnnouncements() throws Exception {
+        for (int i = 0; i < N; i++) {
+            servers.answer(i, request -> {
+                if (!request.getString(Parameters.query.name()).equals("hello world"))
+                    return MemoryServers.error(Status.CLIENT_ERROR, "Unexpected query");
+                JSONObject response = MemoryServers.ok();
+                response.put(Parameters.data.name(), new JSONArray(List.of(announcement(2, "hello world"), announcement(1, "hello"))));
+                return response;
+            });
+        }
+        List<Announcement> announcements = client.search(null, "hello world", 0).get();
+        assertEquals(2, announcements.size());
+        assertEquals(2, announcements.get(0).getId());
+        assertEquals("hello world", announcements.get(0).getMessage());
+        assertEquals(1, announcements.get(1).getId());
+    }
+
+    @Test
+    void concurrentCallersShareOneClient() throws Exception {
+        List<CompletableFuture<Void>> posts = new ArrayList<>();
+        for (int k = 0; k < 20; k++)
+            posts.add(client.post("post " + k, List.of()));
+        CompletableFuture.allOf(posts.toArray(new CompletableFuture<?>[0])).get();
+        for (CompletableFuture<Void> post : posts)
+            assertFalse(post.isCompletedExceptionally());
+    }
+
+    private static RequestException requestException(Throwable cause) {
+        assertEquals(RequestException.class, cause.getClass());
+        return (RequestException) cause;
+    }
+}
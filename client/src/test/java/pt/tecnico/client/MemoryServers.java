@@ -0,0 +1,172 @@
+package pt.tecnico.client;
+
+import org.json.JSONObject;
+import pt.tecnico.model.*;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Servers answering the client over a MemoryTransport, each one behaving as the test sets it: answering with the
+ * response of a handler, failing, or never answering at all
+ */
+class MemoryServers implements AutoCloseable {
+    static final int BASE_PORT = 9500;
+
+    /**
+     * What a server does with the requests it reads
+     */
+    enum Behavior {
+        ANSWER,     // answers with the response of its handler
+        SILENT,     // reads the request and never answers
+        CLOSE,      // closes the connection without answering
+        FORGE       // answers with a signature of another key
+    }
+
+    private final MemoryTransport transport = new MemoryTransport();
+    private final List<KeyPair> keys = new ArrayList<>();
+    private final List<Transport.Acceptor> acceptors = new ArrayList<>();
+    private final List<Server> servers = new ArrayList<>();
+    private final PrivateKey forger;                    // Key of the FORGE servers
+
+    /**
+     * @param n int corresponding to the number of servers, all answering OK until told otherwise
+     */
+    MemoryServers(int n) throws NoSuchAlgorithmException, IOException {
+        forger = MyCrypto.generateKeyPair().getPrivate();
+        for (int i = 0; i < n; i++) {
+            keys.add(MyCrypto.generateKeyPair());
+            Server server = new Server(i);
+            servers.add(server);
+            Transport.Acceptor acceptor = transport.listen(BASE_PORT + i);
+            acceptors.add(acceptor);
+            Thread thread = new Thread(() -> accept(acceptor, server), "memory-server-" + (BASE_PORT + i));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * @param client KeyPair of the client
+     * @return the ServerChannel to every server, as the client sees them
+     */
+    List<ServerChannel> channels(KeyPair client) {
+        List<ServerChannel> channels = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++)
+            channels.add(new ServerChannel(BASE_PORT + i, keys.get(i).getPublic(), client.getPublic(), client.getPrivate(), transport));
+        return channels;
+    }
+
+    void behave(int server, Behavior behavior) {
+        servers.get(server).behavior = behavior;
+    }
+
+    /**
+     * @param handler Function computing the unsigned response of a server to a request
+     */
+    void answer(int server, Function<JSONObject, JSONObject> handler) {
+        servers.get(server).handler = handler;
+    }
+
+    /**
+     * @return the number of requests a server read
+     */
+    int requests(int server) {
+        return servers.get(server).requests.get();
+    }
+
+    /**
+     * @return the number of connections the client closed while the server was holding its answer
+     */
+    int aborted(int server) {
+        return servers.get(server).aborted.get();
+    }
+
+    static JSONObject ok() {
+        JSONObject response = new JSONObject();
+        response.put(Parameters.status.name(), Status.OK.name());
+        return response;
+    }
+
+    static JSONObject error(Status status, String message) {
+        JSONObject response = new JSONObject();
+        response.put(Parameters.status.name(), status.name());
+        response.put(Parameters.err_msg.name(), message);
+        return response;
+    }
+
+    private void accept(Transport.Acceptor acceptor, Server server) {
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                Transport.Channel channel = acceptor.accept();
+                Thread thread = new Thread(() -> serve(channel, server), "memory-server-conn-" + (BASE_PORT + server.index));
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // closed with the servers
+        }
+    }
+
+    private void serve(Transport.Channel channel, Server server) {
+        try {
+            String line = channel.readLine();
+            if (line == null)
+                return;
+            JSONObject request = new JSONObject(line);
+            server.requests.incrementAndGet();
+            switch (server.behavior) {
+                case SILENT:
+                    // holds the answer until the client gives up on it
+                    if (channel.readLine() == null)
+                        server.aborted.incrementAndGet();
+                    return;
+                case CLOSE:
+                    return;
+                default:
+                    JSONObject response = new JSONObject(server.handler.apply(request).toString());
+                    response.put(Parameters.client_nonce.name(), request.getString(Parameters.client_nonce.name()));
+                    PrivateKey key = server.behavior == Behavior.FORGE ? forger : keys.get(server.index).getPrivate();
+                    response.put(Parameters.signature.name(), MyCrypto.digestAndSignToB64(response.toString().getBytes(), key));
+                    channel.writeLine(response.toString());
+            }
+        } catch (IOException e) {
+            server.aborted.incrementAndGet();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Transport.Acceptor acceptor : acceptors)
+            acceptor.close();
+    }
+
+    /**
+     * State of a single server
+     */
+    private static class Server {
+        private final int index;
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger aborted = new AtomicInteger();
+        private volatile Behavior behavior = Behavior.ANSWER;
+        private volatile Function<JSONObject, JSONObject> handler = request -> ok();
+
+        private Server(int index) {
+            this.index = index;
+        }
+    }
+}
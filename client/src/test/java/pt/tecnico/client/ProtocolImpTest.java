@@ -0,0 +1,85 @@
+package pt.tecnico.client;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import pt.tecnico.model.BadResponseException;
+import pt.tecnico.model.MyCrypto;
+import pt.tecnico.model.Parameters;
+import pt.tecnico.model.Status;
+
+import java.security.KeyPair;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Four servers, at most one of them faulty (N=4, F=1): a request must return as soon as three servers agree, whatever
+ * the fourth does, and fail as soon as three of them can no longer agree
+ */
+@Timeout(60)
+class ProtocolImpTest {
+    private static final int F = 1;
+    private static final int N = 4;
+    private static final long FAST = 10 * 1000;     // Well below the 50 s a server is waited for, in ms
+
+    private MemoryServers servers;
+    private ProtocolImp protocol;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        servers = new MemoryServers(N);
+        KeyPair client = MyCrypto.generateKeyPair();
+        protocol = new ProtocolImp(N, F, servers.channels(client), client.getPrivate(), false);
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        servers.close();
+    }
+
+    @Test
+    void returnsWithoutWaitingForLastServer() throws Exception {
+        servers.behave(N - 1, MemoryServers.Behavior.SILENT);
+        long start = System.currentTimeMillis();
+        JSONObject response = protocol.register();
+        assertTrue(System.currentTimeMillis() - start < FAST, "Waited for the silent server");
+        assertEquals(Status.OK.name(), response.getString(Parameters.status.name()));
+        // the connection to the silent server is closed, not left to time out
+        long deadline = System.currentTimeMillis() + FAST;
+        while (servers.aborted(N - 1) == 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "Silent server not aborted");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void failingServerOnlyFailsItsOwnAnswer() throws Exception {
+        for (MemoryServers.Behavior behavior : new MemoryServers.Behavior[]{MemoryServers.Behavior.CLOSE, MemoryServers.Behavior.FORGE}) {
+            servers.behave(0, behavior);
+            JSONObject response = protocol.register();
+            assertEquals(Status.OK.name(), response.getString(Parameters.status.name()), behavior + " server failed the request");
+        }
+    }
+
+    @Test
+    void failsOnceServersCanNoLongerAgree() throws Exception {
+        servers.behave(0, MemoryServers.Behavior.CLOSE);
+        servers.behave(1, MemoryServers.Behavior.FORGE);
+        servers.behave(2, MemoryServers.Behavior.SILENT);
+        long start = System.currentTimeMillis();
+        assertThrows(BadResponseException.class, () -> protocol.register());
+        assertTrue(System.currentTimeMillis() - start < FAST, "Waited for the silent server");
+    }
+
+    @Test
+    void failsWhenServersDisagree() throws Exception {
+        servers.answer(0, request -> MemoryServers.error(Status.CLIENT_ERROR, "Already registered"));
+        servers.answer(1, request -> MemoryServers.error(Status.CLIENT_ERROR, "Already registered"));
+        assertThrows(BadResponseException.class, () -> protocol.register());
+        // three agreeing servers are enough, the fourth being wrong
+        servers.answer(1, request -> MemoryServers.ok());
+        assertEquals(Status.OK.name(), protocol.register().getString(Parameters.status.name()));
+    }
+}
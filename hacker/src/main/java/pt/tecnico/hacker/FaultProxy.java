@@ -0,0 +1,494 @@
+package pt.tecnico.hacker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Proxy injecting faults and latency in the links to every server at once, to measure how the system degrades with
+ * slow or faulty servers. Each link listens on a port and relays its connections to a server port, message by
+ * message (every message being a single line), applying the rule of the link to both directions:
+ * <ul>
+ * <li>delay_ms and jitter_ms: each message is held for the delay plus a random part of the jitter</li>
+ * <li>drop: probability of a message being dropped, the connection going on without it</li>
+ * <li>reorder: probability of a message overtaking the one queued before it</li>
+ * <li>bandwidth_kbps: capacity of the link in each direction, shared by its connections, 0 for no cap</li>
+ * </ul>
+ * A script changes the rules while the proxy runs, one change per line: the second it applies at, the listen port
+ * of the link or * for all, and the options that change, like {@code 30 9101 delay_ms=500 jitter_ms=100}.
+ * <p>
+ * A single thread relays every connection with non-blocking sockets, so holding messages never blocks the others.
+ */
+public class FaultProxy {
+    private static final String IP = "127.0.0.1";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long STATS_PERIOD = 10_000;       // How often the statistics of the links are printed, in ms
+
+    private final Selector selector;
+    private final Map<Integer, Link> links = new LinkedHashMap<>();     // Links by listen port
+    private final List<Flow> flows = new ArrayList<>();                 // Directions of the open connections
+    private final Deque<Change> script;                                 // Rule changes not applied yet, in time order
+    private final Random random;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final long start = System.nanoTime();
+
+    /**
+     * @param links  Map of the server port to relay to, by listen port
+     * @param host   String corresponding to the host of the servers
+     * @param rule   Rule of every link at start
+     * @param script List of Change to apply while running, in time order
+     * @param seed   long corresponding to the seed of the random faults
+     * @throws IOException in case a listen port can not be bound
+     */
+    public FaultProxy(Map<Integer, Integer> links, String host, Rule rule, List<Change> script, long seed) throws IOException {
+        this.selector = Selector.open();
+        this.script = new ArrayDeque<>(script);
+        this.random = new Random(seed);
+        for (Map.Entry<Integer, Integer> e : links.entrySet()) {
+            Link link = new Link(e.getKey(), new InetSocketAddress(host, e.getValue()), rule);
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(IP, link.listenPort));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT, link);
+            this.links.put(link.listenPort, link);
+            System.out.printf("Link %d -> %s:%d %s\n", link.listenPort, host, e.getValue(), rule);
+        }
+    }
+
+    /**
+     * Syntax: FaultProxy links=LISTEN:SERVER,... [host=127.0.0.1] [script=file] [seed=0] [delay_ms=0] [jitter_ms=0]
+     * [drop=0] [reorder=0] [bandwidth_kbps=0]
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2)
+                throw new IllegalArgumentException("Options must look like key=value, got " + arg);
+            opts.put(kv[0], kv[1]);
+        }
+        if (!opts.containsKey("links"))
+            throw new IllegalArgumentException("Syntax: FaultProxy links=LISTEN:SERVER,... [host=127.0.0.1] [script=file] [seed=0] "
+                    + "[delay_ms=0] [jitter_ms=0] [drop=0] [reorder=0] [bandwidth_kbps=0]");
+        Map<Integer, Integer> links = new LinkedHashMap<>();
+        for (String link : opts.remove("links").replace(" ", "").split(",")) {
+            String[] ports = link.split(":");
+            links.put(Integer.parseInt(ports[0]), Integer.parseInt(ports[1]));
+        }
+        String host = opts.getOrDefault("host", IP);
+        long seed = Long.parseLong(opts.getOrDefault("seed", "0"));
+        List<Change> script = opts.containsKey("script") ? Change.parse(Files.readAllLines(Paths.get(opts.get("script")))) : new ArrayList<>();
+        opts.keySet().removeAll(List.of("host", "seed", "script"));
+        new FaultProxy(links, host, Rule.NONE.with(opts), script, seed).run();
+    }
+
+    /**
+     * Relay the connections forever
+     *
+     * @throws IOException in case the selector fails
+     */
+    public void run() throws IOException {
+        long nextStats = System.nanoTime() + STATS_PERIOD * 1_000_000;
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            long now = System.nanoTime();
+            applyScript(now);
+            if (now >= nextStats) {
+                printStats();
+                nextStats = now + STATS_PERIOD * 1_000_000;
+            }
+            // wake up for the next message to release, the next script change or the next statistics
+            long wake = nextStats;
+            for (Flow flow : flows)
+                if (flow.writing == null && !flow.queue.isEmpty())
+                    wake = Math.min(wake, flow.queue.peekFirst().release);
+            if (!script.isEmpty())
+                wake = Math.min(wake, start + script.peekFirst().atSeconds * 1_000_000_000L);
+            long timeout = (wake - now) / 1_000_000;
+            if (timeout > 0)
+                selector.select(timeout);
+            else
+                selector.selectNow();
+            Set<SelectionKey> ready = selector.selectedKeys();
+            for (SelectionKey key : ready) {
+                try {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept((Link) key.attachment(), (ServerSocketChannel) key.channel());
+                    else
+                        ((Connection) key.attachment()).ready(key);
+                } catch (IOException e) {
+                    if (key.attachment() instanceof Connection)
+                        ((Connection) key.attachment()).close();
+                }
+            }
+            ready.clear();
+            for (Flow flow : new ArrayList<>(flows)) {
+                try {
+                    flow.release(System.nanoTime());
+                } catch (IOException e) {
+                    flow.connection.close();
+                }
+            }
+        }
+    }
+
+    private void accept(Link link, ServerSocketChannel server) throws IOException {
+        SocketChannel client = server.accept();
+        if (client == null)
+            return;
+        client.configureBlocking(false);
+        SocketChannel target = SocketChannel.open();
+        target.configureBlocking(false);
+        Connection connection = new Connection(link, client, target);
+        connection.clientKey = client.register(selector, SelectionKey.OP_READ, connection);
+        try {
+            boolean connected = target.connect(link.target);
+            connection.connected = connected;
+            connection.targetKey = target.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+        } catch (IOException e) {
+            connection.close();
+            return;
+        }
+        link.connections++;
+    }
+
+    private void applyScript(long now) {
+        while (!script.isEmpty() && now - start >= script.peekFirst().atSeconds * 1_000_000_000L) {
+            Change change = script.pollFirst();
+            for (Link link : links.values()) {
+                if (change.port == null || change.port == link.listenPort) {
+                    link.rule = link.rule.with(change.options);
+                    System.out.printf("%ds: link %d %s\n", change.atSeconds, link.listenPort, link.rule);
+                }
+            }
+        }
+    }
+
+    private void printStats() {
+        for (Link link : links.values())
+            System.out.printf("Link %d: %d connections, %d messages relayed, %d dropped, %d reordered\n",
+                    link.listenPort, link.connections, link.relayed, link.dropped, link.reordered);
+    }
+
+    /**
+     * Faults applied to the messages of a link, immutable
+     */
+    public static class Rule {
+        public static final Rule NONE = new Rule(0, 0, 0, 0, 0);
+
+        private final long delayMillis;
+        private final long jitterMillis;
+        private final double drop;              // Probability of dropping a message
+        private final double reorder;           // Probability of a message overtaking the previous one
+        private final long bandwidthKbps;       // Capacity of each direction, 0 for no cap
+
+        private Rule(long delayMillis, long jitterMillis, double drop, double reorder, long bandwidthKbps) {
+            if (delayMillis < 0 || jitterMillis < 0 || drop < 0 || drop > 1 || reorder < 0 || reorder > 1 || bandwidthKbps < 0)
+                throw new IllegalArgumentException("Delays and bandwidth can not be negative, probabilities must be between 0 and 1");
+            this.delayMillis = delayMillis;
+            this.jitterMillis = jitterMillis;
+            this.drop = drop;
+            this.reorder = reorder;
+            this.bandwidthKbps = bandwidthKbps;
+        }
+
+        /**
+         * @param options Map of the options to change, by name
+         * @return a copy of this rule with the given options changed
+         */
+        public Rule with(Map<String, String> options) {
+            long delay = delayMillis, jitter = jitterMillis, bandwidth = bandwidthKbps;
+            double d = drop, r = reorder;
+            for (Map.Entry<String, String> e : options.entrySet()) {
+                switch (e.getKey()) {
+                    case "delay_ms":
+                        delay = Long.parseLong(e.getValue());
+                        break;
+                    case "jitter_ms":
+                        jitter = Long.parseLong(e.getValue());
+                        break;
+                    case "drop":
+                        d = Double.parseDouble(e.getValue());
+                        break;
+                    case "reorder":
+                        r = Double.parseDouble(e.getValue());
+                        break;
+                    case "bandwidth_kbps":
+                        bandwidth = Long.parseLong(e.getValue());
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + e.getKey());
+                }
+            }
+            return new Rule(delay, jitter, d, r, bandwidth);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("delay %d ms, jitter %d ms, drop %.3f, reorder %.3f, bandwidth %s", delayMillis,
+                    jitterMillis, drop, reorder, bandwidthKbps == 0 ? "unlimited" : bandwidthKbps + " kbps");
+        }
+    }
+
+    /**
+     * Change of the rules at some time of the run
+     */
+    public static class Change {
+        private final long atSeconds;
+        private final Integer port;                     // Listen port of the link, null for every link
+        private final Map<String, String> options;
+
+        private Change(long atSeconds, Integer port, Map<String, String> options) {
+            this.atSeconds = atSeconds;
+            this.port = port;
+            this.options = options;
+        }
+
+        /**
+         * @param lines List of the lines of a script, blank lines and lines starting with # being ignored
+         * @return the List of Change of the script, in time order
+         */
+        public static List<Change> parse(List<String> lines) {
+            List<Change> changes = new ArrayList<>();
+            for (String line : lines) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] words = line.split("\\s+");
+                if (words.length < 3)
+                    throw new IllegalArgumentException("Script lines must look like: SECONDS PORT|* option=value..., got " + line);
+                Map<String, String> options = new LinkedHashMap<>();
+                for (int i = 2; i < words.length; i++) {
+                    String[] kv = words[i].split("=", 2);
+                    if (kv.length != 2)
+                        throw new IllegalArgumentException("Options must look like key=value, got " + words[i]);
+                    options.put(kv[0], kv[1]);
+                }
+                Rule.NONE.with(options);    // fail now on a bad option rather than in the middle of the run
+                changes.add(new Change(Long.parseLong(words[0]), words[1].equals("*") ? null : Integer.valueOf(words[1]), options));
+            }
+            changes.sort((a, b) -> Long.compare(a.atSeconds, b.atSeconds));
+            return changes;
+        }
+    }
+
+    private static class Link {
+        private final int listenPort;
+        private final InetSocketAddress target;
+        private Rule rule;
+        private final long[] free = new long[2];        // When each direction of the link is free to send again, in ns
+        private long connections = 0;
+        private long relayed = 0;
+        private long dropped = 0;
+        private long reordered = 0;
+
+        private Link(int listenPort, InetSocketAddress target, Rule rule) {
+            this.listenPort = listenPort;
+            this.target = target;
+            this.rule = rule;
+        }
+    }
+
+    /**
+     * A relayed connection, between a client of the proxy and the server of its link
+     */
+    private class Connection {
+        private final Link link;
+        private final SocketChannel client;
+        private final SocketChannel target;
+        private final Flow up;          // From the client to the server
+        private final Flow down;        // From the server to the client
+        private SelectionKey clientKey;
+        private SelectionKey targetKey;
+        private boolean connected = false;
+        private boolean closed = false;
+
+        private Connection(Link link, SocketChannel client, SocketChannel target) {
+            this.link = link;
+            this.client = client;
+            this.target = target;
+            this.up = new Flow(this, 0, client, target);
+            this.down = new Flow(this, 1, target, client);
+            flows.add(up);
+            flows.add(down);
+        }
+
+        private void ready(SelectionKey key) throws IOException {
+            boolean isClient = key == clientKey;
+            if (key.isConnectable()) {
+                target.finishConnect();
+                connected = true;
+                interest();
+                return;
+            }
+            if (key.isReadable())
+                (isClient ? up : down).read();
+            if (key.isValid() && key.isWritable())
+                (isClient ? down : up).write();
+        }
+
+        /**
+         * Read from the ends that are still open, and write to those with a message in progress
+         */
+        private void interest() {
+            if (closed)
+                return;
+            if (clientKey.isValid())
+                clientKey.interestOps((up.eof ? 0 : SelectionKey.OP_READ) | (down.writing != null ? SelectionKey.OP_WRITE : 0));
+            if (connected && targetKey.isValid())
+                targetKey.interestOps((down.eof ? 0 : SelectionKey.OP_READ) | (up.writing != null ? SelectionKey.OP_WRITE : 0));
+        }
+
+        private void close() {
+            if (closed)
+                return;
+            closed = true;
+            flows.remove(up);
+            flows.remove(down);
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                target.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * One direction of a connection: the messages read from one end, held until their release time, then written to
+     * the other end
+     */
+    private class Flow {
+        private final Connection connection;
+        private final int direction;
+        private final SocketChannel from;
+        private final SocketChannel to;
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream();  // Start of a message not fully read
+        private final Deque<Message> queue = new ArrayDeque<>();                   // Messages held, by release time
+        private ByteBuffer writing = null;                                          // Message being written
+        private boolean eof = false;
+        private boolean done = false;
+
+        private Flow(Connection connection, int direction, SocketChannel from, SocketChannel to) {
+            this.connection = connection;
+            this.direction = direction;
+            this.from = from;
+            this.to = to;
+        }
+
+        private void read() throws IOException {
+            readBuffer.clear();
+            int n = from.read(readBuffer);
+            if (n < 0) {
+                // a last message without its line break is still relayed
+                if (partial.size() > 0)
+                    hold(partial.toByteArray());
+                eof = true;
+                connection.interest();
+                return;
+            }
+            byte[] bytes = readBuffer.array();
+            int lineStart = 0;
+            for (int i = 0; i < n; i++) {
+                if (bytes[i] == '\n') {
+                    partial.write(bytes, lineStart, i + 1 - lineStart);
+                    hold(partial.toByteArray());
+                    partial.reset();
+                    lineStart = i + 1;
+                }
+            }
+            partial.write(bytes, lineStart, n - lineStart);
+        }
+
+        /**
+         * Apply the rule of the link to a message just read
+         */
+        private void hold(byte[] message) {
+            Link link = connection.link;
+            Rule rule = link.rule;
+            if (rule.drop > 0 && random.nextDouble() < rule.drop) {
+                link.dropped++;
+                return;
+            }
+            long now = System.nanoTime();
+            long release = now + rule.delayMillis * 1_000_000;
+            if (rule.jitterMillis > 0)
+                release += (long) (random.nextDouble() * rule.jitterMillis * 1_000_000);
+            if (rule.bandwidthKbps > 0) {
+                // the message takes the link for its transmission time, after the messages before it
+                long transmission = message.length * 8L * 1_000_000 / rule.bandwidthKbps;
+                release = Math.max(release, link.free[direction]) + transmission;
+                link.free[direction] = release;
+            }
+            Message last = queue.peekLast();
+            // the order of a connection is kept, unless the message overtakes the last one
+            if (last != null && rule.reorder > 0 && random.nextDouble() < rule.reorder) {
+                queue.pollLast();
+                queue.addLast(new Message(message, Math.max(release, queue.isEmpty() ? 0 : queue.peekLast().release)));
+                queue.addLast(new Message(last.bytes, Math.max(release, last.release)));
+                link.reordered++;
+            } else {
+                queue.addLast(new Message(message, last == null ? release : Math.max(release, last.release)));
+            }
+        }
+
+        /**
+         * Write the messages whose release time came, and end the direction once its source closed
+         */
+        private void release(long now) throws IOException {
+            if (!connection.connected || connection.closed)
+                return;
+            while (writing == null && !queue.isEmpty() && queue.peekFirst().release <= now) {
+                writing = ByteBuffer.wrap(queue.pollFirst().bytes);
+                connection.link.relayed++;
+                write();
+            }
+            if (eof && !done && writing == null && queue.isEmpty()) {
+                done = true;
+                to.shutdownOutput();
+                Flow other = direction == 0 ? connection.down : connection.up;
+                if (other.done)
+                    connection.close();
+            }
+        }
+
+        private void write() throws IOException {
+            if (writing == null)
+                return;
+            to.write(writing);
+            if (!writing.hasRemaining())
+                writing = null;
+            connection.interest();
+        }
+    }
+
+    private static class Message {
+        private final byte[] bytes;
+        private final long release;     // When the message may be written, in ns
+
+        private Message(byte[] bytes, long release) {
+            this.bytes = bytes;
+            this.release = release;
+        }
+    }
+}
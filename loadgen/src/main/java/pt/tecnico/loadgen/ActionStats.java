@@ -0,0 +1,99 @@
+package pt.tecnico.loadgen;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import pt.tecnico.model.Action;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies and outcomes of the requests of one Action, recorded concurrently by the workers
+ */
+public class ActionStats {
+    private static final long HIGHEST_LATENCY_US = 600_000_000;     // Latencies above 10 minutes are clamped
+
+    private final Action action;
+    private final Recorder recorder = new Recorder(HIGHEST_LATENCY_US, 3);     // Latencies, in microseconds
+    private final AtomicLong ok = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();           // A quorum agreed on an error response
+    private final AtomicLong failed = new AtomicLong();             // No quorum could be reached
+    private final AtomicLong skipped = new AtomicLong();            // Not sent because too many requests were pending
+
+    /**
+     * @param action Action the requests recorded correspond to
+     */
+    public ActionStats(Action action) {
+        this.action = action;
+    }
+
+    /**
+     * @param latencyNanos long corresponding to the time from the (intended) start of the request to its response
+     */
+    public void recordOk(long latencyNanos) {
+        ok.incrementAndGet();
+        record(latencyNanos);
+    }
+
+    /**
+     * @param latencyNanos long corresponding to the time from the (intended) start of the request to its response
+     */
+    public void recordRejected(long latencyNanos) {
+        rejected.incrementAndGet();
+        record(latencyNanos);
+    }
+
+    /**
+     * @param latencyNanos long corresponding to the time from the (intended) start of the request to its failure
+     */
+    public void recordFailed(long latencyNanos) {
+        failed.incrementAndGet();
+        record(latencyNanos);
+    }
+
+    public void recordSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    private void record(long latencyNanos) {
+        recorder.recordValue(Math.min(Math.max(latencyNanos / 1000, 0), HIGHEST_LATENCY_US));
+    }
+
+    /**
+     * Forget everything recorded so far, at the end of the warm up
+     */
+    public void reset() {
+        recorder.reset();
+        ok.set(0);
+        rejected.set(0);
+        failed.set(0);
+        skipped.set(0);
+    }
+
+    /**
+     * Print a summary line and write the full latency distribution of the Action
+     *
+     * @param dir      Path of the directory where to write ACTION.hgrm
+     * @param duration double corresponding to the length of the measurement, in seconds
+     * @param outs     PrintStreams to print the summary line to
+     * @throws FileNotFoundException in case the distribution file can not be created
+     */
+    public void report(Path dir, double duration, PrintStream... outs) throws FileNotFoundException {
+        Histogram histogram = recorder.getIntervalHistogram();
+        long total = histogram.getTotalCount();
+        for (PrintStream out : outs)
+            out.printf("%-12s %8d ok %6d rejected %6d failed %6d skipped %9.1f req/s   p50 %8.2f  p90 %8.2f  p99 %8.2f  p99.9 %8.2f  max %8.2f ms\n",
+                    action, ok.get(), rejected.get(), failed.get(), skipped.get(), total / duration,
+                    histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(90) / 1e3,
+                    histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3,
+                    histogram.getMaxValue() / 1e3);
+        if (total == 0)
+            return;
+        try (PrintStream file = new PrintStream(dir.resolve(action + ".hgrm").toFile())) {
+            // percentiles in milliseconds, readable by the HdrHistogram plotter
+            histogram.outputPercentileDistribution(file, 1000.0);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package pt.tecnico.loadgen;
+
+import pt.tecnico.model.BRBroadcast;
+import pt.tecnico.model.Broadcast;
+import pt.tecnico.model.MemoryTransport;
+import pt.tecnico.model.Metrics;
+import pt.tecnico.model.MyCrypto;
+import pt.tecnico.model.ServerChannel;
+import pt.tecnico.model.TcpTransport;
+import pt.tecnico.model.Transport;
+import pt.tecnico.server.ServerTCP;
+import pt.tecnico.server.Twitter;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * End to end benchmark of the broadcast protocols, running whole clusters in this JVM.
+ * <p>
+ * For each N:F configuration, N servers are started on loopback ports with freshly generated keys and their own
+ * temporary databases, and the load generator runs the mix against them. Besides the latencies of the client requests,
+ * every server reports the phases it reaches, so the time spent from the SEND of an instance to its ECHO, READY and
+ * delivery by each server is measured too. An instance carries a whole batch of client requests.
+ * <p>
+ * With transport=memory, the clients and the servers talk through in-memory queues instead of loopback sockets, so
+ * the measures are those of the protocol and its cryptography alone.
+ * <p>
+ * The servers log to cluster.log in the output directory, and the servers of a configuration stay idle in the
+ * background while the next ones run.
+ */
+public class ClusterHarness {
+    private static final Map<String, String> DEFAULTS = Map.ofEntries(
+            Map.entry("configs", "4:1,7:2,10:3"),                   // N:F of each cluster to run
+            Map.entry("broadcast_mode", Broadcast.Mode.bracha.name()),
+            Map.entry("broadcast_window", String.valueOf(BRBroadcast.DEFAULT_WINDOW)),
+            Map.entry("transport", "tcp"),                          // tcp, or memory to skip the kernel networking
+            Map.entry("base_port", "21000"),                        // Ports of the k-th cluster start at base_port + 100*k
+            Map.entry("clients", "20"),
+            Map.entry("spare_clients", "20"),
+            Map.entry("concurrency", "8"),
+            Map.entry("rate", "0"),
+            Map.entry("max_outstanding", "10000"),
+            Map.entry("duration_s", "30"),
+            Map.entry("warmup_s", "5"),
+            Map.entry("mix", "POST:60,POSTGENERAL:10,READ:25,REGISTER:5"),
+            Map.entry("message_size", "64"),
+            Map.entry("read_number", "10"),
+            Map.entry("output_dir", "cluster-results"));
+
+    /**
+     * Main entrypoint of the cluster harness
+     *
+     * @param args Syntax: cluster [option=value ...]
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>(DEFAULTS);
+        LoadGenerator.putOverrides(opts, args, 0);
+        Path dir = Paths.get(opts.get("output_dir"));
+        Files.createDirectories(dir);
+
+        // the servers and the clients print a lot, their output is kept apart from the results
+        PrintStream console = System.out;
+        PrintStream log = new PrintStream(new FileOutputStream(dir.resolve("cluster.log").toFile()), true);
+        System.setOut(log);
+        System.setErr(log);
+
+        String[] configs = opts.get("configs").replace(" ", "").split(",");
+        for (int k = 0; k < configs.length; k++) {
+            String[] config = configs[k].split(":");
+            if (config.length != 2)
+                throw new IllegalArgumentException("Configurations must look like N:F, got " + configs[k]);
+            int n = Integer.parseInt(config[0]);
+            int f = Integer.parseInt(config[1]);
+            Path out = dir.resolve("n" + n + "-f" + f);
+            Files.createDirectories(out);
+            console.printf("\n== N=%d F=%d (%s over %s) ==\n", n, f, opts.get("broadcast_mode"), opts.get("transport"));
+
+            int basePort = Integer.parseInt(opts.get("base_port")) + 100 * k;
+            List<Integer> ports = IntStream.range(basePort, basePort + n).boxed().collect(Collectors.toList());
+            PhaseStats phases = new PhaseStats(n);
+            Transport transport = transport(opts.get("transport"));
+            List<PublicKey> serverKeys = startCluster(ports, f, Broadcast.Mode.valueOf(opts.get("broadcast_mode")),
+                    Integer.parseInt(opts.get("broadcast_window")), transport, phases);
+
+            LoadGenerator generator = new LoadGenerator(new Mix(opts.get("mix")), Integer.parseInt(opts.get("message_size")),
+                    Integer.parseInt(opts.get("read_number")));
+            int concurrency = Integer.parseInt(opts.get("concurrency"));
+            generator.setUp(f, ports, serverKeys, transport, Integer.parseInt(opts.get("clients")),
+                    Integer.parseInt(opts.get("spare_clients")), concurrency);
+            generator.run(Integer.parseInt(opts.get("rate")), concurrency, Integer.parseInt(opts.get("max_outstanding")),
+                    Long.parseLong(opts.get("warmup_s")), Long.parseLong(opts.get("duration_s")), out, console, phases::reset);
+            try (PrintStream summary = new PrintStream(out.resolve("phases.txt").toFile())) {
+                phases.report(out, console, summary);
+            }
+            // every metric of the JVM so far, those of this cluster being under its ports
+            try (PrintStream metrics = new PrintStream(out.resolve("metrics.txt").toFile())) {
+                Metrics.dump(metrics);
+            }
+        }
+        console.printf("\nResults written to %s\n", dir.toAbsolutePath());
+        System.exit(0);
+    }
+
+    /**
+     * @param name String corresponding to the transport option, tcp or memory
+     * @return the Transport of a new cluster, each in-memory cluster having its own
+     */
+    private static Transport transport(String name) {
+        switch (name) {
+            case "tcp":
+                return TcpTransport.INSTANCE;
+            case "memory":
+                return new MemoryTransport();
+            default:
+                throw new IllegalArgumentException("Unknown transport " + name + ", expected tcp or memory");
+        }
+    }
+
+    /**
+     * Start the servers of a cluster in this JVM, each with a new key pair and an empty database
+     *
+     * @param ports     List of the ports of the servers
+     * @param f         int corresponding to the maximum number of faulty servers
+     * @param mode      Broadcast.Mode of the servers
+     * @param window    int corresponding to the maximum number of concurrent instances per origin (bracha)
+     * @param transport Transport the servers and the clients use to reach each other
+     * @param phases    PhaseStats observing the broadcasts of the servers
+     * @return the public keys of the servers, in the order of their ports
+     */
+    private static List<PublicKey> startCluster(List<Integer> ports, int f, Broadcast.Mode mode, int window,
+                                                Transport transport, PhaseStats phases) throws IOException {
+        List<KeyPair> keys = ports.parallelStream().map(port -> {
+            try {
+                return MyCrypto.generateKeyPair();
+            } catch (NoSuchAlgorithmException e) {
+                throw new InternalError(e);
+            }
+        }).collect(Collectors.toList());
+        List<PublicKey> serverKeys = keys.stream().map(KeyPair::getPublic).collect(Collectors.toList());
+        Path databases = Files.createTempDirectory("dpas-cluster");
+        for (int i = 0; i < ports.size(); i++) {
+            // every server sees the others through channels holding its own key pair
+            List<ServerChannel> servers = new ArrayList<>();
+            for (int j = 0; j < ports.size(); j++)
+                servers.add(new ServerChannel(ports.get(j), serverKeys.get(j), keys.get(i).getPublic(), keys.get(i).getPrivate(), transport));
+            Twitter twitter = new Twitter(databases.resolve("server_" + i).toString());
+            Broadcast broadcast = mode.create(f, servers, ports.get(i), window);
+            broadcast.observe(phases.observer());
+            ServerTCP.startInBackground(ports.get(i), twitter, keys.get(i).getPrivate(), f, servers, broadcast, transport);
+        }
+        return serverKeys;
+    }
+}
@@ -0,0 +1,356 @@
+package pt.tecnico.loadgen;
+
+import pt.tecnico.client.DpasClient;
+import pt.tecnico.client.RequestException;
+import pt.tecnico.model.Action;
+import pt.tecnico.model.KeyStoreLoader;
+import pt.tecnico.model.MyCrypto;
+import pt.tecnico.model.ServerChannel;
+import pt.tecnico.model.TcpTransport;
+import pt.tecnico.model.Transport;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Load generator simulating many clients, each with its own key pair, sending a weighted mix of actions to the servers.
+ * <p>
+ * In closed loop (rate=0) a fixed number of workers each send a request and wait for its response before sending the
+ * next one. In open loop (rate>0) requests are started at a fixed rate whatever the response times are, and their
+ * latency is measured from the time they were meant to start, so a stalled server shows in the percentiles instead
+ * of silently lowering the load.
+ */
+public class LoadGenerator {
+    private static final Map<String, String> DEFAULTS = Map.of(
+            "clients", "100",                                       // Registered simulated clients
+            "spare_clients", "100",                                 // Extra key pairs for the REGISTER of the mix
+            "concurrency", "16",                                    // Closed loop workers
+            "rate", "0",                                            // Requests started per second, 0 for closed loop
+            "max_outstanding", "10000",                             // Open loop requests pending at once
+            "duration_s", "60",
+            "warmup_s", "10",
+            "mix", "POST:40,READ:40,POSTGENERAL:5,READGENERAL:10,REGISTER:5",
+            "message_size", "64",
+            "read_number", "10");
+
+    private final Mix mix;
+    private final Map<Action, ActionStats> stats = new EnumMap<>(Action.class);
+    private final List<SimulatedClient> registered = new CopyOnWriteArrayList<>();
+    private final Queue<SimulatedClient> spares = new ConcurrentLinkedQueue<>();   // Clients not registered yet
+    private final AtomicLong posts = new AtomicLong();
+    private final String padding;                                   // Appended to the posts to reach message_size
+    private final int readNumber;
+    private volatile boolean stopped = false;
+
+    /**
+     * Main entrypoint for the loadgen module
+     *
+     * @param args Syntax: loadgen path/to/settings/file [option=value ...]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1)
+            throw new IllegalArgumentException("Syntax: loadgen <path/to/settings/file> [option=value ...]");
+        Map<String, String> opts = new HashMap<>(DEFAULTS);
+        opts.putAll(parseOptions(args[0]));
+        putOverrides(opts, args, 1);
+
+        int f = Integer.parseInt(opts.get("f"));
+        String ports = opts.get("client_ports").replace(" ", "");
+        List<Integer> serverPorts = new ArrayList<>();
+        for (String port : ports.substring(1, ports.length() - 1).split(","))
+            serverPorts.add(Integer.parseInt(port));
+        List<PublicKey> serverKeys = KeyStoreLoader.serverKeys(opts.get("server_keystore_path"), opts.get("server_store_password"),
+                serverPorts.size(), opts.get("server_keys_cache"));
+
+        LoadGenerator generator = new LoadGenerator(new Mix(opts.get("mix")), Integer.parseInt(opts.get("message_size")),
+                Integer.parseInt(opts.get("read_number")));
+        int clients = Integer.parseInt(opts.get("clients"));
+        int concurrency = Integer.parseInt(opts.get("concurrency"));
+        generator.setUp(f, serverPorts, serverKeys, TcpTransport.INSTANCE, clients, Integer.parseInt(opts.get("spare_clients")), concurrency);
+
+        generator.run(Integer.parseInt(opts.get("rate")), concurrency, Integer.parseInt(opts.get("max_outstanding")),
+                Long.parseLong(opts.get("warmup_s")), Long.parseLong(opts.get("duration_s")),
+                Paths.get(opts.getOrDefault("output_dir", "loadgen-results")), System.out, () -> {
+                });
+        System.exit(0);
+    }
+
+    /**
+     * @param opts Map of the options where to put the overrides
+     * @param args String array of the command line arguments
+     * @param from int corresponding to the index of the first option=value argument
+     */
+    static void putOverrides(Map<String, String> opts, String[] args, int from) {
+        for (int i = from; i < args.length; i++) {
+            String[] pair = args[i].split("=", 2);
+            if (pair.length != 2)
+                throw new IllegalArgumentException("Options must look like option=value, got " + args[i]);
+            opts.put(pair[0], pair[1]);
+        }
+    }
+
+    static Map<String, String> parseOptions(String file) throws IOException {
+        Map<String, String> resp = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
+            String strLine;
+            while ((strLine = br.readLine()) != null) {
+                if (strLine.startsWith("#") || !strLine.contains("=")) continue;
+                String[] list = strLine.split("=", 2);
+                resp.put(list[0], list[1]);
+            }
+        }
+        return resp;
+    }
+
+    /**
+     * @param mix         Mix of the actions to send
+     * @param messageSize int corresponding to the length of the posted messages (at most 254 characters)
+     * @param readNumber  int corresponding to the number of announcements each read asks for
+     */
+    public LoadGenerator(Mix mix, int messageSize, int readNumber) {
+        if (messageSize < 1 || messageSize > 254)
+            throw new IllegalArgumentException("Messages must have between 1 and 254 characters");
+        this.mix = mix;
+        this.padding = "x".repeat(messageSize);
+        this.readNumber = readNumber;
+        for (Action action : mix.getActions())
+            stats.put(action, new ActionStats(action));
+    }
+
+    /**
+     * Generate the key pairs of the simulated clients and register the first ones, the others being kept for the
+     * REGISTER requests of the mix
+     *
+     * @param f           int corresponding to the maximum number of faulty servers
+     * @param ports       List of the client ports of the servers
+     * @param serverKeys  List of the public keys of the servers, in the same order
+     * @param transport   Transport used to reach the servers
+     * @param clients     int corresponding to the number of clients to register before the run
+     * @param spare       int corresponding to the number of clients left unregistered
+     * @param concurrency int corresponding to the number of registrations sent at once
+     */
+    public void setUp(int f, List<Integer> ports, List<PublicKey> serverKeys, Transport transport, int clients, int spare, int concurrency) throws InterruptedException {
+        long start = System.nanoTime();
+        // RSA key generation dominates the set up, it is spread over all cores
+        List<SimulatedClient> all = IntStream.range(0, clients + spare).parallel()
+                .mapToObj(i -> new SimulatedClient(f, ports, serverKeys, transport))
+                .collect(Collectors.toList());
+        System.out.printf("Generated %d key pairs in %.1f s\n", all.size(), (System.nanoTime() - start) / 1e9);
+        spares.addAll(all.subList(clients, all.size()));
+
+        start = System.nanoTime();
+        Semaphore permits = new Semaphore(Math.max(concurrency, 1));
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (SimulatedClient c : all.subList(0, clients)) {
+            permits.acquire();
+            pending.add(c.client.register().handle((v, e) -> {
+                permits.release();
+                if (e == null || e.getCause() instanceof RequestException)
+                    registered.add(c);  // already registered by a previous run
+                else
+                    System.out.printf("Could not register a client: %s\n", e.getCause().getMessage());
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        if (registered.isEmpty())
+            throw new IllegalStateException("No client could be registered");
+        System.out.printf("Registered %d clients in %.1f s\n", registered.size(), (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Send the mix until the end of the run, report the latencies measured after the warm up, and close the clients
+     *
+     * @param rate           int corresponding to the number of requests started per second, 0 for closed loop
+     * @param concurrency    int corresponding to the number of closed loop workers
+     * @param maxOutstanding int corresponding to the number of open loop requests that may be pending at once
+     * @param warmup         long corresponding to the length of the warm up, in seconds
+     * @param duration       long corresponding to the length of the measurement, in seconds
+     * @param dir            Path of the directory where to write the results
+     * @param console        PrintStream to print the progress and the summary to
+     * @param onMeasure      Runnable called when the warm up ends, to forget other measurements too
+     */
+    void run(int rate, int concurrency, int maxOutstanding, long warmup, long duration, Path dir, PrintStream console,
+             Runnable onMeasure) throws InterruptedException, IOException {
+        console.printf("Running %s for %d s (+%d s warm up), %s\n", mix, duration, warmup,
+                rate > 0 ? "open loop at " + rate + " req/s" : "closed loop with " + concurrency + " workers");
+        List<Thread> drivers = rate > 0
+                ? List.of(openLoop(rate, maxOutstanding))
+                : IntStream.range(0, concurrency).mapToObj(this::closedLoop).collect(Collectors.toList());
+        drivers.forEach(Thread::start);
+        Thread.sleep(warmup * 1000);
+        stats.values().forEach(ActionStats::reset);
+        onMeasure.run();
+        long start = System.nanoTime();
+        Thread.sleep(duration * 1000);
+        report(dir, (System.nanoTime() - start) / 1e9, console);
+        stopped = true;
+        for (Thread driver : drivers)
+            driver.join(10_000);
+        registered.forEach(c -> c.client.close());
+        spares.forEach(c -> c.client.close());
+    }
+
+    /**
+     * @param index int corresponding to the number of the worker
+     * @return a Thread sending a request at a time until the run is stopped
+     */
+    private Thread closedLoop(int index) {
+        Thread worker = new Thread(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (!stopped) {
+                Action action = mix.pick(random);
+                long start = System.nanoTime();
+                try {
+                    send(action, random).get();
+                    stats.get(action).recordOk(System.nanoTime() - start);
+                } catch (ExecutionException e) {
+                    record(action, e.getCause(), System.nanoTime() - start);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "loadgen-worker-" + index);
+        worker.setDaemon(true);
+        return worker;
+    }
+
+    /**
+     * @param rate           int corresponding to the number of requests to start per second
+     * @param maxOutstanding int corresponding to the number of requests that may be pending at once
+     * @return a Thread starting the requests on schedule until the run is stopped
+     */
+    private Thread openLoop(int rate, int maxOutstanding) {
+        Thread scheduler = new Thread(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Semaphore outstanding = new Semaphore(maxOutstanding);
+            long interval = 1_000_000_000L / rate;
+            long intended = System.nanoTime();
+            while (!stopped) {
+                intended += interval;
+                long wait = intended - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+                Action action = mix.pick(random);
+                if (!outstanding.tryAcquire()) {
+                    stats.get(action).recordSkipped();
+                    continue;
+                }
+                long start = intended;
+                send(action, random).whenComplete((v, e) -> {
+                    outstanding.release();
+                    if (e == null)
+                        stats.get(action).recordOk(System.nanoTime() - start);
+                    else
+                        record(action, e instanceof CompletionException ? e.getCause() : e, System.nanoTime() - start);
+                });
+            }
+        }, "loadgen-scheduler");
+        scheduler.setDaemon(true);
+        return scheduler;
+    }
+
+    private void record(Action action, Throwable cause, long latency) {
+        if (cause instanceof RequestException)
+            stats.get(action).recordRejected(latency);
+        else
+            stats.get(action).recordFailed(latency);
+    }
+
+    /**
+     * Send one request of the given action on behalf of a random simulated client
+     */
+    private CompletableFuture<?> send(Action action, ThreadLocalRandom random) {
+        SimulatedClient c = registered.get(random.nextInt(registered.size()));
+        switch (action) {
+            case REGISTER:
+                SimulatedClient spare = spares.poll();
+                if (spare == null)
+                    return c.client.register();     // no spare left, the servers reject it
+                return spare.client.register().thenRun(() -> registered.add(spare));
+            case POST:
+                return c.client.post(message(), Collections.emptyList());
+            case POSTGENERAL:
+                return c.client.postGeneral(message(), Collections.emptyList());
+            case READ:
+                SimulatedClient board = registered.get(random.nextInt(registered.size()));
+                return c.client.read(board.key, readNumber);
+            case READGENERAL:
+                return c.client.readGeneral(readNumber);
+            case SEARCH:
+                return c.client.search(null, "load", readNumber);
+            default:
+                throw new IllegalArgumentException("Unexpected value: " + action.name() + " for action param.");
+        }
+    }
+
+    private String message() {
+        String message = "load " + posts.incrementAndGet() + " " + padding;
+        return message.substring(0, padding.length());
+    }
+
+    /**
+     * Print the summary of every action and write their latency distributions
+     *
+     * @param dir      Path of the directory where to write the distributions
+     * @param duration double corresponding to the length of the measurement, in seconds
+     * @param console  PrintStream to print the summary to
+     */
+    private void report(Path dir, double duration, PrintStream console) throws IOException {
+        Files.createDirectories(dir);
+        try (PrintStream summary = new PrintStream(dir.resolve("summary.txt").toFile())) {
+            for (ActionStats s : stats.values())
+                s.report(dir, duration, console, summary);
+        }
+        console.printf("Latency distributions written to %s\n", dir.toAbsolutePath());
+    }
+
+    /**
+     * Client with its own key pair, and its own connections to the servers
+     */
+    private static class SimulatedClient {
+        private final String key;               // Base64 encoded public key, also the key of its board
+        private final DpasClient client;
+
+        private SimulatedClient(int f, List<Integer> ports, List<PublicKey> serverKeys, Transport transport) {
+            KeyPair kp;
+            try {
+                kp = MyCrypto.generateKeyPair();
+            } catch (NoSuchAlgorithmException e) {
+                throw new InternalError(e);
+            }
+            List<ServerChannel> servers = new ArrayList<>();
+            for (int i = 0; i < ports.size(); i++)
+                servers.add(new ServerChannel(ports.get(i), serverKeys.get(i), kp.getPublic(), kp.getPrivate(), transport));
+            this.key = MyCrypto.publicKeyToB64String(kp.getPublic());
+            this.client = new DpasClient(f, servers, kp.getPrivate());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package pt.tecnico.loadgen;
+
+import pt.tecnico.model.Action;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Weighted mix of the actions the simulated clients send, parsed from a String like "POST:50,READ:40,REGISTER:10"
+ */
+public class Mix {
+    private final List<Action> actions = new ArrayList<>();
+    private final List<Integer> cumulative = new ArrayList<>();    // Sum of the weights up to each action
+    private int total = 0;
+
+    /**
+     * @param mix String corresponding to the comma separated ACTION:weight pairs
+     * @throws IllegalArgumentException in case an action or a weight is not valid
+     */
+    public Mix(String mix) throws IllegalArgumentException {
+        for (String entry : mix.replace(" ", "").split(",")) {
+            String[] pair = entry.split(":");
+            if (pair.length != 2)
+                throw new IllegalArgumentException("Mix entries must look like ACTION:weight, got " + entry);
+            int weight = Integer.parseInt(pair[1]);
+            if (weight < 0)
+                throw new IllegalArgumentException("Mix weights can not be negative");
+            if (weight == 0)
+                continue;
+            total += weight;
+            actions.add(Action.valueOf(pair[0].toUpperCase()));
+            cumulative.add(total);
+        }
+        if (total == 0)
+            throw new IllegalArgumentException("The mix must have at least one action with a positive weight");
+    }
+
+    /**
+     * @param random Random used to draw the action
+     * @return an action, drawn with the probability of its weight
+     */
+    public Action pick(Random random) {
+        int draw = random.nextInt(total);
+        int i = 0;
+        while (cumulative.get(i) <= draw)
+            i++;
+        return actions.get(i);
+    }
+
+    /**
+     * @return the actions of the mix, in the order they were given
+     */
+    public List<Action> getActions() {
+        return actions;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < actions.size(); i++) {
+            int weight = cumulative.get(i) - (i == 0 ? 0 : cumulative.get(i - 1));
+            sb.append(i == 0 ? "" : ", ").append(actions.get(i)).append(String.format(" %.0f%%", 100.0 * weight / total));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,133 @@
+package pt.tecnico.loadgen;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import pt.tecnico.model.Broadcast.Phase;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Latencies of the phases of the broadcast instances of a cluster running in this JVM, from the phases each server
+ * reports reaching. Every server of the cluster observes its own Broadcast with an observer of its own, and the
+ * time a server spent in each step of an instance is recorded when it delivers it:
+ * <ul>
+ * <li>send-echo: from the SEND of the origin to the ECHO of the server</li>
+ * <li>echo-ready: from the ECHO of the server to its READY</li>
+ * <li>ready-deliver: from the READY of the server to its delivery</li>
+ * <li>send-deliver: from the SEND of the origin to the delivery by the server</li>
+ * </ul>
+ * A phase the server skipped (a READY sent before the SEND arrived, or the receivers of signed_echo, which never
+ * send a READY) is left out of the steps around it, but not out of send-deliver.
+ */
+public class PhaseStats {
+    private static final long HIGHEST_LATENCY_US = 600_000_000;     // Latencies above 10 minutes are clamped
+    private static final String[] STEPS = {"send-echo", "echo-ready", "ready-deliver", "send-deliver"};
+
+    private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();  // Latencies of each step, in microseconds
+    private final Map<String, Sent> sent = new ConcurrentHashMap<>();           // Live instances, by instance id
+    private final int servers;
+
+    /**
+     * @param servers int corresponding to the number of servers of the cluster
+     */
+    public PhaseStats(int servers) {
+        this.servers = servers;
+        for (String step : STEPS)
+            recorders.put(step, new Recorder(HIGHEST_LATENCY_US, 3));
+    }
+
+    /**
+     * @return a new observer, to register on the Broadcast of a single server
+     */
+    public BiConsumer<Phase, String> observer() {
+        Map<String, long[]> reached = new ConcurrentHashMap<>();    // ECHO and READY times of this server, by instance
+        return (phase, instance) -> {
+            long now = System.nanoTime();
+            switch (phase) {
+                case SEND:
+                    sent.put(instance, new Sent(now));
+                    break;
+                case ECHO:
+                    reached.computeIfAbsent(instance, k -> new long[2])[0] = now;
+                    break;
+                case READY:
+                    reached.computeIfAbsent(instance, k -> new long[2])[1] = now;
+                    break;
+                case DELIVER:
+                    long[] times = reached.remove(instance);
+                    delivered(instance, times == null ? new long[2] : times, now);
+                    break;
+            }
+        };
+    }
+
+    private void delivered(String instance, long[] times, long now) {
+        Sent s = sent.get(instance);
+        Long send = s == null ? null : s.time;
+        // forget the instance once every server delivered it
+        if (s != null && s.delivered.incrementAndGet() == servers)
+            sent.remove(instance);
+        long echo = times[0];
+        long ready = times[1];
+        if (send != null && echo != 0)
+            record("send-echo", echo - send);
+        if (echo != 0 && ready >= echo)
+            record("echo-ready", ready - echo);
+        if (ready != 0)
+            record("ready-deliver", now - ready);
+        if (send != null)
+            record("send-deliver", now - send);
+    }
+
+    private void record(String step, long latencyNanos) {
+        recorders.get(step).recordValue(Math.min(Math.max(latencyNanos / 1000, 0), HIGHEST_LATENCY_US));
+    }
+
+    /**
+     * Forget everything recorded so far, at the end of the warm up. The SEND times are kept, so that the instances
+     * started during the warm up are still measured
+     */
+    public void reset() {
+        recorders.values().forEach(Recorder::reset);
+    }
+
+    /**
+     * Print a summary line per step and write the full latency distribution of each step
+     *
+     * @param dir  Path of the directory where to write STEP.hgrm
+     * @param outs PrintStreams to print the summary lines to
+     * @throws FileNotFoundException in case a distribution file can not be created
+     */
+    public void report(Path dir, PrintStream... outs) throws FileNotFoundException {
+        for (String step : STEPS) {
+            Histogram histogram = recorders.get(step).getIntervalHistogram();
+            for (PrintStream out : outs)
+                out.printf("%-14s %8d samples   p50 %8.2f  p90 %8.2f  p99 %8.2f  p99.9 %8.2f  max %8.2f ms\n",
+                        step, histogram.getTotalCount(),
+                        histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(90) / 1e3,
+                        histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3,
+                        histogram.getMaxValue() / 1e3);
+            if (histogram.getTotalCount() == 0)
+                continue;
+            try (PrintStream file = new PrintStream(dir.resolve(step + ".hgrm").toFile())) {
+                // percentiles in milliseconds, readable by the HdrHistogram plotter
+                histogram.outputPercentileDistribution(file, 1000.0);
+            }
+        }
+    }
+
+    private static class Sent {
+        private final long time;                                    // SEND time, in ns
+        private final AtomicInteger delivered = new AtomicInteger();
+
+        private Sent(long time) {
+            this.time = time;
+        }
+    }
+}
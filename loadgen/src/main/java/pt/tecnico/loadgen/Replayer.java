@@ -0,0 +1,374 @@
+package pt.tecnico.loadgen;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import pt.tecnico.model.Action;
+import pt.tecnico.model.KeyStoreLoader;
+import pt.tecnico.model.MyCrypto;
+import pt.tecnico.model.Parameters;
+import pt.tecnico.model.ServerChannel;
+import pt.tecnico.model.Status;
+import pt.tecnico.model.TcpTransport;
+import pt.tecnico.model.Transport;
+import pt.tecnico.server.Capture;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replay the client requests captured by a server (its capture_file) against a test cluster, and report their latency
+ * distribution like the LoadGenerator does.
+ * <p>
+ * Each request is started at the time it was captured, divided by the speed, and its latency measured from that time.
+ * A speed of 0 sends the requests one at a time, in the order they were captured. Every request goes to all servers
+ * and completes when N-F of them answered with the same status, but for the fetch of a read range, which the client
+ * sent to a single server and which goes to a single server, in turn.
+ * <p>
+ * The captured requests are signed with the keys of the clients, unknown to the test cluster. By default every
+ * captured client key is replaced by a test key pair of its own, also as board key, and the requests (and the posts)
+ * signed again; the clients seen without their REGISTER are registered before the replay. With resign=false the
+ * request lines are sent as they were captured, which only suits a cluster holding the same clients.
+ */
+public class Replayer {
+    private static final Map<String, String> DEFAULTS = Map.of(
+            "speed", "1",                                           // Capture time divided by the replay time, 0 for one at a time
+            "resign", "true",                                       // Sign the requests again with test keys
+            "max_outstanding", "10000",                             // Requests pending at once
+            "output_dir", "replay-results");
+    private static final int TIMEOUT = 50 * 1000;                   // Longest wait for a server response, in ms
+
+    private final int f;
+    private final List<Integer> ports;
+    private final List<PublicKey> serverKeys;
+    private final Transport transport;
+    private final boolean resign;
+    private final Map<String, KeyPair> keys = new ConcurrentHashMap<>();    // Test key pair of each captured client key
+    private final Map<Action, ActionStats> stats = new ConcurrentHashMap<>();     // Actions replayed so far
+    private final AtomicInteger fetches = new AtomicInteger();      // Spreads the single server requests
+    private final ExecutorService senders = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "replay-sender");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Main entrypoint of the replayer
+     *
+     * @param args Syntax: Replayer path/to/settings/file capture=path/to/capture [option=value ...]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1)
+            throw new IllegalArgumentException("Syntax: Replayer <path/to/settings/file> capture=<path/to/capture> [option=value ...]");
+        Map<String, String> opts = new HashMap<>(DEFAULTS);
+        opts.putAll(LoadGenerator.parseOptions(args[0]));
+        LoadGenerator.putOverrides(opts, args, 1);
+        if (!opts.containsKey("capture"))
+            throw new IllegalArgumentException("The capture option is missing");
+
+        String ports = opts.get("client_ports").replace(" ", "");
+        List<Integer> serverPorts = new ArrayList<>();
+        for (String port : ports.substring(1, ports.length() - 1).split(","))
+            serverPorts.add(Integer.parseInt(port));
+        List<PublicKey> serverKeys = KeyStoreLoader.serverKeys(opts.get("server_keystore_path"), opts.get("server_store_password"),
+                serverPorts.size(), opts.get("server_keys_cache"));
+
+        Replayer replayer = new Replayer(Integer.parseInt(opts.get("f")), serverPorts, serverKeys, TcpTransport.INSTANCE,
+                Boolean.parseBoolean(opts.get("resign")));
+        Path capture = Paths.get(opts.get("capture"));
+        replayer.setUp(capture);
+        replayer.run(capture, Double.parseDouble(opts.get("speed")), Integer.parseInt(opts.get("max_outstanding")),
+                Paths.get(opts.get("output_dir")), System.out);
+        System.exit(0);
+    }
+
+    /**
+     * @param f          int corresponding to the maximum number of faulty servers
+     * @param ports      List of the client ports of the servers
+     * @param serverKeys List of the public keys of the servers, in the same order
+     * @param transport  Transport used to reach the servers
+     * @param resign     true to replace the captured client keys by test keys, false to send the requests as captured
+     */
+    public Replayer(int f, List<Integer> ports, List<PublicKey> serverKeys, Transport transport, boolean resign) {
+        this.f = f;
+        this.ports = ports;
+        this.serverKeys = serverKeys;
+        this.transport = transport;
+        this.resign = resign;
+    }
+
+    /**
+     * Generate a test key pair for every client of the capture and register the clients whose REGISTER was not
+     * captured, nothing to do without resigning
+     *
+     * @param capture Path of the capture file
+     * @throws IOException in case the capture can not be read
+     */
+    public void setUp(Path capture) throws IOException {
+        if (!resign)
+            return;
+        long start = System.nanoTime();
+        Set<String> clients = new LinkedHashSet<>();
+        Set<String> boards = new LinkedHashSet<>();             // Board keys, of clients that may not be captured
+        Set<String> unregistered = new LinkedHashSet<>();
+        try (Capture.Reader reader = new Capture.Reader(capture)) {
+            for (Capture.Frame frame = reader.next(); frame != null; frame = reader.next()) {
+                JSONObject req = parse(frame.request);
+                if (req == null || !req.has(Parameters.client_public_key.name()))
+                    continue;
+                String client = req.getString(Parameters.client_public_key.name());
+                if (clients.add(client) && !Action.REGISTER.name().equals(req.optString(Parameters.action.name())))
+                    unregistered.add(client);
+                if (req.has(Parameters.board_public_key.name()))
+                    boards.add(req.getString(Parameters.board_public_key.name()));
+            }
+        }
+        boards.addAll(clients);
+        // RSA key generation dominates the set up, it is spread over all cores
+        boards.parallelStream().forEach(key -> keys.put(key, generateKeyPair()));
+        System.out.printf("Generated %d key pairs in %.1f s\n", keys.size(), (System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        List<CompletableFuture<Status>> pending = new ArrayList<>();
+        for (String client : unregistered) {
+            JSONObject register = new JSONObject();
+            register.put(Parameters.action.name(), Action.REGISTER.name());
+            pending.add(send(keys.get(client), register, null, false));
+        }
+        long registered = pending.stream().map(CompletableFuture::join).filter(Status.OK::equals).count();
+        System.out.printf("Registered %d of %d clients seen without their REGISTER in %.1f s\n", registered,
+                unregistered.size(), (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Replay the capture, then report the latencies
+     *
+     * @param capture        Path of the capture file
+     * @param speed          double corresponding to the capture time divided by the replay time, 0 for one at a time
+     * @param maxOutstanding int corresponding to the number of requests that may be pending at once
+     * @param dir            Path of the directory where to write the results
+     * @param console        PrintStream to print the progress and the summary to
+     * @throws IOException in case the capture can not be read or the results written
+     */
+    public void run(Path capture, double speed, int maxOutstanding, Path dir, PrintStream console) throws IOException {
+        console.printf("Replaying %s %s, %s\n", capture, speed > 0 ? "at " + speed + "x" : "one request at a time",
+                resign ? "signed with test keys" : "as captured");
+        Semaphore outstanding = new Semaphore(maxOutstanding);
+        long start = System.nanoTime();
+        long skipped = 0;
+        try (Capture.Reader reader = new Capture.Reader(capture)) {
+            for (Capture.Frame frame = reader.next(); frame != null; frame = reader.next()) {
+                JSONObject req = parse(frame.request);
+                Action action = req == null ? null : action(req);
+                if (action == null) {
+                    skipped++;
+                    continue;
+                }
+                long intended = speed > 0 ? start + (long) (frame.offset * 1000 / speed) : System.nanoTime();
+                long wait = intended - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+                ActionStats s = stats.computeIfAbsent(action, ActionStats::new);
+                if (!outstanding.tryAcquire()) {
+                    s.recordSkipped();
+                    continue;
+                }
+                CompletableFuture<?> done = replay(req, frame.request).handle((status, e) -> {
+                    long latency = System.nanoTime() - intended;
+                    if (Status.OK.equals(status))
+                        s.recordOk(latency);
+                    else if (Status.CLIENT_ERROR.equals(status))
+                        s.recordRejected(latency);
+                    else
+                        s.recordFailed(latency);
+                    outstanding.release();
+                    return null;
+                });
+                if (speed == 0)
+                    done.join();
+            }
+        }
+        // every permit is back once the last pending request was recorded
+        outstanding.acquireUninterruptibly(maxOutstanding);
+        double duration = (System.nanoTime() - start) / 1e9;
+        if (skipped > 0)
+            console.printf("Skipped %d captured lines that are not requests of known clients\n", skipped);
+        Files.createDirectories(dir);
+        try (PrintStream summary = new PrintStream(dir.resolve("summary.txt").toFile())) {
+            for (Action action : Action.values()) {
+                if (stats.containsKey(action))
+                    stats.get(action).report(dir, duration, console, summary);
+            }
+        }
+        console.printf("Latency distributions written to %s\n", dir.toAbsolutePath());
+        senders.shutdown();
+    }
+
+    /**
+     * Send a captured request as the client did: to every server, or to a single one for the fetch of a read range
+     *
+     * @param req  JSONObject corresponding to the captured request
+     * @param line String corresponding to the captured request line
+     * @return a CompletableFuture of the status N-F servers agreed on, null if they did not
+     */
+    private CompletableFuture<Status> replay(JSONObject req, String line) {
+        String action = req.getString(Parameters.action.name());
+        boolean single = (Action.READ.name().equals(action) || Action.READGENERAL.name().equals(action))
+                && !req.optBoolean(Parameters.digest_only.name());
+        if (!resign)
+            return send(null, null, line, single);
+        KeyPair kp = keys.get(req.getString(Parameters.client_public_key.name()));
+        JSONObject body = new JSONObject(line);
+        body.remove(Parameters.signature.name());
+        body.remove(Parameters.client_public_key.name());
+        body.remove(Parameters.client_nonce.name());
+        body.remove(Parameters.trace_id.name());
+        if (body.has(Parameters.board_public_key.name()))
+            body.put(Parameters.board_public_key.name(), MyCrypto.publicKeyToB64String(
+                    keys.get(body.getString(Parameters.board_public_key.name())).getPublic()));
+        if (body.has(Parameters.post_signature.name()))
+            body.put(Parameters.post_signature.name(), signPost(body, kp));
+        return send(kp, body, null, single);
+    }
+
+    /**
+     * @param kp     KeyPair signing the request, null to send the line as it is
+     * @param body   JSONObject corresponding to the request to sign, null to send the line as it is
+     * @param line   String corresponding to the request line to send as it is, null to sign the body
+     * @param single true to send the request to a single server
+     * @return a CompletableFuture of the status N-F servers (or the single one) agreed on, null if they did not
+     */
+    private CompletableFuture<Status> send(KeyPair kp, JSONObject body, String line, boolean single) {
+        List<Integer> targets = new ArrayList<>();
+        if (single)
+            targets.add(Math.floorMod(fetches.getAndIncrement(), ports.size()));
+        else
+            for (int i = 0; i < ports.size(); i++)
+                targets.add(i);
+        Quorum quorum = new Quorum(single ? 1 : ports.size() - f, targets.size());
+        String nonce = MyCrypto.getRandomNonce();
+        for (int i : targets) {
+            CompletableFuture.supplyAsync(() -> kp != null ? ask(i, kp, body, nonce) : ask(i, line), senders)
+                    .whenComplete((status, e) -> quorum.answer(e == null ? status : null));
+        }
+        return quorum.result;
+    }
+
+    /**
+     * @return the status a server answered to a signed request, null if it failed
+     */
+    private Status ask(int server, KeyPair kp, JSONObject body, String nonce) {
+        ServerChannel channel = new ServerChannel(ports.get(server), serverKeys.get(server), kp.getPublic(), kp.getPrivate(), transport);
+        try {
+            return Status.valueOf(channel.send(body, nonce).getString(Parameters.status.name()));
+        } catch (Exception e) {
+            return null;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the status a server answered to a request line sent as captured, whose response can not be checked
+     */
+    private Status ask(int server, String line) {
+        try (Transport.Channel channel = transport.connect(ports.get(server))) {
+            channel.setTimeout(TIMEOUT);
+            channel.writeLine(line);
+            return Status.valueOf(new JSONObject(channel.readLine()).getString(Parameters.status.name()));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static String signPost(JSONObject body, KeyPair kp) {
+        JSONObject postData = new JSONObject();
+        postData.put(Parameters.message.name(), body.getString(Parameters.message.name()));
+        postData.put(Parameters.announcements.name(), body.getJSONArray(Parameters.announcements.name()));
+        postData.put(Parameters.action.name(), body.getString(Parameters.action.name()));
+        try {
+            return MyCrypto.digestAndSignToB64(postData.toString().getBytes(), kp.getPrivate());
+        } catch (NoSuchAlgorithmException | IllegalBlockSizeException | InvalidKeyException | BadPaddingException | NoSuchPaddingException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    private static KeyPair generateKeyPair() {
+        try {
+            return MyCrypto.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    /**
+     * @return the request of a captured line, null if it is not a JSON object
+     */
+    private static JSONObject parse(String line) {
+        try {
+            return new JSONObject(line);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the Action of a captured request, null if it has none or if it can not be replayed
+     */
+    private Action action(JSONObject req) {
+        try {
+            Action action = Action.valueOf(req.getString(Parameters.action.name()));
+            if (resign && !keys.containsKey(req.optString(Parameters.client_public_key.name())))
+                return null;
+            return action;
+        } catch (IllegalArgumentException | JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Answers of the servers to one request, completed once enough of them agree on a status, or can not anymore
+     */
+    private static class Quorum {
+        private final CompletableFuture<Status> result = new CompletableFuture<>();
+        private final Map<Status, Integer> counts = new EnumMap<>(Status.class);
+        private final int needed;
+        private int missing;                // Servers that did not answer yet
+
+        private Quorum(int needed, int servers) {
+            this.needed = needed;
+            this.missing = servers;
+        }
+
+        private synchronized void answer(Status status) {
+            missing--;
+            if (status != null && counts.merge(status, 1, Integer::sum) >= needed)
+                result.complete(status);
+            else if (missing == 0)
+                result.complete(null);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package pt.tecnico.loadgen;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Rebuild the critical path of the traced requests from the span files of the client and of every server.
+ * <p>
+ * A client request completes with the last reply it waited for, the one that made the quorum, so its critical path
+ * goes through the server that sent it. The time of that reply is split in consecutive segments, taken from the
+ * spans of the client and of that server:
+ * <ul>
+ * <li>sign: the client signs the request</li>
+ * <li>send: the request reaches the server and waits for a thread of its client lane</li>
+ * <li>verify: the server checks the signature of the request</li>
+ * <li>broadcast: the request waits for its batch and the broadcast of the batch to be delivered</li>
+ * <li>handle: the server executes the request, database writes (db) included</li>
+ * <li>respond: the rest of the batch is handled and the response signed and written</li>
+ * <li>receive: the response reaches the client, which checks its signature</li>
+ * <li>client: the time of the request outside that reply, like the fan out and the digest round of the reads</li>
+ * </ul>
+ * A request the server handled from the batch of another server before broadcasting it has no handle segment.
+ * The spans of different processes are aligned within a millisecond, so the segments around a change of process
+ * may be off by as much.
+ */
+public class TraceReport {
+    private static final String[] SEGMENTS = {"sign", "send", "verify", "broadcast", "handle", "respond", "receive", "client"};
+    private static final long SKEW_US = 2000;               // Clock offset allowed between two processes, in us
+
+    private final Map<String, List<Span>> traces = new HashMap<>();     // Spans of each trace id
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0)
+            throw new IllegalArgumentException("Syntax: TraceReport [slowest=10] span_file...");
+        int slowest = 10;
+        TraceReport report = new TraceReport();
+        for (String arg : args) {
+            if (arg.startsWith("slowest="))
+                slowest = Integer.parseInt(arg.substring("slowest=".length()));
+            else
+                report.read(arg);
+        }
+        report.print(System.out, slowest);
+    }
+
+    /**
+     * @param file String corresponding to the path of a span file
+     * @throws IOException in case the file can not be read
+     */
+    void read(String file) throws IOException {
+        try (Stream<String> lines = Files.lines(Paths.get(file))) {
+            lines.map(line -> line.split("\t")).filter(f -> f.length == 6).forEach(f ->
+                    traces.computeIfAbsent(f[0], k -> new ArrayList<>()).add(
+                            new Span(f[1], f[2], Long.parseLong(f[3]), Long.parseLong(f[4]), f[5])));
+        }
+    }
+
+    /**
+     * Print the mean critical path of each action, then the critical path of the slowest requests
+     *
+     * @param out     PrintStream to print to
+     * @param slowest int corresponding to the number of slowest requests to print
+     */
+    void print(PrintStream out, int slowest) {
+        List<Path> paths = new ArrayList<>();
+        traces.forEach((id, spans) -> {
+            Path p = criticalPath(id, spans);
+            if (p != null)
+                paths.add(p);
+        });
+        out.printf("%d traced requests\n\n", paths.size());
+        Map<String, List<Path>> byAction = new TreeMap<>();
+        paths.forEach(p -> byAction.computeIfAbsent(p.action, k -> new ArrayList<>()).add(p));
+        out.printf("%-12s %6s %9s", "mean ms", "count", "total");
+        for (String segment : SEGMENTS)
+            out.printf(" %9s", segment);
+        out.printf(" %9s\n", "(db)");
+        byAction.forEach((action, list) -> {
+            out.printf("%-12s %6d %9.2f", action, list.size(), list.stream().mapToLong(p -> p.total).average().orElse(0) / 1e3);
+            for (int i = 0; i < SEGMENTS.length; i++) {
+                int s = i;
+                out.printf(" %9.2f", list.stream().mapToLong(p -> p.segments[s]).average().orElse(0) / 1e3);
+            }
+            out.printf(" %9.2f\n", list.stream().mapToLong(p -> p.db).average().orElse(0) / 1e3);
+        });
+        out.printf("\nSlowest requests, in ms\n");
+        paths.stream().sorted(Comparator.comparingLong((Path p) -> p.total).reversed()).limit(slowest).forEach(p -> {
+            out.printf("%s %s %.2f through %s:", p.id, p.action, p.total / 1e3, p.server);
+            for (int i = 0; i < SEGMENTS.length; i++)
+                out.printf(" %s %.2f", SEGMENTS[i], p.segments[i] / 1e3);
+            out.printf(" (db %.2f)\n", p.db / 1e3);
+        });
+    }
+
+    /**
+     * @return the critical Path of a request, null if the client spans of the request are missing
+     */
+    private static Path criticalPath(String id, List<Span> spans) {
+        Span request = find(spans, "client", "request", Long.MIN_VALUE, Long.MAX_VALUE);
+        if (request == null)
+            return null;
+        // the reply that completed the quorum is the last one the client waited for
+        Span reply = null;
+        for (Span s : spans) {
+            if (s.where.equals("client") && s.name.equals("reply") && s.end() <= request.end()
+                    && (reply == null || s.end() > reply.end()))
+                reply = s;
+        }
+        if (reply == null)
+            return null;
+        String server = "server-" + reply.detail;
+        long from = reply.start - SKEW_US, to = reply.end() + SKEW_US;
+        Span sign = find(spans, "client", "sign", reply.start, reply.end());
+        Span verify = find(spans, server, "verify", from, to);
+        Span order = find(spans, server, "order", from, to);
+        Span respond = find(spans, server, "respond", from, to);
+        Span handle = find(spans, server, "handle", Long.MIN_VALUE, to);
+
+        // the boundaries of the segments, kept in order in case of clock offsets
+        long[] at = new long[SEGMENTS.length - 1];
+        at[0] = sign == null ? reply.start : sign.end();
+        at[1] = verify == null ? at[0] : verify.start;
+        at[2] = order == null ? at[1] : order.start;
+        at[3] = handle == null || order == null || handle.start < order.start ? (order == null ? at[2] : order.end()) : handle.start;
+        at[4] = handle == null || handle.start < at[3] ? at[3] : handle.end();
+        at[5] = respond == null ? at[4] : respond.end();
+        at[6] = reply.end();
+        long[] segments = new long[SEGMENTS.length];
+        long previous = reply.start;
+        for (int i = 0; i < at.length; i++) {
+            long boundary = Math.min(Math.max(at[i], previous), reply.end());
+            segments[i] = boundary - previous;
+            previous = boundary;
+        }
+        segments[SEGMENTS.length - 1] = request.duration - reply.duration;
+        long db = 0;
+        if (handle != null && segments[4] > 0) {
+            for (Span s : spans) {
+                if (s.where.equals(server) && s.name.startsWith("db.") && s.start >= handle.start && s.end() <= handle.end())
+                    db += s.duration;
+            }
+        }
+        return new Path(id, request.detail, server, request.duration, segments, db);
+    }
+
+    /**
+     * @return the last span of a process with a name, starting within a window, null if there is none
+     */
+    private static Span find(List<Span> spans, String where, String name, long from, long to) {
+        Span found = null;
+        for (Span s : spans) {
+            if (s.where.equals(where) && s.name.equals(name) && s.start >= from && s.start <= to
+                    && (found == null || s.start > found.start))
+                found = s;
+        }
+        return found;
+    }
+
+    private static class Span {
+        private final String where;
+        private final String name;
+        private final long start;       // us since the epoch
+        private final long duration;    // us
+        private final String detail;
+
+        private Span(String where, String name, long start, long duration, String detail) {
+            this.where = where;
+            this.name = name;
+            this.start = start;
+            this.duration = duration;
+            this.detail = detail;
+        }
+
+        private long end() {
+            return start + duration;
+        }
+    }
+
+    private static class Path {
+        private final String id;
+        private final String action;
+        private final String server;        // Server of the reply that completed the quorum
+        private final long total;           // us
+        private final long[] segments;      // us, in the order of SEGMENTS
+        private final long db;              // us, within the handle segment
+
+        private Path(String id, String action, String server, long total, long[] segments, long db) {
+            this.id = id;
+            this.action = action;
+            this.server = server;
+            this.total = total;
+            this.segments = segments;
+            this.db = db;
+        }
+    }
+}
@@ -9,5 +9,6 @@ public enum Action {
     READ,
     READGENERAL,
     POST,
-    POSTGENERAL
+    POSTGENERAL,
+    SEARCH
 }
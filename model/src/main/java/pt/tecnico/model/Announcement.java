@@ -1,5 +1,8 @@
 package pt.tecnico.model;
 
+import org.json.JSONObject;
+
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -38,6 +41,17 @@ public class Announcement implements Comparable {
         this.setId(id);
     }
 
+    /**
+     * @param jo JSONObject corresponding to an announcement sent by a server
+     * @return the Announcement it describes
+     */
+    public static Announcement fromJSON(JSONObject jo) {
+        List<Integer> references = new ArrayList<>();
+        jo.getJSONArray("announcements").forEach(id -> references.add((Integer) id));
+        return new Announcement(jo.getString("owner"), jo.getString("signature"), jo.getString("message"),
+                references, jo.getInt("id"));
+    }
+
     @Override
     public int compareTo(Object o) {                        // to allow sorting by ids
         Integer compareId = ((Announcement) o).getId();
@@ -2,169 +2,597 @@ package pt.tecnico.model;
 
 import org.json.JSONObject;
 
-import java.io.IOException;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.*;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implements a Byzantine Fault Tolerant Reliable Broadcast protocol
+ * <p>
+ * Only the SEND message carries the payload, ECHO and READY messages carry its digest and the instance id. A server
+ * that has to deliver a payload it never received FETCHes it from the servers that voted for it, which answer with
+ * a PAYLOAD message. A server voting for the payload later is asked right away, and all the voters are asked again
+ * while the payload does not come, as they may not have had it yet, or be slow or faulty.
+ * <p>
+ * Every server numbers the instances it originates with a sequence number, within an epoch set when it starts. Up to
+ * window instances of the same origin run at the same time, and their payloads are delivered in sequence order, the
+ * instances completed out of order waiting for the ones before them. Only the origin itself, with a SEND, or more than
+ * f servers, one of them at least being correct, move it to a new epoch: until then the messages of the new epoch
+ * wait, so that a faulty server can not make the others drop the live instances of a correct one.
  */
-public class BRBroadcast {
+public class BRBroadcast extends QueuedBroadcast {
+    public static final int DEFAULT_WINDOW = 32;                       // Default number of concurrent instances per origin
+    private static final int MAX_RECENT_PAYLOADS = 1000;               // Maximum number of delivered payloads kept to answer FETCH messages
+    private static final int DEFERRED_PER_WINDOW = 4;                  // Messages kept per origin and server beyond its window or epoch, per window slot
+    private static final long FETCH_TIMEOUT = 2000;                    // Time after which a payload is FETCHed again, in ms
+
     private final List<ServerChannel> servers;
+    private final Map<Integer, PeerLink> links;             // Long-lived links to the other servers, by port
     private final int faultyServersCount;
-    private final List<JSONObject> deliveredMessages;
-    private final Map<String, List<ServerChannel>> echoSent;
-    private final Map<String, List<ServerChannel>> readySent;
+    private final int window;                               // Maximum number of concurrent instances per origin
+    private final Map<Integer, Origin> origins;             // Instances of every server, by port
+    private final LinkedHashMap<String, JSONObject> recentPayloads; // Last delivered payloads, by digest
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final ScheduledExecutorService refetcher;       // FETCHes again the payloads that did not come
     private final int port;
-    private final ExecutorService executorService;
+    private long nextSequence = 0;                          // Sequence number of our next instance, guarded by our Origin
 
     /**
-     * Constructs an instance of the Byzantine Reliable Broadcast protocol class
+     * Constructs an instance of the Byzantine Reliable Broadcast protocol class, whose messages are only run once
+     * start() is called
      *
      * @param faultyServersCount int corresponding to the maximum number of nodes that may be faulty in the network
      * @param servers            list of servers
+     * @param port               int corresponding to the port of this server
      */
     public BRBroadcast(int faultyServersCount, List<ServerChannel> servers, int port) {
-        if (servers.size() > 3 * faultyServersCount) {
-            this.faultyServersCount = faultyServersCount;
-            this.servers = servers;
-            this.deliveredMessages = new CopyOnWriteArrayList<>();
-            this.echoSent = new ConcurrentHashMap<>();
-            this.readySent = new ConcurrentHashMap<>();
-            this.port = port;
-            this.executorService = Executors.newFixedThreadPool(servers.size() * 4);
-        } else {
+        this(faultyServersCount, servers, port, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Constructs an instance of the Byzantine Reliable Broadcast protocol class, whose messages are only run once
+     * start() is called
+     *
+     * @param faultyServersCount int corresponding to the maximum number of nodes that may be faulty in the network
+     * @param servers            list of servers
+     * @param port               int corresponding to the port of this server
+     * @param window             int corresponding to the maximum number of concurrent instances per origin
+     */
+    public BRBroadcast(int faultyServersCount, List<ServerChannel> servers, int port, int window) {
+        super("brb-protocol", port);
+        if (servers.size() <= 3 * faultyServersCount)
             throw new IllegalArgumentException("Number of servers doesn't satisfy N>3f assumption");
+        if (window < 1)
+            throw new IllegalArgumentException("Broadcast window must be positive");
+        this.faultyServersCount = faultyServersCount;
+        this.servers = servers;
+        this.window = window;
+        this.port = port;
+        this.recentPayloads = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JSONObject> eldest) {
+                return size() > MAX_RECENT_PAYLOADS;
+            }
+        };
+        this.links = new HashMap<>();
+        this.origins = new HashMap<>();
+        for (ServerChannel s : servers) {
+            if (s.port != port)
+                links.put(s.port, new PeerLink(s));
+            origins.put(s.port, new Origin(s.port));
         }
+        // Our epoch, so that the others drop what they kept of our previous run
+        origins.get(port).epoch = System.currentTimeMillis();
+        this.refetcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "brb-refetcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    void started() {
+        refetcher.scheduleAtFixedRate(this::refetch, FETCH_TIMEOUT, FETCH_TIMEOUT / 2, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Broadcast method that sends a message to each server of the BRBroadcast object
      *
-     * @param broadcast String corresponding to the "broadcast" JSON key. Can be "SEND", "ECHO" or "READY"
+     * @param broadcast String corresponding to the "broadcast" JSON key. Can be "SEND", "ECHO", "READY", "FETCH" or "PAYLOAD"
      * @param msg       JSONObject corresponding to the message to broadcast
      */
     public void broadcast(String broadcast, JSONObject msg) {
         msg = new JSONObject(msg.toString());
         msg.put(Parameters.broadcast.name(), broadcast);
-        int errors = 0;
-        for (ServerChannel s : servers) {
-            if (s.port == port) continue;
-            final JSONObject finalMsg = new JSONObject(msg.toString());
-            executorService.submit(() -> s.send(finalMsg).toString());
-        }
-        if (errors > faultyServersCount) {
-            throw new IllegalStateException(String.format("More than F(%d) servers responded with an error\n", faultyServersCount));
-        }
+        // the link numbers and signs the message again for each peer
+        msg.remove(Parameters.message_id.name());
+        msg.remove(Parameters.signature.name());
+        for (PeerLink link : links.values())
+            link.send(msg);
+        sentCount.addAndGet(links.size());
     }
 
     /**
-     * Broadcast method that sends a SEND message to each server of the BRBroadcast object
+     * Broadcast method that sends a SEND message to each server of the BRBroadcast object, waiting for room in our
+     * window first
      *
      * @param msg JSONObject corresponding to the message to broadcast
      */
+    @Override
     public void broadcast(JSONObject msg) {
-        broadcast("SEND", msg);
-    }
-
-    public JSONObject listen() throws BadResponseException, BadSignatureException, IOException {
-        return listen(null, null);
+        BroadcastEvents.Send event = new BroadcastEvents.Send();
+        event.begin();
+        String body = msg.toString();
+        JSONObject payload = new JSONObject(body);
+        String digest = digest(payload);
+        Origin origin = origins.get(port);
+        JSONObject send;
+        synchronized (origin) {
+            while (nextSequence >= origin.next + window) {
+                try {
+                    origin.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InternalError(e);
+                }
+            }
+            // We originate this instance: the message is handled locally, so its delivery must not be returned again
+            Instance instance = origin.instance(nextSequence++);
+            instance.payload = payload;
+            instance.payloadDigest = digest;
+            instance.local = true;
+            instance.echoSent = true;
+            instance.votes(instance.echoes, digest).add(port);
+            send = instanceId(origin, instance.sequence);
+        }
+        String instance = name(send);
+        reached(Phase.SEND, instance);
+        reached(Phase.ECHO, instance);
+        send.put(Parameters.payload.name(), payload);
+        broadcast("SEND", send);
+        event.end();
+        if (event.shouldCommit()) {
+            event.server = port;
+            event.instance = instance;
+            event.payloadSize = body.length();
+            event.commit();
+        }
     }
 
     /**
-     * Listen method to wait for any server to receive a new message, then apply the
      * Byzantine Fault Tolerant Reliable Broadcast protocol
      *
-     * @param firstMessage Initial JSONObject message sent by the server upon start
-     * @param firstSc      ServerChannel whose thread runs this method
-     * @return JSONObject in case a message that was not yet delivered was received
-     */
-    public JSONObject listen(JSONObject firstMessage, ServerChannel firstSc) throws BadResponseException, BadSignatureException, IOException {
-        JSONObject response = null;
-        while (response == null) {
-            if (firstSc != null) {
-                response = new JSONObject(firstMessage.toString());
-                response = dealWithResponse(response, firstSc);
-            } else {
-                for (ServerChannel s : servers) {
-                    try {
-                        response = executorService.submit(() -> dealWithResponse(s.read(), s)).get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        e.printStackTrace();
+     * @param response JSONObject message received
+     * @param s        ServerChannel who received the message
+     */
+    @Override
+    void handle(JSONObject response, ServerChannel s) {
+        String broadcast = response.getString(Parameters.broadcast.name());
+        // The origin of a SEND is its sender
+        int originPort = broadcast.equals("SEND") ? s.port : response.getInt(Parameters.origin.name());
+        Origin origin = origins.get(originPort);
+        if (origin == null)
+            return;
+        long epoch = response.getLong(Parameters.epoch.name());
+        long sequence = response.getLong(Parameters.sequence.name());
+        JSONObject payload = response.optJSONObject(Parameters.payload.name());
+        // The digest is computed by ourselves whenever the payload is attached, so it can not be forged
+        String digest = payload != null ? digest(payload) : response.getString(Parameters.payload_digest.name());
+        if (broadcast.equals("FETCH")) {
+            answerFetch(origin, epoch, sequence, digest, s);
+            return;
+        }
+        List<JSONObject> delivered = new ArrayList<>();
+        synchronized (origin) {
+            if (epoch < origin.epoch)
+                return;     // the origin restarted since
+            if (epoch > origin.epoch) {
+                if (!broadcast.equals("SEND") && !inEpoch(origin, s, epoch)) {
+                    // wait for the origin, or for more than f servers, to be in the new epoch
+                    defer(origin, response, s);
+                    return;
+                }
+                origin.restart(epoch);
+            }
+            if (sequence < origin.next)
+                return;     // already delivered
+            if (sequence >= origin.next + window) {
+                // too far ahead: keep the message until the window slides
+                defer(origin, response, s);
+                return;
+            }
+            Instance instance = origin.instance(sequence);
+            switch (broadcast) {
+                case "SEND":
+                    if (instance.payload != null)
+                        return;     // a single SEND per instance
+                    instance.payload = payload;
+                    instance.payloadDigest = digest;
+                    // The SEND also stands for the ECHO of its sender
+                    instance.votes(instance.echoes, digest).add(s.port);
+                    if (!instance.echoSent) {
+                        instance.echoSent = true;
+                        instance.votes(instance.echoes, digest).add(port);
+                        broadcast("ECHO", vote(origin, instance, digest));
+                        reached(Phase.ECHO, name(origin, instance.sequence));
                     }
+                    break;
+                case "ECHO":
+                    instance.votes(instance.echoes, digest).add(s.port);
+                    fetchFromNewVoter(origin, instance, digest, s);
+                    break;
+                case "READY":
+                    instance.votes(instance.readies, digest).add(s.port);
+                    fetchFromNewVoter(origin, instance, digest, s);
+                    break;
+                case "PAYLOAD":
+                    // Answer to our FETCH, the payload may be all we were missing to deliver
+                    if (digest.equals(instance.fetched)) {
+                        instance.payload = payload;
+                        instance.payloadDigest = digest;
+                    }
+                    break;
+                default:
+                    // In any other broadcast value (should not happen), there is nothing to do
+                    return;
+            }
+            // If more than (N+f)/2 ECHO messages or more than f READY messages were received, send READY message
+            if (!instance.readySent && (instance.votes(instance.echoes, digest).size() > (servers.size() + faultyServersCount) / 2
+                    || instance.votes(instance.readies, digest).size() > faultyServersCount)) {
+                instance.readySent = true;
+                instance.votes(instance.readies, digest).add(port);
+                broadcast("READY", vote(origin, instance, digest));
+                reached(Phase.READY, name(origin, instance.sequence));
+            }
+            // If more than 2*f READY messages were received, DELIVER the message, once we have its payload
+            if (instance.deliveredDigest == null && instance.votes(instance.readies, digest).size() > 2 * faultyServersCount) {
+                if (digest.equals(instance.payloadDigest)) {
+                    instance.deliveredDigest = digest;
+                } else if (instance.fetched == null) {
+                    instance.fetched = digest;
+                    fetch(origin, instance, voters(instance, digest));
                 }
             }
+            deliverInOrder(origin, delivered);
         }
+        delivered.forEach(this::deliver);
+        replayDeferred(origin);
+    }
 
-        return response;
+    /**
+     * Keep a message of an origin for later, within a bound per sender so that a faulty server only fills its own share
+     *
+     * @param origin  Origin of the message
+     * @param message JSONObject corresponding to the message
+     * @param s       ServerChannel of the server that sent it
+     */
+    private void defer(Origin origin, JSONObject message, ServerChannel s) {
+        if (origin.deferred.stream().filter(d -> d.sc.port == s.port).count() < DEFERRED_PER_WINDOW * window)
+            origin.deferred.add(new Deferred(message, s));
+        else
+            Log.warn("BRB: too many early messages of server %d from server %d, dropping a %s message", origin.port,
+                    s.port, message.getString(Parameters.broadcast.name()));
     }
 
     /**
-     * Byzantine Fault Tolerant Reliable Broadcast protocol
+     * @param origin Origin of the message
+     * @param s      ServerChannel of the server that sent a message of a new epoch of the origin
+     * @param epoch  long corresponding to the new epoch
+     * @return true if more than f servers, this one included, sent messages of that epoch, one of them at least being correct
+     */
+    private boolean inEpoch(Origin origin, ServerChannel s, long epoch) {
+        Set<Integer> senders = new HashSet<>();
+        senders.add(s.port);
+        for (Deferred d : origin.deferred) {
+            if (d.epoch() == epoch)
+                senders.add(d.sc.port);
+        }
+        return senders.size() > faultyServersCount;
+    }
+
+    /**
+     * Deliver the completed instances at the head of the window of an origin, in sequence order
      *
-     * @param response JSONObject message received
-     * @param s        ServerChannel who received the message
-     * @return JSONObject in case a message that was not yet delivered was received
-     */
-    private JSONObject dealWithResponse(JSONObject response, ServerChannel s) throws BadResponseException, BadSignatureException, IOException {
-        if (response != null) {
-            String clientNonce = response.getString(Parameters.client_nonce.name());
-            // Check that the message is not already delivered
-            if (!deliveredMessages.contains(response)) {
-                String broadcast = response.getString(Parameters.broadcast.name());
-                if (broadcast.equals("SEND") && !echoSent.containsKey(clientNonce)) {
-                    // Add the message to the echoSent map
-                    echoSent.put(clientNonce, new CopyOnWriteArrayList());
-                    // Broadcast the ECHO message
-                    broadcast("ECHO", response);
-                } else if (broadcast.equals("ECHO")) {
-                    if (!echoSent.containsKey(clientNonce)) {
-                        // Add the message to the echoSent map
-                        echoSent.put(clientNonce, new CopyOnWriteArrayList<>());
-                        // Add the server to the corresponding message in the echoSent map
-                        echoSent.get(clientNonce).add(s);
-                    } else {
-                        // Add the server to the corresponding message in the echoSent map
-                        echoSent.get(clientNonce).add(s);
-                        // If more than (N+f)/2 ECHO messages received, send READY message
-                        if ((echoSent.get(clientNonce).size() > (servers.size() + faultyServersCount) / 2)
-                                && !readySent.containsKey(clientNonce)) {
-                            // Add the message to the readySent map
-                            readySent.put(clientNonce, new CopyOnWriteArrayList<>());
-                            // Broadcast the READY message
-                            broadcast("READY", response);
-                        }
-                    }
-                } else if (broadcast.equals("READY")) {
-                    // If a SEND and ECHO messages were not received, but a READY message was received
-                    if (!readySent.containsKey(clientNonce)) {
-                        // Add the message to the readySent map
-                        readySent.put(clientNonce, new CopyOnWriteArrayList<>());
-                        // Add the server to the corresponding message in the readySent map
-                        readySent.get(clientNonce).add(s);
-                    } else {
-                        // Add the server to the corresponding message in the readySent map
-                        readySent.get(clientNonce).add(s);
-                        // If 2*f READY messages have been delivered, DELIVER the message
-                        if (readySent.get(clientNonce).size() > 2 * faultyServersCount) {
-                            // Add the message to the deliveredMessages array
-                            deliveredMessages.add(response);
-                            // Deliver the message
-                            return response;
-                        } else if (!echoSent.containsKey(clientNonce) && readySent.get(clientNonce).size() > faultyServersCount) {  // If a SEND and ECHO messages were not received, but f READY messages were received, send a READY message
-                            broadcast("READY", response);
-                        }
+     * @param origin    Origin whose window to slide
+     * @param delivered List where to add the payloads to hand to the listeners
+     */
+    private void deliverInOrder(Origin origin, List<JSONObject> delivered) {
+        Instance head;
+        while ((head = origin.instances.get(origin.next)) != null && head.deliveredDigest != null) {
+            // The instance is finished: we only remember its payload for a while from now on
+            origin.instances.remove(origin.next++);
+            synchronized (recentPayloads) {
+                recentPayloads.put(head.deliveredDigest, head.payload);
+            }
+            deliveredCount.incrementAndGet();
+            reached(Phase.DELIVER, name(origin, head.sequence));
+            if (!head.local)
+                delivered.add(head.payload);
+        }
+        // wake up our broadcast if it waits for room in the window
+        origin.notifyAll();
+    }
+
+    /**
+     * Run again the messages of an origin that were ahead of its window, once it slid
+     *
+     * @param origin Origin whose deferred messages to replay
+     */
+    private void replayDeferred(Origin origin) {
+        List<Deferred> replay;
+        synchronized (origin) {
+            if (origin.deferred.stream().noneMatch(d -> d.epoch() == origin.epoch && d.sequence() < origin.next + window))
+                return;
+            replay = origin.deferred;
+            origin.deferred = new ArrayList<>();
+        }
+        // the messages still ahead of the window are deferred again
+        for (Deferred d : replay)
+            handle(d.message, d.sc);
+    }
+
+    private static JSONObject instanceId(Origin origin, long sequence) {
+        JSONObject id = new JSONObject();
+        id.put(Parameters.origin.name(), origin.port);
+        id.put(Parameters.epoch.name(), origin.epoch);
+        id.put(Parameters.sequence.name(), sequence);
+        return id;
+    }
+
+    /**
+     * @return the id of an instance given to the observers, as origin:epoch:sequence
+     */
+    private static String name(Origin origin, long sequence) {
+        return origin.port + ":" + origin.epoch + ":" + sequence;
+    }
+
+    private static String name(JSONObject id) {
+        return id.getInt(Parameters.origin.name()) + ":" + id.getLong(Parameters.epoch.name()) + ":"
+                + id.getLong(Parameters.sequence.name());
+    }
+
+    private static JSONObject vote(Origin origin, Instance instance, String digest) {
+        JSONObject vote = instanceId(origin, instance.sequence);
+        vote.put(Parameters.payload_digest.name(), digest);
+        return vote;
+    }
+
+    /**
+     * @return the ports of the servers that sent an ECHO or a READY for a payload
+     */
+    private static Set<Integer> voters(Instance instance, String digest) {
+        Set<Integer> voters = new HashSet<>(instance.votes(instance.echoes, digest));
+        voters.addAll(instance.votes(instance.readies, digest));
+        return voters;
+    }
+
+    /**
+     * Ask servers that voted for a payload we never received to send it, the caller holding the lock of the origin
+     *
+     * @param origin   Origin of the instance
+     * @param instance Instance waiting for the payload, whose fetched digest is set
+     * @param voters   Collection of the ports of the servers to ask
+     */
+    private void fetch(Origin origin, Instance instance, Collection<Integer> voters) {
+        JSONObject fetch = vote(origin, instance, instance.fetched);
+        fetch.put(Parameters.broadcast.name(), "FETCH");
+        instance.fetchedAt = System.currentTimeMillis();
+        for (Integer voter : voters) {
+            instance.asked.add(voter);
+            PeerLink link = links.get(voter);
+            if (link != null) {
+                link.send(fetch);
+                sentCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Ask a server that votes for the payload we are fetching, if it was not asked yet
+     */
+    private void fetchFromNewVoter(Origin origin, Instance instance, String digest, ServerChannel s) {
+        if (digest.equals(instance.fetched) && instance.deliveredDigest == null && !instance.asked.contains(s.port))
+            fetch(origin, instance, List.of(s.port));
+    }
+
+    /**
+     * FETCH again, from every voter, the payloads that did not come in time
+     */
+    private void refetch() {
+        long now = System.currentTimeMillis();
+        for (Origin origin : origins.values()) {
+            synchronized (origin) {
+                for (Instance instance : origin.instances.values()) {
+                    if (instance.fetched != null && instance.deliveredDigest == null && now - instance.fetchedAt >= FETCH_TIMEOUT) {
+                        Log.debug("BRB: payload of %s still missing, fetching it again", name(origin, instance.sequence));
+                        fetch(origin, instance, voters(instance, instance.fetched));
                     }
-                } else {
-                    // In any other broadcast value (should not happen), reset the response to stay in the while loop
-                    response = null;
                 }
-            } else {
-                // In case the message is already delivered, reset the response to stay in the while loop
-                response = null;
             }
         }
-        return response;
+    }
+
+    /**
+     * Send a payload we know to the server that FETCHed it
+     *
+     * @param origin   Origin of the instance
+     * @param epoch    long corresponding to the epoch of the instance
+     * @param sequence long corresponding to the sequence number of the instance
+     * @param digest   String corresponding to the payload digest
+     * @param s        ServerChannel of the server asking for it
+     */
+    private void answerFetch(Origin origin, long epoch, long sequence, String digest, ServerChannel s) {
+        JSONObject payload = null;
+        synchronized (origin) {
+            Instance instance = epoch == origin.epoch ? origin.instances.get(sequence) : null;
+            if (instance != null && digest.equals(instance.payloadDigest))
+                payload = instance.payload;
+        }
+        if (payload == null) {
+            synchronized (recentPayloads) {
+                payload = recentPayloads.get(digest);
+            }
+        }
+        PeerLink link = links.get(s.port);
+        if (payload == null || link == null)
+            return;
+        JSONObject answer = new JSONObject();
+        answer.put(Parameters.broadcast.name(), "PAYLOAD");
+        answer.put(Parameters.origin.name(), origin.port);
+        answer.put(Parameters.epoch.name(), epoch);
+        answer.put(Parameters.sequence.name(), sequence);
+        answer.put(Parameters.payload.name(), payload);
+        link.send(answer);
+        sentCount.incrementAndGet();
+    }
+
+    /**
+     * Compute the digest identifying a payload
+     *
+     * @param payload JSONObject corresponding to the broadcast payload
+     * @return the Base64 encoded digest of the payload
+     */
+    private static String digest(JSONObject payload) {
+        try {
+            return Base64.getEncoder().encodeToString(MyCrypto.digest(payload.toString().getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    /**
+     * @return the number of broadcast instances still waiting for delivery
+     */
+    public int getLiveInstances() {
+        int live = 0;
+        for (Origin origin : origins.values()) {
+            synchronized (origin) {
+                live += origin.instances.size();
+            }
+        }
+        return live;
+    }
+
+    /**
+     * @return the number of delivered payloads remembered to answer FETCH messages
+     */
+    public int getRetainedPayloads() {
+        synchronized (recentPayloads) {
+            return recentPayloads.size();
+        }
+    }
+
+    /**
+     * @return the number of messages queued or waiting for an acknowledgement on the links to the other servers
+     */
+    public int getPendingPeerMessages() {
+        return links.values().stream().mapToInt(l -> l.getQueued() + l.getInFlight()).sum();
+    }
+
+    /**
+     * @return the number of messages delivered since startup
+     */
+    @Override
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    @Override
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return the number of instances dropped without being delivered since startup, because their origin restarted
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * Instances originated by a single server, within its current epoch
+     */
+    private class Origin {
+        private final int port;
+        private long epoch = 0;
+        private long next = 0;                                          // Sequence number of the next instance to deliver
+        private final Map<Long, Instance> instances = new HashMap<>();  // Live instances of the window, by sequence number
+        private List<Deferred> deferred = new ArrayList<>();            // Messages ahead of the window, in arrival order
+
+        private Origin(int port) {
+            this.port = port;
+        }
+
+        private Instance instance(long sequence) {
+            return instances.computeIfAbsent(sequence, Instance::new);
+        }
+
+        /**
+         * Drop the state of the previous epoch, the origin restarted its sequence numbers
+         *
+         * @param epoch long corresponding to the new epoch
+         */
+        private void restart(long epoch) {
+            if (!instances.isEmpty()) {
+                evictedCount.addAndGet(instances.size());
+                Log.info("BRB: server %d restarted, %d undelivered instances dropped", port, instances.size());
+            }
+            this.epoch = epoch;
+            next = 0;
+            instances.clear();
+            deferred.removeIf(d -> d.epoch() < epoch);
+        }
+    }
+
+    /**
+     * Message received ahead of the window of its origin
+     */
+    private static class Deferred {
+        private final JSONObject message;
+        private final ServerChannel sc;
+
+        private Deferred(JSONObject message, ServerChannel sc) {
+            this.message = message;
+            this.sc = sc;
+        }
+
+        private long sequence() {
+            return message.getLong(Parameters.sequence.name());
+        }
+
+        private long epoch() {
+            return message.getLong(Parameters.epoch.name());
+        }
+    }
+
+    /**
+     * State of a single broadcast instance
+     */
+    private static class Instance {
+        private final long sequence;
+        private final Map<String, Set<Integer>> echoes = new HashMap<>();    // Ports of the servers that sent an ECHO, by digest
+        private final Map<String, Set<Integer>> readies = new HashMap<>();   // Ports of the servers that sent a READY, by digest
+        private boolean echoSent = false;
+        private boolean readySent = false;
+        private boolean local = false;                              // true if this server sent the SEND
+        private JSONObject payload = null;                          // Broadcast payload, null until a SEND or PAYLOAD is received
+        private String payloadDigest = null;
+        private String fetched = null;                              // Digest of the payload asked to the other servers
+        private final Set<Integer> asked = new HashSet<>();         // Ports of the servers asked for the fetched payload
+        private long fetchedAt;                                     // When the payload was last asked for, in ms
+        private String deliveredDigest = null;                      // Digest of the payload delivered, null until then
+
+        private Instance(long sequence) {
+            this.sequence = sequence;
+        }
+
+        private Set<Integer> votes(Map<String, Set<Integer>> votes, String digest) {
+            return votes.computeIfAbsent(digest, k -> new HashSet<>());
+        }
     }
 }
@@ -0,0 +1,274 @@
+package pt.tecnico.model;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Batching layer on top of the Byzantine Reliable Broadcast: the client requests arriving within the linger time,
+ * or up to the batch size, are broadcast together in a single BRB instance, and every server hands the requests
+ * of a batch to the request handler in order.
+ * <p>
+ * A client sends the same signed request to every server, so each request may arrive several times,
+ * directly and in the batches of the other servers: a write (REGISTER, POST, POSTGENERAL) is only executed the first
+ * time, later copies get the same response, while a read is only run by the server it was sent to, and never batched.
+ */
+public class BatchBroadcast {
+    private static final long STATS_PERIOD = 60 * 1000;                 // How often the batching statistics are printed, in ms
+    // Maximum number of write outcomes remembered: the copies of a write all arrive within the 50 s a client waits
+    // for the servers, which this covers up to 2000 writes/s
+    private static final int MAX_EXECUTED = 100_000;
+    private static final Set<Action> WRITES = EnumSet.of(Action.REGISTER, Action.POST, Action.POSTGENERAL);
+
+    private final Broadcast broadcast;
+    private final int batchSize;                                        // Maximum number of requests in a batch
+    private final long lingerMillis;                                    // Maximum time a request waits for its batch to fill up, in ms
+    private final Function<JSONObject, JSONObject> handler;             // Handles a request and returns its response
+    private final ScheduledExecutorService executor;                    // Single thread, so batches are handled in order
+    private List<Pending> pending = new ArrayList<>();                  // Requests of the batch being filled
+    private final Map<String, Outcome> executed;                        // Outcome of the last executed writes, only used by the executor
+    private final long start = System.nanoTime();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();           // Sum of the requests latencies, in ns
+    private final AtomicLong maxLatency = new AtomicLong();             // Highest request latency, in ns
+    private long reportedRequests = 0;
+
+    /**
+     * @param broadcast    Broadcast protocol used to broadcast the batches
+     * @param batchSize    int corresponding to the maximum number of requests in a batch
+     * @param lingerMillis long corresponding to the maximum time a request waits for its batch to fill up, in ms
+     * @param handler      Function handling a request and returning its response, throwing in case of a bad request
+     */
+    public BatchBroadcast(Broadcast broadcast, int batchSize, long lingerMillis, Function<JSONObject, JSONObject> handler) {
+        if (batchSize < 1 || lingerMillis < 0)
+            throw new IllegalArgumentException("Batch size must be positive and linger time can not be negative");
+        this.broadcast = broadcast;
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.handler = handler;
+        this.executed = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Outcome> eldest) {
+                return size() > MAX_EXECUTED;
+            }
+        };
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "brb-batcher");
+            t.setDaemon(true);
+            return t;
+        });
+        broadcast.listen(batch -> executor.execute(() -> deliver(batch)));
+        executor.scheduleAtFixedRate(this::printStats, STATS_PERIOD, STATS_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add a client request to the current batch
+     *
+     * @param packet JSONObject corresponding to the checked client request
+     * @return a CompletableFuture completed with the response once the batch is broadcast and the request handled
+     */
+    public CompletableFuture<JSONObject> submit(JSONObject packet) {
+        Pending request = new Pending(packet);
+        synchronized (this) {
+            pending.add(request);
+            if (pending.size() >= batchSize)
+                executor.execute(this::flush);
+            else if (pending.size() == 1)
+                executor.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+        return request.response;
+    }
+
+    /**
+     * Queue a message received from another server for the broadcast protocol, the requests of the batches it
+     * delivers are handled in delivery order
+     *
+     * @param packet JSONObject corresponding to the message received
+     * @param sc     ServerChannel of the server that sent it
+     */
+    public void receive(JSONObject packet, ServerChannel sc) {
+        broadcast.receive(packet, sc);
+    }
+
+    /**
+     * Broadcast the current batch, then handle its requests in order
+     */
+    private void flush() {
+        List<Pending> batch;
+        synchronized (this) {
+            if (pending.isEmpty())
+                return;     // already flushed because it was full
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        // only writes are broadcast, and not those already delivered by another server
+        JSONArray packets = new JSONArray();
+        batch.stream().filter(request -> isWrite(request.packet) && !executed.containsKey(requestId(request.packet)))
+                .forEach(request -> packets.put(request.packet));
+        if (packets.length() > 0) {
+            JSONObject msg = new JSONObject();
+            msg.put(Parameters.batch_id.name(), MyCrypto.getRandomNonce());
+            msg.put(Parameters.batch.name(), packets);
+            try {
+                broadcast.broadcast(msg);
+            } catch (RuntimeException e) {
+                Log.error("Batch broadcast failed: %s", e.getMessage());
+            }
+        }
+        for (Pending request : batch) {
+            try {
+                request.response.complete(execute(request.packet));
+            } catch (RuntimeException | InternalError e) {
+                request.response.completeExceptionally(e);
+            }
+            long latency = System.nanoTime() - request.received;
+            totalLatency.addAndGet(latency);
+            maxLatency.accumulateAndGet(latency, Math::max);
+        }
+        batches.incrementAndGet();
+        requests.addAndGet(batch.size());
+    }
+
+    /**
+     * Handle in order the writes of a batch broadcast by another server
+     *
+     * @param batch JSONObject corresponding to the delivered batch
+     */
+    private void deliver(JSONObject batch) {
+        JSONArray packets = batch.getJSONArray(Parameters.batch.name());
+        for (int i = 0; i < packets.length(); i++) {
+            JSONObject packet = packets.getJSONObject(i);
+            if (!isWrite(packet))
+                continue;
+            try {
+                execute(packet);
+            } catch (RuntimeException | InternalError e) {
+                Log.debug("Delivered request error: %s", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Execute a request, unless it is a write that was already executed
+     *
+     * @param packet JSONObject corresponding to the client request
+     * @return the response, a copy of the first one for a write executed before
+     */
+    private JSONObject execute(JSONObject packet) {
+        if (!isWrite(packet))
+            return handler.apply(packet);
+        String id = requestId(packet);
+        Outcome outcome = executed.get(id);
+        if (outcome != null)
+            return outcome.replay();
+        try {
+            JSONObject response = handler.apply(packet);
+            executed.put(id, new Outcome(response.toString(), Status.OK, null));
+            return response;
+        } catch (InternalError e) {
+            executed.put(id, new Outcome(null, Status.SERVER_ERROR, e.getMessage()));
+            throw e;
+        } catch (RuntimeException e) {
+            executed.put(id, new Outcome(null, Status.CLIENT_ERROR, e.getMessage()));
+            throw e;
+        }
+    }
+
+    /**
+     * @param packet JSONObject corresponding to the client request
+     * @return true if the request changes the boards, so that it must only be executed once
+     */
+    private static boolean isWrite(JSONObject packet) {
+        try {
+            return WRITES.contains(Action.valueOf(packet.optString(Parameters.action.name())));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param packet JSONObject corresponding to the client request
+     * @return a String identifying the request: the client key and the signature of the request, which covers its nonce
+     */
+    private static String requestId(JSONObject packet) {
+        return packet.optString(Parameters.client_public_key.name()) + ":" + packet.optString(Parameters.signature.name());
+    }
+
+    private void printStats() {
+        long count = requests.get();
+        if (count == reportedRequests)
+            return;
+        reportedRequests = count;
+        Log.info("Batching: %s", getStats());
+    }
+
+    /**
+     * @return a String summing up the throughput and latency of the requests this server batched
+     */
+    public String getStats() {
+        long count = requests.get();
+        long batchCount = batches.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return String.format("%d requests in %d batches (%.1f per batch), %.1f requests/s, latency avg %.2f ms max %.2f ms",
+                count, batchCount, batchCount == 0 ? 0.0 : (double) count / batchCount, count / seconds,
+                count == 0 ? 0.0 : totalLatency.get() / 1e6 / count, maxLatency.get() / 1e6);
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Response, or status and error message, of an executed write: the copies of the write get the same, so that
+     * every server answers them as the first server did
+     */
+    private static class Outcome {
+        private final String response;      // JSON text of the response, null if the write failed
+        private final Status status;
+        private final String errMsg;
+
+        private Outcome(String response, Status status, String errMsg) {
+            this.response = response;
+            this.status = status;
+            this.errMsg = errMsg;
+        }
+
+        /**
+         * @return a copy of the response of the write, throwing the error of the write if it failed
+         */
+        private JSONObject replay() {
+            if (status == Status.SERVER_ERROR)
+                throw new InternalError(errMsg);
+            if (status == Status.CLIENT_ERROR)
+                throw new IllegalArgumentException(errMsg);
+            return new JSONObject(response);
+        }
+    }
+
+    /**
+     * Client request waiting for its batch
+     */
+    private static class Pending {
+        private final JSONObject packet;
+        private final long received = System.nanoTime();
+        private final CompletableFuture<JSONObject> response = new CompletableFuture<>();
+
+        private Pending(JSONObject packet) {
+            this.packet = packet;
+        }
+    }
+}
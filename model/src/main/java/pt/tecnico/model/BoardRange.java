@@ -0,0 +1,93 @@
+package pt.tecnico.model;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Range of the most recent announcements of a Board, together with the hash chain digests proving it.
+ * <p>
+ * Each Board keeps a hash chain over its announcements: digest(i + 1) = H(digest(i) || H(announcement i)).
+ * The prefix digest is the chain value right before the first announcement of the range and the board digest
+ * the chain value after the last one, so anyone can check a range by folding it over the prefix digest.
+ */
+public class BoardRange {
+    public static final byte[] EMPTY_DIGEST = new byte[64];     // Chain value of an empty Board (SHA-512 size)
+
+    private final List<Announcement> announcements;             // Announcements of the range, oldest first
+    private final String prefixDigest;                          // Base64 encoded chain value before the range
+    private final String boardDigest;                           // Base64 encoded chain value of the whole Board
+
+    /**
+     * @param announcements List of announcements of the range, oldest first
+     * @param prefixDigest  Byte array corresponding to the chain value before the range
+     * @param boardDigest   Byte array corresponding to the chain value of the whole Board
+     */
+    public BoardRange(List<Announcement> announcements, byte[] prefixDigest, byte[] boardDigest) {
+        this.announcements = announcements;
+        this.prefixDigest = Base64.getEncoder().encodeToString(prefixDigest);
+        this.boardDigest = Base64.getEncoder().encodeToString(boardDigest);
+    }
+
+    /**
+     * Append an announcement to a hash chain
+     *
+     * @param digest       Byte array corresponding to the current chain value
+     * @param announcement Announcement to append
+     * @return the new chain value
+     */
+    public static byte[] chain(byte[] digest, Announcement announcement) {
+        return chain(digest, announcement.getId(), announcement.getOwner(), announcement.getSignature(),
+                announcement.getMessage(), announcement.getAnnouncements());
+    }
+
+    /**
+     * Check that a range of announcements, as received in a response data field, matches the given digests
+     *
+     * @param prefixDigest Base64 encoded chain value before the range
+     * @param data         JSONArray of the announcements of the range, oldest first
+     * @param boardDigest  Base64 encoded chain value of the whole Board
+     * @return true if folding the range over the prefix digest gives the board digest
+     */
+    public static boolean verify(String prefixDigest, JSONArray data, String boardDigest) {
+        byte[] digest = MyCrypto.decodeB64(prefixDigest);
+        for (int i = 0; i < data.length(); i++) {
+            JSONObject announcement = data.getJSONObject(i);
+            List<Integer> references = new ArrayList<>();
+            announcement.getJSONArray("announcements").forEach(id -> references.add((Integer) id));
+            digest = chain(digest, announcement.getInt("id"), announcement.getString("owner"),
+                    announcement.getString("signature"), announcement.getString("message"), references);
+        }
+        return Arrays.equals(digest, MyCrypto.decodeB64(boardDigest));
+    }
+
+    private static byte[] chain(byte[] digest, Integer id, String owner, String signature, String message, List<Integer> references) {
+        String entry = id + "\n" + owner + "\n" + signature + "\n" + references + "\n" + message;
+        try {
+            byte[] entryDigest = MyCrypto.digest(entry.getBytes(StandardCharsets.UTF_8));
+            byte[] link = Arrays.copyOf(digest, digest.length + entryDigest.length);
+            System.arraycopy(entryDigest, 0, link, digest.length, entryDigest.length);
+            return MyCrypto.digest(link);
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    public List<Announcement> getAnnouncements() {
+        return announcements;
+    }
+
+    public String getPrefixDigest() {
+        return prefixDigest;
+    }
+
+    public String getBoardDigest() {
+        return boardDigest;
+    }
+}
@@ -0,0 +1,96 @@
+package pt.tecnico.model;
+
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Broadcast interface, implemented by the protocols the servers can use to agree on the client requests
+ */
+public interface Broadcast {
+    /**
+     * Broadcast a payload originated by this server to every other server
+     *
+     * @param msg JSONObject corresponding to the payload to broadcast
+     */
+    void broadcast(JSONObject msg);
+
+    /**
+     * Queue a message received from another server, to be run through the protocol in arrival order
+     *
+     * @param message JSONObject corresponding to the message received
+     * @param sc      ServerChannel of the server that sent it
+     */
+    void receive(JSONObject message, ServerChannel sc);
+
+    /**
+     * Register a listener called, in delivery order, with every delivered payload not originated by this server
+     *
+     * @param listener Consumer of the delivered payloads, called by the protocol thread so it must not block
+     */
+    void listen(Consumer<JSONObject> listener);
+
+    /**
+     * Register an observer called every time this server reaches a Phase of a broadcast instance, to time the protocol
+     *
+     * @param observer BiConsumer of the Phase and of the instance id (the same on every server), called by the
+     *                 protocol thread or by the broadcasting thread so it must not block
+     */
+    void observe(BiConsumer<Phase, String> observer);
+
+    /**
+     * @return the number of received messages waiting to be run through the protocol
+     */
+    int getInboxSize();
+
+    /**
+     * @return the number of payloads delivered since startup
+     */
+    long getDeliveredCount();
+
+    /**
+     * @return the number of messages sent to the other servers since startup
+     */
+    long getSentCount();
+
+    /**
+     * Steps of a broadcast instance, as seen by one server
+     */
+    enum Phase {
+        SEND,       // the origin sent the payload
+        ECHO,       // this server echoed the payload (the origin echoes when it sends)
+        READY,      // this server voted to deliver (signed_echo: the origin holds a certificate)
+        DELIVER     // this server delivered the payload
+    }
+
+    /**
+     * Broadcast protocols, as set by the broadcast_mode configuration option
+     */
+    enum Mode {
+        bracha,         // BRBroadcast: reliable broadcast, all-to-all ECHO and READY, O(N²) messages
+        signed_echo;    // SignedEchoBroadcast: consistent broadcast with echo certificates, O(N) messages
+
+        /**
+         * @param faultyServersCount int corresponding to the maximum number of faulty servers
+         * @param servers            list of servers
+         * @param port               int corresponding to the port of this server
+         * @param window             int corresponding to the maximum number of concurrent instances per origin (bracha)
+         * @return a new instance of the protocol, its protocol thread started
+         */
+        public Broadcast create(int faultyServersCount, List<ServerChannel> servers, int port, int window) {
+            QueuedBroadcast broadcast;
+            switch (this) {
+                case signed_echo:
+                    broadcast = new SignedEchoBroadcast(faultyServersCount, servers, port);
+                    break;
+                case bracha:
+                default:
+                    broadcast = new BRBroadcast(faultyServersCount, servers, port, window);
+            }
+            broadcast.start();
+            return broadcast;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package pt.tecnico.model;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events of the broadcast protocols, under DPAS / Broadcast in the recordings. They cost nothing
+ * while no recording runs
+ */
+final class BroadcastEvents {
+    private BroadcastEvents() {
+    }
+
+    @Name("pt.tecnico.BroadcastSend")
+    @Label("Broadcast Send")
+    @Category({"DPAS", "Broadcast"})
+    @Description("A server originating an instance, waiting for room in its window included")
+    @StackTrace(false)
+    static class Send extends jdk.jfr.Event {
+        @Label("Server")
+        int server;
+
+        @Label("Instance")
+        String instance;
+
+        @Label("Payload Size")
+        @DataAmount
+        int payloadSize;
+    }
+
+    @Name("pt.tecnico.BroadcastPhase")
+    @Label("Broadcast Phase")
+    @Category({"DPAS", "Broadcast"})
+    @Description("A server reaching a phase of an instance: SEND, ECHO, READY or DELIVER")
+    @StackTrace(false)
+    static class PhaseReached extends jdk.jfr.Event {
+        @Label("Server")
+        int server;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Instance")
+        String instance;
+    }
+
+    @Name("pt.tecnico.BroadcastMessage")
+    @Label("Broadcast Message")
+    @Category({"DPAS", "Broadcast"})
+    @Description("The protocol thread applying a message of another server")
+    @StackTrace(false)
+    static class Message extends jdk.jfr.Event {
+        @Label("Server")
+        int server;
+
+        @Label("Peer")
+        int peer;
+
+        @Label("Type")
+        String type;
+
+        @Label("Queued")
+        @Description("Messages still waiting for the protocol thread")
+        int queued;
+    }
+}
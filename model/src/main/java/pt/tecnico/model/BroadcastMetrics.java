@@ -0,0 +1,86 @@
+package pt.tecnico.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Metrics of the Broadcast of one server, under broadcast.PORT: how long the server spends in the phases of each
+ * instance, from the phases it reports reaching, and gauges of the size of its state.
+ * <p>
+ * Only local times are compared, so the timers hold no clock skew: echo_ready and ready_deliver for every instance,
+ * echo_deliver for the whole instance as seen by this server, and send_deliver for the instances it originates.
+ */
+public class BroadcastMetrics implements BiConsumer<Broadcast.Phase, String> {
+    private static final int MAX_TRACKED = 100_000;         // Undelivered instances tracked at once
+
+    private final Map<String, long[]> reached;              // SEND, ECHO and READY times of the live instances, in ns
+    private final Metrics.Timer echoReady;
+    private final Metrics.Timer readyDeliver;
+    private final Metrics.Timer echoDeliver;
+    private final Metrics.Timer sendDeliver;
+
+    private BroadcastMetrics(String scope) {
+        // instances that are never delivered (a signed_echo sender that failed) are forgotten past the bound
+        this.reached = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                return size() > MAX_TRACKED;
+            }
+        };
+        this.echoReady = Metrics.timer(scope + "echo_ready");
+        this.readyDeliver = Metrics.timer(scope + "ready_deliver");
+        this.echoDeliver = Metrics.timer(scope + "echo_deliver");
+        this.sendDeliver = Metrics.timer(scope + "send_deliver");
+    }
+
+    /**
+     * Export the metrics of the Broadcast of a server
+     *
+     * @param broadcast Broadcast of the server
+     * @param port      int corresponding to the port of the server, naming its metrics
+     */
+    public static void register(Broadcast broadcast, int port) {
+        String scope = "broadcast." + port + ".";
+        broadcast.observe(new BroadcastMetrics(scope));
+        Metrics.gauge(scope + "inbox", broadcast::getInboxSize);
+        Metrics.gauge(scope + "delivered", broadcast::getDeliveredCount);
+        Metrics.gauge(scope + "sent", broadcast::getSentCount);
+        if (broadcast instanceof BRBroadcast) {
+            BRBroadcast brb = (BRBroadcast) broadcast;
+            Metrics.gauge(scope + "live_instances", brb::getLiveInstances);
+            Metrics.gauge(scope + "retained_payloads", brb::getRetainedPayloads);
+            Metrics.gauge(scope + "pending_peer_messages", brb::getPendingPeerMessages);
+            Metrics.gauge(scope + "evicted", brb::getEvictedCount);
+        } else if (broadcast instanceof SignedEchoBroadcast) {
+            SignedEchoBroadcast sec = (SignedEchoBroadcast) broadcast;
+            Metrics.gauge(scope + "live_instances", sec::getLiveInstances);
+            Metrics.gauge(scope + "evicted", sec::getEvictedCount);
+        }
+    }
+
+    @Override
+    public void accept(Broadcast.Phase phase, String instance) {
+        long now = System.nanoTime();
+        long[] times;
+        synchronized (reached) {
+            if (phase != Broadcast.Phase.DELIVER) {
+                // SEND and ECHO come at once from the originating thread, the rest from the protocol thread
+                reached.computeIfAbsent(instance, k -> new long[3])[phase.ordinal()] = now;
+                return;
+            }
+            times = reached.remove(instance);
+        }
+        if (times == null)
+            return;     // forgotten
+        long send = times[0], echo = times[1], ready = times[2];
+        if (send != 0)
+            sendDeliver.record(now - send);
+        if (echo != 0)
+            echoDeliver.record(now - echo);
+        if (echo != 0 && ready >= echo)
+            echoReady.record(ready - echo);
+        if (ready != 0)
+            readyDeliver.record(now - ready);
+    }
+}
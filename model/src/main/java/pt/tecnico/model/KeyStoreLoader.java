@@ -0,0 +1,169 @@
+package pt.tecnico.model;
+
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keystore opened (and its password derived into keys) once, whatever the number of keys read from it.
+ * <p>
+ * The public keys of the servers can also be cached in a plain text file, read without opening the keystore at the
+ * next start. The cache holds the digest of the keystore it was made from, and is made again when the keystore
+ * changes. Like the settings file, it must only be writable by whoever may change the keys of the servers.
+ */
+public class KeyStoreLoader {
+    private static final String SERVER_ALIAS = "server_";
+    private static final String DIGEST_ENTRY = "keystore_digest";
+
+    private final KeyStore keyStore;
+    private final char[] password;
+
+    /**
+     * @param path     String corresponding to the keystore path
+     * @param password String corresponding to the keystore password
+     * @throws KeyStoreException        in case no Provider supports a KeyStoreSpi implementation for the KEY_STORE type
+     * @throws NoSuchAlgorithmException in case the algorithm checking the keystore integrity does not exist
+     * @throws IOException              in case the specified path can not be accessed or the password is wrong
+     * @throws CertificateException     if case any of the certificates in the keystore could not be loaded
+     */
+    public KeyStoreLoader(String path, String password) throws KeyStoreException, NoSuchAlgorithmException, IOException, CertificateException {
+        this.password = password.toCharArray();
+        this.keyStore = KeyStore.getInstance(MyCrypto.KEY_STORE);
+        try (InputStream in = new FileInputStream(path)) {
+            keyStore.load(in, this.password);
+        }
+    }
+
+    /**
+     * @param alias String corresponding to the key alias
+     * @return the PrivateKey of the alias, null if there is none
+     * @throws KeyStoreException         in case the keystore was not loaded
+     * @throws UnrecoverableKeyException in case the key cannot be recovered (e.g., the given password is wrong)
+     * @throws NoSuchAlgorithmException  in case the algorithm protecting the key does not exist
+     */
+    public PrivateKey getPrivateKey(String alias) throws KeyStoreException, UnrecoverableKeyException, NoSuchAlgorithmException {
+        return (PrivateKey) keyStore.getKey(alias, password);
+    }
+
+    /**
+     * @param alias String corresponding to the key alias
+     * @return the PublicKey of the certificate of the alias
+     * @throws KeyStoreException in case the keystore has no certificate for the alias
+     */
+    public PublicKey getPublicKey(String alias) throws KeyStoreException {
+        Certificate certificate = keyStore.getCertificate(alias);
+        if (certificate == null)
+            throw new KeyStoreException("No certificate for " + alias);
+        return certificate.getPublicKey();
+    }
+
+    /**
+     * @param servers int corresponding to the number of servers
+     * @return the List of the public keys of the servers, from server_0 on
+     * @throws KeyStoreException in case the keystore has no certificate for one of the servers
+     */
+    public List<PublicKey> getServerKeys(int servers) throws KeyStoreException {
+        List<PublicKey> keys = new ArrayList<>();
+        for (int i = 0; i < servers; i++)
+            keys.add(getPublicKey(SERVER_ALIAS + i));
+        return keys;
+    }
+
+    /**
+     * Read the public keys of the servers from the cache if it was made from the same keystore, or else from the
+     * keystore, then cache them
+     *
+     * @param path     String corresponding to the keystore path
+     * @param password String corresponding to the keystore password
+     * @param servers  int corresponding to the number of servers
+     * @param cache    String corresponding to the path of the cache file, null for no cache
+     * @return the List of the public keys of the servers, from server_0 on
+     * @throws KeyStoreException        in case no Provider supports the KEY_STORE type, or a server has no certificate
+     * @throws NoSuchAlgorithmException in case the algorithm checking the keystore integrity does not exist
+     * @throws IOException              in case the keystore can not be accessed or the password is wrong
+     * @throws CertificateException     if case any of the certificates in the keystore could not be loaded
+     */
+    public static List<PublicKey> serverKeys(String path, String password, int servers, String cache) throws KeyStoreException, NoSuchAlgorithmException, IOException, CertificateException {
+        if (cache == null)
+            return new KeyStoreLoader(path, password).getServerKeys(servers);
+        String digest = Base64.getEncoder().encodeToString(MyCrypto.digest(Files.readAllBytes(Paths.get(path))));
+        List<PublicKey> keys = readCache(Paths.get(cache), digest, servers);
+        if (keys != null)
+            return keys;
+        keys = new KeyStoreLoader(path, password).getServerKeys(servers);
+        try {
+            writeCache(Paths.get(cache), digest, keys);
+        } catch (IOException e) {
+            Log.warn("Server keys not cached: %s", e.getMessage());
+        }
+        return keys;
+    }
+
+    /**
+     * @return the cached keys, null if the cache is missing, made from another keystore or short of servers
+     */
+    private static List<PublicKey> readCache(Path cache, String digest, int servers) throws IOException {
+        Map<String, String> entries = new HashMap<>();
+        try {
+            for (String line : Files.readAllLines(cache, StandardCharsets.UTF_8)) {
+                if (line.startsWith("#") || !line.contains("=")) continue;
+                String[] pair = line.split("=", 2);
+                entries.put(pair[0], pair[1]);
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!digest.equals(entries.get(DIGEST_ENTRY)))
+            return null;
+        List<PublicKey> keys = new ArrayList<>();
+        try {
+            for (int i = 0; i < servers; i++) {
+                String key = entries.get(SERVER_ALIAS + i);
+                if (key == null)
+                    return null;
+                keys.add(MyCrypto.publicKeyFromB64String(key));
+            }
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | IllegalArgumentException e) {
+            Log.warn("Ignoring the server keys cache %s: %s", cache, e.getMessage());
+            return null;
+        }
+        return keys;
+    }
+
+    private static void writeCache(Path cache, String digest, List<PublicKey> keys) throws IOException {
+        // written aside then moved, so that a process starting meanwhile never reads half a cache
+        Path tmp = Files.createTempFile(cache.toAbsolutePath().getParent(), cache.getFileName().toString(), ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write("# Public keys of the servers, cached from their keystore");
+            out.newLine();
+            out.write(DIGEST_ENTRY + "=" + digest);
+            out.newLine();
+            for (int i = 0; i < keys.size(); i++) {
+                out.write(SERVER_ALIAS + i + "=" + MyCrypto.publicKeyToB64String(keys.get(i)));
+                out.newLine();
+            }
+        }
+        Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,174 @@
+package pt.tecnico.model;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Leveled logging of the servers, written by a background thread so that the threads serving requests never wait
+ * on the console. A message is only rendered once its level is enabled, on the calling thread, as its arguments
+ * (JSON payloads above all) may change right after the call. ERROR and WARN go to stderr, the others to stdout.
+ * <p>
+ * Messages carrying whole payloads are logged with payload, at DEBUG and only one in every sample of them.
+ */
+public final class Log {
+    private static final int CAPACITY = 8192;                  // Messages waiting to be written
+    private static final BlockingQueue<Line> QUEUE = new ArrayBlockingQueue<>(CAPACITY);
+    private static final AtomicLong PAYLOADS = new AtomicLong();    // Payload messages so far, sampled or not
+
+    private static volatile Level level = Level.valueOf(System.getProperty("dpas.log.level", Level.INFO.name()));
+    private static volatile int sample = Integer.getInteger("dpas.log.sample", 1);
+    // last, as Metrics may log while it is initialized
+    private static final LongAdder DROPPED = Metrics.counter("log.dropped");
+
+    public enum Level {
+        ERROR,
+        WARN,
+        INFO,
+        DEBUG,      // every request and message exchanged
+        TRACE
+    }
+
+    static {
+        Thread writer = new Thread(Log::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // what is still queued when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * @param level  Level corresponding to the least severe messages written
+     * @param sample int corresponding to the payload messages written, one in every sample of them
+     */
+    public static void configure(Level level, int sample) {
+        if (sample < 1)
+            throw new IllegalArgumentException("The log sample must be at least 1");
+        Log.level = level;
+        Log.sample = sample;
+    }
+
+    /**
+     * @param l Level of a message
+     * @return true if the messages of that level are written
+     */
+    public static boolean isEnabled(Level l) {
+        return l.compareTo(level) <= 0;
+    }
+
+    public static void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    public static void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    public static void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    public static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    public static void trace(String format, Object... args) {
+        log(Level.TRACE, format, args);
+    }
+
+    /**
+     * Log a message carrying a whole payload, at DEBUG, sampled
+     *
+     * @param format String corresponding to the format of the message
+     * @param args   Object arguments of the format, the payload rendered with its toString
+     */
+    public static void payload(String format, Object... args) {
+        if (isEnabled(Level.DEBUG) && PAYLOADS.getAndIncrement() % sample == 0)
+            log(Level.DEBUG, format, args);
+    }
+
+    /**
+     * @param render Supplier of a costly rendering, like a pretty printed JSON
+     * @return an argument for a message that renders only if the message is written
+     */
+    public static Object lazy(Supplier<String> render) {
+        return new Object() {
+            @Override
+            public String toString() {
+                return render.get();
+            }
+        };
+    }
+
+    /**
+     * Queue a message, rendered with String.format. A Throwable as last argument gets its stack trace written too
+     */
+    private static void log(Level l, String format, Object... args) {
+        if (!isEnabled(l))
+            return;
+        Throwable thrown = args.length > 0 && args[args.length - 1] instanceof Throwable ? (Throwable) args[args.length - 1] : null;
+        Line line = new Line(l, args.length == 0 ? format : String.format(format, args), thrown);
+        if (l.compareTo(Level.WARN) <= 0) {
+            // errors are never dropped, the caller waits for room instead
+            try {
+                QUEUE.put(line);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (!QUEUE.offer(line)) {
+            DROPPED.increment();
+        }
+    }
+
+    private static void write() {
+        List<Line> batch = new ArrayList<>();
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                batch.add(QUEUE.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            QUEUE.drainTo(batch);
+            print(batch);
+            batch.clear();
+        }
+    }
+
+    private static void flush() {
+        List<Line> batch = new ArrayList<>();
+        QUEUE.drainTo(batch);
+        print(batch);
+    }
+
+    private static synchronized void print(List<Line> batch) {
+        for (Line line : batch) {
+            PrintStream out = line.level.compareTo(Level.WARN) <= 0 ? System.err : System.out;
+            out.println(line.message);
+            if (line.thrown != null)
+                line.thrown.printStackTrace(out);
+        }
+        System.out.flush();
+        System.err.flush();
+    }
+
+    private static class Line {
+        private final Level level;
+        private final String message;
+        private final Throwable thrown;
+
+        private Line(Level level, String message, Throwable thrown) {
+            this.level = level;
+            this.message = message;
+            this.thrown = thrown;
+        }
+    }
+}
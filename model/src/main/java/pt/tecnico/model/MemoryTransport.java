@@ -0,0 +1,150 @@
+package pt.tecnico.model;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport between servers and clients running in the same JVM: each connection is a pair of queues of lines, so
+ * the messages go through the same signatures and JSON encoding as over TCP, but never through the kernel.
+ * <p>
+ * Ports are only names here, only the users of the same MemoryTransport instance can reach each other.
+ */
+public class MemoryTransport implements Transport {
+    @SuppressWarnings("StringOperationCanBeSimplified")
+    private static final String EOF = new String("EOF");      // Marks the end of a connection, compared by identity
+
+    private final Map<Integer, MemoryAcceptor> acceptors = new ConcurrentHashMap<>();   // Listening ports
+
+    @Override
+    public Channel connect(int port) throws IOException {
+        MemoryAcceptor acceptor = acceptors.get(port);
+        if (acceptor == null)
+            throw new ConnectException("Connection refused: nothing listens on " + port);
+        BlockingQueue<String> up = new LinkedBlockingQueue<>();
+        BlockingQueue<String> down = new LinkedBlockingQueue<>();
+        MemoryChannel client = new MemoryChannel(down, up);
+        acceptor.pending.add(new MemoryChannel(up, down));
+        return client;
+    }
+
+    @Override
+    public Acceptor listen(int port) throws IOException {
+        MemoryAcceptor acceptor = new MemoryAcceptor(port);
+        if (acceptors.putIfAbsent(port, acceptor) != null)
+            throw new SocketException("Port " + port + " already in use");
+        return acceptor;
+    }
+
+    private class MemoryAcceptor implements Acceptor {
+        private final int port;
+        private final BlockingQueue<MemoryChannel> pending = new LinkedBlockingQueue<>();  // Connections not yet accepted
+        private volatile boolean closed = false;
+
+        private MemoryAcceptor(int port) {
+            this.port = port;
+        }
+
+        @Override
+        public Channel accept() throws IOException {
+            if (closed)
+                throw new SocketException("Acceptor closed");
+            try {
+                MemoryChannel channel = pending.take();
+                if (closed)
+                    throw new SocketException("Acceptor closed");
+                return channel;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            acceptors.remove(port, this);
+            // wake up a thread waiting in accept
+            pending.add(new MemoryChannel(new LinkedBlockingQueue<>(), new LinkedBlockingQueue<>()));
+        }
+    }
+
+    /**
+     * One end of a connection, reading the lines the other end writes
+     */
+    private static class MemoryChannel implements Channel {
+        private final BlockingQueue<String> in;     // Lines written by the other end
+        private final BlockingQueue<String> out;    // Lines for the other end
+        private volatile boolean closed = false;
+        private volatile boolean peerClosed = false;
+        private volatile int timeout = 0;           // Time a read waits for a line, in ms, 0 to wait forever
+
+        private MemoryChannel(BlockingQueue<String> in, BlockingQueue<String> out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void writeLine(String line) throws IOException {
+            if (closed || peerClosed)
+                throw new SocketException("Connection closed");
+            out.add(line);
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            if (closed)
+                throw new SocketException("Socket closed");
+            String line;
+            try {
+                line = timeout == 0 ? in.take() : in.poll(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (line == null)
+                throw new SocketTimeoutException("Read timed out");
+            if (line != EOF)
+                return line;
+            // left for the next reads, which find the connection closed too
+            in.add(EOF);
+            if (closed)
+                throw new SocketException("Socket closed");
+            peerClosed = true;
+            return null;
+        }
+
+        @Override
+        public boolean ready() {
+            String next = in.peek();
+            return next != null && next != EOF;
+        }
+
+        @Override
+        public void setTimeout(int millis) {
+            this.timeout = millis;
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            // our own reader is woken up, and the other end reads the end of the connection
+            in.add(EOF);
+            out.add(EOF);
+        }
+    }
+}
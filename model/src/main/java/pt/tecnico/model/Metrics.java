@@ -0,0 +1,256 @@
+package pt.tecnico.model;
+
+import javax.management.*;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the metrics of this JVM, shared by the servers and clients it runs: timers (latency distributions),
+ * counters, and gauges read when exported. Metrics are named with dot separated scopes, like server.8000.action.POST.
+ * <p>
+ * Recording never locks nor allocates, so timers can sit on the hot paths. Everything is exported as the attributes
+ * of the pt.tecnico:type=Metrics MBean, and as a plain text dump.
+ */
+public final class Metrics {
+    private static final Map<String, Object> METRICS = new ConcurrentSkipListMap<>();   // Timers, counters and gauges, by name
+    private static final String[] TIMER_ATTRIBUTES = {"count", "mean_us", "p50_us", "p90_us", "p99_us", "max_us"};
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("pt.tecnico:type=Metrics"));
+        } catch (JMException e) {
+            Log.warn("Metrics not exported over JMX: %s", e.getMessage());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @param name String corresponding to the name of the timer
+     * @return the timer with that name, created on first use
+     */
+    public static Timer timer(String name) {
+        return (Timer) METRICS.computeIfAbsent(name, k -> new Timer());
+    }
+
+    /**
+     * @param name String corresponding to the name of the counter
+     * @return the counter with that name, created on first use
+     */
+    public static LongAdder counter(String name) {
+        return (LongAdder) METRICS.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Register a gauge, replacing any previous gauge of the same name
+     *
+     * @param name  String corresponding to the name of the gauge
+     * @param value LongSupplier of the current value, called on each export so it must be cheap and thread safe
+     */
+    public static void gauge(String name, LongSupplier value) {
+        METRICS.put(name, value);
+    }
+
+    /**
+     * Print every metric, one per line, in name order. Timers are in microseconds
+     *
+     * @param out PrintStream to print the metrics to
+     */
+    public static void dump(PrintStream out) {
+        METRICS.forEach((name, metric) -> {
+            if (metric instanceof Timer) {
+                Timer t = (Timer) metric;
+                out.printf("%-50s count %9d  mean %10.1f  p50 %10d  p90 %10d  p99 %10d  max %10d us\n", name, t.getCount(),
+                        t.getMean() / 1e3, t.getPercentile(50) / 1000, t.getPercentile(90) / 1000,
+                        t.getPercentile(99) / 1000, t.getMax() / 1000);
+            } else {
+                out.printf("%-50s %d\n", name, value(metric));
+            }
+        });
+    }
+
+    private static long value(Object metric) {
+        return metric instanceof LongAdder ? ((LongAdder) metric).sum() : ((LongSupplier) metric).getAsLong();
+    }
+
+    /**
+     * Latency distribution, kept in log-linear buckets: 8 buckets per power of two, so percentiles are within 12.5%
+     */
+    public static class Timer {
+        private static final int SUB_BUCKETS = 8;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(61 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param nanos long corresponding to the measured time, in nanoseconds
+         */
+        public void record(long nanos) {
+            if (nanos < 0)
+                nanos = 0;
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            sum.add(nanos);
+            if (nanos > max.get())
+                max.accumulateAndGet(nanos, Math::max);
+        }
+
+        /**
+         * @param start long corresponding to the System.nanoTime() at the start of the measured operation
+         */
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return the mean time, in nanoseconds
+         */
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /**
+         * @return the highest time, in nanoseconds
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param percentile double corresponding to the percentile, between 0 and 100
+         * @return the upper bound of the bucket holding that percentile, in nanoseconds
+         */
+        public long getPercentile(double percentile) {
+            long n = 0;
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++)
+                n += counts[i] = buckets.get(i);
+            long rank = (long) Math.ceil(percentile / 100 * n);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0)
+                    return Math.min(upperBound(i), getMax());
+            }
+            return 0;
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);      // at least 3
+            int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return (exponent - 2) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = bucket / SUB_BUCKETS + 2;
+            int sub = bucket % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+        }
+    }
+
+    /**
+     * Every metric as a read only attribute: NAME.count, NAME.mean_us, NAME.p50_us... for the timers, NAME for the
+     * counters and gauges. The dump operation returns the plain text dump
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object metric = METRICS.get(attribute);
+            if (metric != null && !(metric instanceof Timer))
+                return value(metric);
+            int dot = attribute.lastIndexOf('.');
+            metric = dot < 0 ? null : METRICS.get(attribute.substring(0, dot));
+            if (!(metric instanceof Timer))
+                throw new AttributeNotFoundException(attribute);
+            Timer t = (Timer) metric;
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return t.getCount();
+                case "mean_us":
+                    return t.getMean() / 1e3;
+                case "p50_us":
+                    return t.getPercentile(50) / 1000;
+                case "p90_us":
+                    return t.getPercentile(90) / 1000;
+                case "p99_us":
+                    return t.getPercentile(99) / 1000;
+                case "max_us":
+                    return t.getMax() / 1000;
+                default:
+                    throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException ignored) {
+                    // left out, as the DynamicMBean contract asks
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            if (!"dump".equals(actionName))
+                throw new ReflectionException(new NoSuchMethodException(actionName));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            dump(new PrintStream(bytes, true));
+            return bytes.toString();
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            // built again on each call, as metrics are created while the servers run
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            METRICS.forEach((name, metric) -> {
+                if (metric instanceof Timer) {
+                    for (String a : TIMER_ATTRIBUTES)
+                        attributes.add(new MBeanAttributeInfo(name + "." + a, a.equals("mean_us") ? "double" : "long",
+                                a, true, false, false));
+                } else {
+                    attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+                }
+            });
+            MBeanOperationInfo dump = new MBeanOperationInfo("dump", "Plain text dump of every metric",
+                    new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO);
+            return new MBeanInfo(Metrics.class.getName(), "DPAS metrics", attributes.toArray(new MBeanAttributeInfo[0]),
+                    null, new MBeanOperationInfo[]{dump}, null);
+        }
+    }
+}
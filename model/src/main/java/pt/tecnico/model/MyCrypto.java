@@ -4,10 +4,8 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.*;
-import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
@@ -25,9 +23,13 @@ public class MyCrypto {
     private static final String DIGEST_ALG = "SHA-512";
     private static final String KEY_ALG = "RSA";
     private static final int KEY_SIZE = 2048;
-    private static final String KEY_STORE = "PKCS12";
+    static final String KEY_STORE = "PKCS12";
+    private static final Metrics.Timer SIGN_TIMER = Metrics.timer("crypto.sign");
+    private static final Metrics.Timer VERIFY_TIMER = Metrics.timer("crypto.verify");
 
     /**
+     * Open a keystore to read a single key, use a KeyStoreLoader to read several
+     *
      * @param path     String corresponding to the private key path
      * @param alias    String corresponding to the key alias
      * @param password String corresponding to the keystore password
@@ -39,12 +41,12 @@ public class MyCrypto {
      * @throws CertificateException      if case any of the certificates in the keystore could not be loaded
      */
     public static PrivateKey getPrivateKey(String path, String alias, String password) throws KeyStoreException, UnrecoverableKeyException, NoSuchAlgorithmException, IOException, CertificateException {
-        KeyStore keyStore = KeyStore.getInstance(KEY_STORE);
-        keyStore.load(new FileInputStream(path), password.toCharArray());
-        return (PrivateKey) keyStore.getKey(alias, password.toCharArray());
+        return new KeyStoreLoader(path, password).getPrivateKey(alias);
     }
 
     /**
+     * Open a keystore to read a single key, use a KeyStoreLoader to read several
+     *
      * @param path     String corresponding to the public key path
      * @param alias    String corresponding to the key alias
      * @param password String corresponding to the keystore password
@@ -55,12 +57,7 @@ public class MyCrypto {
      * @throws CertificateException     if case any of the certificates in the keystore could not be loaded
      */
     public static PublicKey getPublicKey(String path, String alias, String password) throws KeyStoreException, NoSuchAlgorithmException, IOException, CertificateException {
-        Certificate certificate;
-        KeyStore keyStore;
-        keyStore = KeyStore.getInstance(KEY_STORE);
-        keyStore.load(new FileInputStream(path), password.toCharArray());
-        certificate = keyStore.getCertificate(alias);
-        return certificate.getPublicKey();
+        return new KeyStoreLoader(path, password).getPublicKey(alias);
     }
 
     /**
@@ -107,9 +104,12 @@ public class MyCrypto {
      * @throws IllegalBlockSizeException in case the length of data provided to a block cipher is incorrect (e.g., does not match the block size of the cipher)
      */
     public static byte[] sign(byte[] data, PrivateKey priv) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        long start = System.nanoTime();
         Cipher cipher = Cipher.getInstance(KEY_ALG);
         cipher.init(Cipher.ENCRYPT_MODE, priv);
-        return cipher.doFinal(data);
+        byte[] signature = cipher.doFinal(data);
+        SIGN_TIMER.recordSince(start);
+        return signature;
     }
 
     /**
@@ -158,12 +158,14 @@ public class MyCrypto {
      * @throws IllegalBlockSizeException in case the length of messageBytes provided to a block cipher is incorrect (e.g., does not match the block size of the cipher)
      */
     public static boolean verifySignature(byte[] encryptedMessageHash, byte[] messageBytes, PublicKey pub) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        long start = System.nanoTime();
         // decrypt the signature
         Cipher cipher = Cipher.getInstance(KEY_ALG);
         cipher.init(Cipher.DECRYPT_MODE, pub);
         byte[] decryptedMessageHash = cipher.doFinal(encryptedMessageHash);
         // hash the message
         byte[] newMessageHash = digest(messageBytes);
+        VERIFY_TIMER.recordSince(start);
         // compare results
         return Arrays.equals(decryptedMessageHash, newMessageHash);
     }
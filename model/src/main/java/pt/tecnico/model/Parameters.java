@@ -17,4 +17,23 @@ public enum Parameters {
     status,
     data,
     broadcast,
+    query,
+    board_digest,
+    prefix_digest,
+    digest_only,
+    message_id,
+    ack,
+    batch,
+    batch_id,
+    instance_id,
+    payload,
+    payload_digest,
+    echo_signature,
+    certificate,
+    origin,
+    epoch,
+    sequence,
+    after_id,
+    trace_id,
+    session,
 }
@@ -0,0 +1,190 @@
+package pt.tecnico.model;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Long-lived link to a peer server, shared by every broadcast instance.
+ * <p>
+ * Messages are queued, numbered with a message id, signed and written one per line on a single connection.
+ * They stay in flight until the peer acknowledges them (cumulatively) and are written again after a reconnection.
+ * Every message carries the session of the link, a nonce drawn when it is created, which the acks must carry back:
+ * an ack of a previous run of this server, whose message ids started over, can not drop the messages of this one.
+ */
+public class PeerLink {
+    private static final long MIN_BACKOFF = 100;                // First reconnection delay, in ms
+    private static final long MAX_BACKOFF = 10 * 1000;          // Maximum reconnection delay, in ms
+    private static final int MAX_IN_FLIGHT = 10_000;            // Maximum number of unacknowledged messages
+
+    private final ServerChannel peer;                                                       // Peer server, also used to sign our messages
+    private final BlockingQueue<JSONObject> outbound = new LinkedBlockingQueue<>();         // Messages waiting for an id
+    private final ConcurrentSkipListMap<Long, String> inFlight = new ConcurrentSkipListMap<>(); // Signed messages not yet acknowledged, by id
+    private final String session = MyCrypto.getRandomNonce();  // Identifies this link among the runs of this server
+    private long nextId = 1;                    // Id of the next message, only used by the writer thread
+    private volatile long lastId = 0;           // Id of the last message numbered, no ack can go beyond it
+    private long lastWritten = 0;               // Id of the last message written on the current connection
+    private final AtomicReference<Transport.Channel> channel = new AtomicReference<>();     // Current connection, null when disconnected
+
+    /**
+     * @param peer ServerChannel of the peer server, holding its port and public key and our own key pair
+     */
+    public PeerLink(ServerChannel peer) {
+        this.peer = peer;
+        Thread writer = new Thread(this::write, "peer-link-" + peer.port);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a message to the peer, without waiting for it to be written
+     *
+     * @param msg JSONObject corresponding to the message to send
+     */
+    public void send(JSONObject msg) {
+        outbound.add(new JSONObject(msg.toString()));
+    }
+
+    /**
+     * @return the number of messages waiting to be written
+     */
+    public int getQueued() {
+        return outbound.size();
+    }
+
+    /**
+     * @return the number of messages written but not yet acknowledged by the peer
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * Writer thread: number and sign the queued messages, and keep the connection up as long as some are in flight
+     */
+    private void write() {
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                JSONObject msg = outbound.poll(1, TimeUnit.SECONDS);
+                if (msg != null) {
+                    waitForRoom();
+                    long id = nextId++;
+                    msg.put(Parameters.message_id.name(), id);
+                    msg.put(Parameters.session.name(), session);
+                    inFlight.put(id, peer.signed(msg).toString());
+                    lastId = id;
+                } else if (inFlight.isEmpty() || channel.get() != null) {
+                    continue;
+                }
+                flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void waitForRoom() throws InterruptedException {
+        synchronized (inFlight) {
+            while (inFlight.size() >= MAX_IN_FLIGHT)
+                inFlight.wait(100);
+        }
+    }
+
+    /**
+     * Write every in flight message not yet written on the current connection, reconnecting with an exponential
+     * backoff as many times as needed
+     */
+    private void flush() throws InterruptedException {
+        long backoff = MIN_BACKOFF;
+        while (true) {
+            try {
+                Transport.Channel c = channel.get();
+                if (c == null)
+                    c = connect();
+                for (Map.Entry<Long, String> frame : inFlight.tailMap(lastWritten, false).entrySet()) {
+                    c.writeLine(frame.getValue());
+                    lastWritten = frame.getKey();
+                }
+                return;
+            } catch (IOException e) {
+                Log.info("Link to server %d down (%s), reconnecting in %d ms", peer.port, e.getMessage(), backoff);
+                disconnect();
+                Thread.sleep(backoff);
+                backoff = Math.min(2 * backoff, MAX_BACKOFF);
+            }
+        }
+    }
+
+    private Transport.Channel connect() throws IOException {
+        Transport.Channel c = peer.transport.connect(peer.port);
+        channel.set(c);
+        // everything still in flight may have been lost with the previous connection
+        lastWritten = 0;
+        Thread reader = new Thread(() -> readAcks(c), "peer-link-ack-" + peer.port);
+        reader.setDaemon(true);
+        reader.start();
+        return c;
+    }
+
+    private void disconnect() {
+        Transport.Channel c = channel.getAndSet(null);
+        try {
+            if (c != null)
+                c.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Reader thread of a connection: drop the messages the peer acknowledged, until the connection breaks
+     *
+     * @param c Channel of the connection
+     */
+    private void readAcks(Transport.Channel c) {
+        try {
+            String line;
+            while ((line = c.readLine()) != null) {
+                JSONObject ack = new JSONObject(line);
+                if (!verifyAck(ack)) {
+                    Log.warn("Bad acknowledgement signature from server %d", peer.port);
+                    continue;
+                }
+                if (!session.equals(ack.optString(Parameters.session.name())) || ack.getLong(Parameters.ack.name()) > lastId) {
+                    Log.warn("Acknowledgement of another session or of an unsent message from server %d", peer.port);
+                    continue;
+                }
+                inFlight.headMap(ack.getLong(Parameters.ack.name()), true).clear();
+                synchronized (inFlight) {
+                    inFlight.notifyAll();
+                }
+            }
+        } catch (IOException | JSONException e) {
+            // the writer reconnects on its next write
+        } finally {
+            // the writer reconnects if this connection is still the current one
+            channel.compareAndSet(c, null);
+            try {
+                c.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private boolean verifyAck(JSONObject ack) {
+        try {
+            JSONObject body = new JSONObject(ack.toString());
+            byte[] sig = MyCrypto.decodeB64((String) body.remove(Parameters.signature.name()));
+            return MyCrypto.verifySignature(sig, body.toString().getBytes(), peer.serverPublicKey);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package pt.tecnico.model;
+
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Receive pipeline shared by the broadcast protocols: the reader of each server link only queues its messages, and a
+ * single protocol thread runs them through the protocol state machine in arrival order, so a slow server never holds
+ * up the messages of the others. The protocol thread runs once start() is called, after the subclass is constructed
+ */
+abstract class QueuedBroadcast implements Broadcast {
+    private final BlockingQueue<Received> inbox = new LinkedBlockingQueue<>();     // Messages waiting for the protocol thread
+    private final List<Consumer<JSONObject>> listeners = new CopyOnWriteArrayList<>();
+    private final List<BiConsumer<Phase, String>> observers = new CopyOnWriteArrayList<>();
+    private final int server;       // Port of this server, for the recorded events
+    private final Thread protocol;  // Runs the queued messages, started by start()
+
+    QueuedBroadcast(String name, int server) {
+        this.server = server;
+        this.protocol = new Thread(this::run, name);
+        protocol.setDaemon(true);
+    }
+
+    /**
+     * Start the protocol thread, the messages received until then waiting in the inbox. Only the first call counts
+     */
+    public synchronized void start() {
+        if (protocol.getState() != Thread.State.NEW)
+            return;
+        protocol.start();
+        started();
+    }
+
+    /**
+     * Called once, when the protocol thread starts, to start what else the protocol runs in the background
+     */
+    void started() {
+    }
+
+    @Override
+    public void receive(JSONObject message, ServerChannel sc) {
+        inbox.add(new Received(message, sc));
+    }
+
+    @Override
+    public void listen(Consumer<JSONObject> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void observe(BiConsumer<Phase, String> observer) {
+        observers.add(observer);
+    }
+
+    @Override
+    public int getInboxSize() {
+        return inbox.size();
+    }
+
+    /**
+     * Apply the protocol to a message received from another server, only called by the protocol thread
+     *
+     * @param message JSONObject corresponding to the message received
+     * @param sc      ServerChannel of the server that sent it
+     */
+    abstract void handle(JSONObject message, ServerChannel sc);
+
+    /**
+     * Hand a delivered payload not originated by this server to the listeners, only called by the protocol thread
+     *
+     * @param payload JSONObject corresponding to the delivered payload
+     */
+    void deliver(JSONObject payload) {
+        listeners.forEach(listener -> listener.accept(payload));
+    }
+
+    /**
+     * Tell the observers this server reached a phase of an instance
+     *
+     * @param phase    Phase reached
+     * @param instance String corresponding to the instance id, the same on every server
+     */
+    void reached(Phase phase, String instance) {
+        observers.forEach(observer -> observer.accept(phase, instance));
+        BroadcastEvents.PhaseReached event = new BroadcastEvents.PhaseReached();
+        if (event.shouldCommit()) {
+            event.server = server;
+            event.phase = phase.name();
+            event.instance = instance;
+            event.commit();
+        }
+    }
+
+    private void run() {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            Received received;
+            try {
+                received = inbox.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            BroadcastEvents.Message event = new BroadcastEvents.Message();
+            event.begin();
+            try {
+                handle(received.message, received.sc);
+            } catch (RuntimeException e) {
+                // a malformed message must not stop the protocol
+                Log.warn("Dropped message from server %d: %s", received.sc.port, e.getMessage());
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.server = server;
+                event.peer = received.sc.port;
+                event.type = received.message.optString(Parameters.broadcast.name());
+                event.queued = inbox.size();
+                event.commit();
+            }
+        }
+    }
+
+    private static class Received {
+        private final JSONObject message;
+        private final ServerChannel sc;
+
+        private Received(JSONObject message, ServerChannel sc) {
+            this.message = message;
+            this.sc = sc;
+        }
+    }
+}
@@ -5,13 +5,8 @@ import org.json.JSONObject;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -21,32 +16,39 @@ public class ServerChannel {
     public final PublicKey serverPublicKey;
     private final PublicKey clientPublicKey;
     private final PrivateKey clientPrivateKey;
+    public final Transport transport;           // How the server is reached
     public int port;
     String clientNonce;
-    Socket socket;
-    PrintWriter out;
-    BufferedReader in;
+    volatile Transport.Channel channel;         // Connection of the request in progress, null when closed
 
-    private static final String SERVER_IP = "127.0.0.1";
     private static final int TIMEOUT = 50 * 1000;
     private boolean isOpen = false;
 
     public ServerChannel(int port, PublicKey serverPublicKey, PublicKey clientPublicKey, PrivateKey clientPrivateKey) {
+        this(port, serverPublicKey, clientPublicKey, clientPrivateKey, TcpTransport.INSTANCE);
+    }
+
+    /**
+     * @param port             int corresponding to the port of the server
+     * @param serverPublicKey  PublicKey of the server
+     * @param clientPublicKey  PublicKey we sign our messages with
+     * @param clientPrivateKey PrivateKey we sign our messages with
+     * @param transport        Transport used to reach the server
+     */
+    public ServerChannel(int port, PublicKey serverPublicKey, PublicKey clientPublicKey, PrivateKey clientPrivateKey, Transport transport) {
         this.port = port;
         this.serverPublicKey = serverPublicKey;
         this.clientPublicKey = clientPublicKey;
         this.clientPrivateKey = clientPrivateKey;
+        this.transport = transport;
     }
 
-    public ServerChannel(ServerChannel serverChannel, Socket socket) throws IOException {
-        this.port = serverChannel.port;
-        this.serverPublicKey = serverChannel.serverPublicKey;
-        this.clientPublicKey = serverChannel.clientPublicKey;
-        this.clientPrivateKey = serverChannel.clientPrivateKey;
-        open(socket);
+    public ServerChannel(ServerChannel serverChannel, Transport.Channel channel) throws IOException {
+        this(serverChannel.port, serverChannel.serverPublicKey, serverChannel.clientPublicKey, serverChannel.clientPrivateKey, serverChannel.transport);
+        open(channel);
     }
 
-    private static void sign(JSONObject jo, PrivateKey priv) {
+    static void sign(JSONObject jo, PrivateKey priv) {
         String sig;
         try {
             sig = MyCrypto.digestAndSignToB64(jo.toString().getBytes(), priv);
@@ -56,7 +58,34 @@ public class ServerChannel {
         }
     }
 
-    private static boolean verifySignature(JSONObject oResp, String clientNonce, PublicKey serverPublicKey) {
+    /**
+     * Add our public key to a message and sign it
+     *
+     * @param req JSONObject corresponding to the message to sign
+     * @return a signed copy of the message
+     */
+    JSONObject signed(JSONObject req) {
+        req = new JSONObject(req.toString());
+        req.put(Parameters.client_public_key.name(), MyCrypto.publicKeyToB64String(clientPublicKey));
+        sign(req, clientPrivateKey);
+        return req;
+    }
+
+    /**
+     * Sign a statement with our private key
+     *
+     * @param data Byte array corresponding to the statement
+     * @return the Base64 encoded signature of the statement digest
+     */
+    String signStatement(byte[] data) {
+        try {
+            return MyCrypto.digestAndSignToB64(data, clientPrivateKey);
+        } catch (NoSuchAlgorithmException | IllegalBlockSizeException | InvalidKeyException | BadPaddingException | NoSuchPaddingException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    static boolean verifySignature(JSONObject oResp, String clientNonce, PublicKey serverPublicKey) {
         JSONObject resp = new JSONObject(oResp.toString());
         try {
             if (resp.length() == 0)
@@ -73,29 +102,44 @@ public class ServerChannel {
                 throw new IllegalArgumentException("Nonces don't match");
             return true;
         } catch (Exception e) {
-            System.err.println(e.getMessage());
-            System.err.println("Server response:");
-            System.err.println(oResp.toString(2));
+            Log.warn("%s, server response: %s", e.getMessage(), oResp);
             return false;
         }
     }
 
     public void close() {
+        if (!isOpen)
+            return;
         try {
-            in.close();
-            out.close();
-            socket.close();
+            channel.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
-            in = null;
-            out = null;
-            socket = null;
+            channel = null;
             clientNonce = null;
             isOpen = false;
         }
     }
 
+    /**
+     * @return a new, closed, channel to the same server with the same keys, so that requests can run concurrently
+     */
+    public ServerChannel copy() {
+        return new ServerChannel(port, serverPublicKey, clientPublicKey, clientPrivateKey, transport);
+    }
+
+    /**
+     * Abort the request in progress, if any, from another thread: its connection is closed so it fails right away
+     */
+    public void abort() {
+        Transport.Channel c = channel;
+        try {
+            if (c != null)
+                c.close();
+        } catch (IOException ignored) {
+        }
+    }
+
     public JSONObject send(JSONObject body, String nonce) throws BadResponseException, BadSignatureException, IOException {
         clientNonce = nonce;
         return send(body);
@@ -110,47 +154,49 @@ public class ServerChannel {
         if (clientNonce != null) {
             req.put(Parameters.client_nonce.name(), clientNonce);
         }
-        req.put(Parameters.client_public_key.name(), MyCrypto.publicKeyToB64String(clientPublicKey));
-        sign(req, clientPrivateKey);
-        out.println(req.toString());
+        String traceId = req.optString(Parameters.trace_id.name(), null);
+        long start = System.nanoTime();
+        String signed = signed(req).toString();
+        Trace.span(traceId, "client", "sign", start, port);
+        channel.writeLine(signed);
         // once sent we wait for an answer from the server
-        return read();
+        JSONObject resp = read();
+        Trace.span(traceId, "client", "reply", start, port);
+        return resp;
     }
 
     JSONObject read() throws IOException, BadSignatureException, BadResponseException {
-        JSONObject resp = new JSONObject(in.readLine());
+        String line = channel.readLine();
+        if (line == null)
+            throw new EOFException("Server " + port + " closed the connection");
+        JSONObject resp = new JSONObject(line);
         if (resp.length() == 0) {
             throw new BadResponseException("Response is null");
         }
         if (!verifySignature(resp, clientNonce, serverPublicKey)) {
             throw new BadSignatureException("Bad signature");
         }
-        System.out.printf("Server: %d signature and nonce are correct\n", port);
+        Log.debug("Server: %d signature and nonce are correct", port);
         return resp;
     }
 
-    private void open(Socket socket) throws IOException {
-        this.socket = socket;
-        this.socket.setSoTimeout(TIMEOUT);
-        this.out = new PrintWriter(socket.getOutputStream(), true);
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    private void open(Transport.Channel channel) throws IOException {
+        this.channel = channel;
+        this.channel.setTimeout(TIMEOUT);
         this.isOpen = true;
     }
 
     private void open() throws IOException {
         if (!isOpen)
-            open(new Socket(SERVER_IP, port));
+            open(transport.connect(port));
     }
 
     public JSONObject listen() throws BadResponseException, BadSignatureException, IOException {
         if (!isOpen) {
-            ServerSocket serverSocket;
-            try {
-                serverSocket = new ServerSocket(port, 0, InetAddress.getByName("127.0.0.1"));
-                Socket socket = serverSocket.accept();
-                open(socket);
+            try (Transport.Acceptor acceptor = transport.listen(port)) {
+                open(acceptor.accept());
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("Listen failed: %s", e.getMessage(), e);
             }
         }
         return read();
@@ -58,4 +58,57 @@ public interface ServerInt {
      * @throws IllegalArgumentException in case we can't find the board
      */
     List<Announcement> readGeneral(int number) throws IllegalArgumentException;
+
+    /**
+     * Read announcements from the specified board, together with the hash chain digests proving them
+     *
+     * @param key         Base64 encoded String corresponding to the Board public key
+     * @param number      int corresponding to the number of announcements to read (0 for all announcements)
+     * @param boardDigest Base64 encoded String corresponding to the chain value of the state to read, null for the current one
+     * @return a BoardRange with the number last posted announcements, and the prefix and board digests
+     * @throws IllegalArgumentException in case we can't find the board (most likely because the provided key is not registered) or the state
+     */
+    BoardRange readRange(String key, int number, String boardDigest) throws IllegalArgumentException;
+
+    /**
+     * Read announcements from the general board, together with the hash chain digests proving them
+     *
+     * @param number      int corresponding to the number of announcements to read (0 for all announcements)
+     * @param boardDigest Base64 encoded String corresponding to the chain value of the state to read, null for the current one
+     * @return a BoardRange with the number last posted announcements, and the prefix and board digests
+     * @throws IllegalArgumentException in case we can't find the board or the state
+     */
+    BoardRange readGeneralRange(int number, String boardDigest) throws IllegalArgumentException;
+
+    /**
+     * Read the announcements posted in the specified board after a given one, to bring an existing copy up to date
+     *
+     * @param key         Base64 encoded String corresponding to the Board public key
+     * @param afterId     int corresponding to the id of the last announcement the client already has (0 for all announcements)
+     * @param boardDigest Base64 encoded String corresponding to the chain value of the state to read, null for the current one
+     * @return a BoardRange with the newer announcements, and the prefix and board digests
+     * @throws IllegalArgumentException in case we can't find the board (most likely because the provided key is not registered) or the state
+     */
+    BoardRange readRangeAfter(String key, int afterId, String boardDigest) throws IllegalArgumentException;
+
+    /**
+     * Read the announcements posted in the general board after a given one, to bring an existing copy up to date
+     *
+     * @param afterId     int corresponding to the id of the last announcement the client already has (0 for all announcements)
+     * @param boardDigest Base64 encoded String corresponding to the chain value of the state to read, null for the current one
+     * @return a BoardRange with the newer announcements, and the prefix and board digests
+     * @throws IllegalArgumentException in case we can't find the board or the state
+     */
+    BoardRange readGeneralRangeAfter(int afterId, String boardDigest) throws IllegalArgumentException;
+
+    /**
+     * Search announcements containing the words of a query, in the specified board or across all boards
+     *
+     * @param key    Base64 encoded String corresponding to the Board public key (null to search all boards)
+     * @param query  String corresponding to the words to search for
+     * @param number int corresponding to the number of best ranked announcements to return (0 for all matches)
+     * @return a List of the number best ranked announcements, most relevant first
+     * @throws IllegalArgumentException in case the query is empty or we can't find the board
+     */
+    List<Announcement> search(String key, String query, int number) throws IllegalArgumentException;
 }
\ No newline at end of file
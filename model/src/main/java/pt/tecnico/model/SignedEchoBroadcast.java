@@ -0,0 +1,359 @@
+package pt.tecnico.model;
+
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implements a Byzantine Fault Tolerant Consistent Broadcast protocol with signed echoes
+ * <p>
+ * The sender SENDs the payload to every server, and each server answers to the sender only with an ECHO signing the
+ * payload digest. Once the sender holds the signatures of more than (N+f)/2 servers, it sends them as a certificate
+ * to every server in a FINAL message, and the servers deliver the payload after checking the certificate. Every step
+ * costs one message per server, instead of the all-to-all ECHO and READY messages of BRBroadcast.
+ * <p>
+ * Unlike BRBroadcast, there is no totality: if the sender fails before its FINAL, some servers may never deliver.
+ */
+public class SignedEchoBroadcast extends QueuedBroadcast {
+    private static final long SWEEP_PERIOD = 10 * 1000;                // How often finished instances are evicted, in ms
+    private static final long INSTANCE_TIMEOUT = 60 * 1000;            // Time after which an undelivered instance is dropped, in ms
+    private static final long DELIVERED_RETENTION = 10 * 60 * 1000;    // Time a delivered digest is remembered to ignore late messages, in ms
+    private static final int MAX_DELIVERED = 100_000;                  // Maximum number of delivered digests remembered
+
+    private final Map<Integer, ServerChannel> servers;      // Every server, by port
+    private final Map<Integer, PeerLink> links;             // Long-lived links to the other servers, by port
+    private final int quorum;                               // Number of signed echoes making a certificate
+    private final Map<String, Instance> instances;          // Live instances, by sender port and instance id
+    private final LinkedHashMap<String, Long> delivered;    // Delivered payload digests and their delivery time, oldest first
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final int port;
+
+    /**
+     * Constructs an instance of the Consistent Broadcast protocol class, whose messages are only run once start() is
+     * called
+     *
+     * @param faultyServersCount int corresponding to the maximum number of nodes that may be faulty in the network
+     * @param servers            list of servers
+     * @param port               int corresponding to the port of this server
+     */
+    public SignedEchoBroadcast(int faultyServersCount, List<ServerChannel> servers, int port) {
+        super("sec-protocol", port);
+        if (servers.size() <= 3 * faultyServersCount)
+            throw new IllegalArgumentException("Number of servers doesn't satisfy N>3f assumption");
+        // Two certificates for the same instance share at least one correct server, which signs a single digest
+        this.quorum = (servers.size() + faultyServersCount) / 2 + 1;
+        this.port = port;
+        this.servers = new HashMap<>();
+        this.links = new HashMap<>();
+        for (ServerChannel s : servers) {
+            this.servers.put(s.port, s);
+            if (s.port != port)
+                links.put(s.port, new PeerLink(s));
+        }
+        this.instances = new ConcurrentHashMap<>();
+        this.delivered = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_DELIVERED;
+            }
+        };
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sec-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleAtFixedRate(this::evict, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a SEND message with the payload to each server, and sign our own echo
+     *
+     * @param msg JSONObject corresponding to the payload to broadcast
+     */
+    @Override
+    public void broadcast(JSONObject msg) {
+        JSONObject payload = new JSONObject(msg.toString());
+        String digest = digest(payload);
+        Instance instance = new Instance(MyCrypto.getRandomNonce(), digest, payload);
+        instance.echoSent = true;
+        instance.echoes.put(port, servers.get(port).signStatement(statement(port, instance.id, digest)));
+        instances.put(key(port, instance.id), instance);
+        reached(Phase.SEND, key(port, instance.id));
+        reached(Phase.ECHO, key(port, instance.id));
+        JSONObject send = new JSONObject();
+        send.put(Parameters.instance_id.name(), instance.id);
+        send.put(Parameters.payload.name(), payload);
+        send(links.values(), "SEND", send);
+        // With a single server, our own echo already makes the certificate
+        sendFinalIfCertified(instance);
+    }
+
+    /**
+     * Consistent Broadcast protocol, delivering the payloads whose FINAL carries a valid certificate
+     *
+     * @param response JSONObject message received
+     * @param s        ServerChannel of the server that sent it
+     */
+    @Override
+    void handle(JSONObject response, ServerChannel s) {
+        switch (response.getString(Parameters.broadcast.name())) {
+            case "SEND":
+                onSend(response, s);
+                break;
+            case "ECHO":
+                onEcho(response, s);
+                break;
+            case "FINAL":
+                JSONObject payload = onFinal(response, s);
+                if (payload != null)
+                    deliver(payload);
+                break;
+            default:
+                // In any other broadcast value (should not happen), there is nothing to do
+        }
+    }
+
+    /**
+     * Keep the payload of a SEND until its FINAL, and sign an ECHO for the sender, once per instance
+     */
+    private void onSend(JSONObject response, ServerChannel s) {
+        String id = response.getString(Parameters.instance_id.name());
+        JSONObject payload = response.getJSONObject(Parameters.payload.name());
+        // The digest is computed by ourselves, so it can not be forged
+        String digest = digest(payload);
+        if (isDelivered(digest))
+            return;
+        Instance instance = instances.computeIfAbsent(key(s.port, id), k -> new Instance(id, digest, payload));
+        synchronized (instance) {
+            if (!instance.digest.equals(digest)) {
+                Log.warn("Server %d sent two payloads for instance %s, ignoring the second one", s.port, id);
+                return;
+            }
+            if (instance.echoSent)
+                return;
+            instance.echoSent = true;
+        }
+        JSONObject echo = new JSONObject();
+        echo.put(Parameters.instance_id.name(), id);
+        echo.put(Parameters.payload_digest.name(), digest);
+        echo.put(Parameters.echo_signature.name(), servers.get(port).signStatement(statement(s.port, id, digest)));
+        send(List.of(links.get(s.port)), "ECHO", echo);
+        reached(Phase.ECHO, key(s.port, id));
+    }
+
+    /**
+     * Collect the signed ECHO of a server for one of our instances, and send the FINAL once we hold a certificate
+     */
+    private void onEcho(JSONObject response, ServerChannel s) {
+        Instance instance = instances.get(key(port, response.getString(Parameters.instance_id.name())));
+        if (instance == null || !instance.digest.equals(response.getString(Parameters.payload_digest.name())))
+            return;     // already certified, or an echo for something we never sent
+        String signature = response.getString(Parameters.echo_signature.name());
+        if (!verifyEcho(s.port, port, instance.id, instance.digest, signature)) {
+            Log.warn("Bad echo signature from server %d", s.port);
+            return;
+        }
+        synchronized (instance) {
+            instance.echoes.put(s.port, signature);
+        }
+        sendFinalIfCertified(instance);
+    }
+
+    private void sendFinalIfCertified(Instance instance) {
+        JSONObject certificate;
+        synchronized (instance) {
+            if (instance.finalSent || instance.echoes.size() < quorum)
+                return;
+            instance.finalSent = true;
+            certificate = new JSONObject(instance.echoes);
+        }
+        JSONObject fin = new JSONObject();
+        fin.put(Parameters.instance_id.name(), instance.id);
+        fin.put(Parameters.payload_digest.name(), instance.digest);
+        fin.put(Parameters.certificate.name(), certificate);
+        reached(Phase.READY, key(port, instance.id));
+        send(links.values(), "FINAL", fin);
+        reached(Phase.DELIVER, key(port, instance.id));
+        // We originate this instance: the payload is handled locally, so its delivery must not be returned
+        instances.remove(key(port, instance.id));
+        markDelivered(instance.digest);
+    }
+
+    /**
+     * Deliver the payload of a FINAL whose certificate holds enough valid signed echoes
+     */
+    private JSONObject onFinal(JSONObject response, ServerChannel s) {
+        String id = response.getString(Parameters.instance_id.name());
+        String digest = response.getString(Parameters.payload_digest.name());
+        if (isDelivered(digest))
+            return null;
+        // The link is FIFO, so the SEND of the sender always comes before its FINAL
+        Instance instance = instances.get(key(s.port, id));
+        if (instance == null || !instance.digest.equals(digest))
+            return null;
+        JSONObject certificate = response.getJSONObject(Parameters.certificate.name());
+        int valid = 0;
+        for (String signer : certificate.keySet()) {
+            if (verifyEcho(Integer.parseInt(signer), s.port, id, digest, certificate.getString(signer)))
+                valid++;
+        }
+        if (valid < quorum) {
+            Log.warn("Server %d sent a FINAL with %d valid echoes out of the %d needed", s.port, valid, quorum);
+            return null;
+        }
+        synchronized (instance) {
+            if (instance.delivered)
+                return null;
+            instance.delivered = true;
+        }
+        instances.remove(key(s.port, id));
+        markDelivered(digest);
+        reached(Phase.DELIVER, key(s.port, id));
+        return instance.payload;
+    }
+
+    /**
+     * @param signer    int corresponding to the port of the server that signed the echo
+     * @param sender    int corresponding to the port of the server that sent the instance
+     * @param id        String corresponding to the instance id
+     * @param digest    String corresponding to the payload digest
+     * @param signature Base64 encoded String corresponding to the echo signature
+     * @return true if a known server signed the echo
+     */
+    private boolean verifyEcho(int signer, int sender, String id, String digest, String signature) {
+        ServerChannel s = servers.get(signer);
+        if (s == null)
+            return false;
+        try {
+            return MyCrypto.verifySignature(MyCrypto.decodeB64(signature), statement(sender, id, digest), s.serverPublicKey);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the bytes a server signs to echo the payload digest of an instance
+     */
+    private static byte[] statement(int sender, String id, String digest) {
+        return ("ECHO\n" + sender + "\n" + id + "\n" + digest).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String key(int sender, String id) {
+        return sender + ":" + id;
+    }
+
+    private void send(Collection<PeerLink> to, String broadcast, JSONObject msg) {
+        msg.put(Parameters.broadcast.name(), broadcast);
+        for (PeerLink link : to) {
+            link.send(msg);
+            sentCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Compute the digest identifying a payload
+     *
+     * @param payload JSONObject corresponding to the broadcast payload
+     * @return the Base64 encoded digest of the payload
+     */
+    private static String digest(JSONObject payload) {
+        try {
+            return Base64.getEncoder().encodeToString(MyCrypto.digest(payload.toString().getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    private boolean isDelivered(String digest) {
+        synchronized (delivered) {
+            return delivered.containsKey(digest);
+        }
+    }
+
+    private void markDelivered(String digest) {
+        synchronized (delivered) {
+            delivered.put(digest, System.currentTimeMillis());
+        }
+        deliveredCount.incrementAndGet();
+    }
+
+    private void evict() {
+        evict(System.currentTimeMillis());
+    }
+
+    /**
+     * Drop the instances that were never certified in time, and forget the delivered digests older than the retention
+     *
+     * @param now long corresponding to the current time, in ms
+     */
+    void evict(long now) {
+        int evicted = 0;
+        for (Iterator<Instance> it = instances.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().created > INSTANCE_TIMEOUT) {
+                it.remove();
+                evicted++;
+            }
+        }
+        evictedCount.addAndGet(evicted);
+        synchronized (delivered) {
+            Iterator<Long> it = delivered.values().iterator();
+            while (it.hasNext() && now - it.next() > DELIVERED_RETENTION)
+                it.remove();
+        }
+        if (evicted > 0)
+            Log.info("Signed echo broadcast: %d uncertified instances evicted, %d live instances", evicted, instances.size());
+    }
+
+    /**
+     * @return the number of broadcast instances still waiting for their certificate
+     */
+    public int getLiveInstances() {
+        return instances.size();
+    }
+
+    @Override
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    @Override
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return the number of instances dropped without being delivered since startup
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * State of a single broadcast instance
+     */
+    private static class Instance {
+        private final String id;                                    // Instance id chosen by the sender
+        private final String digest;                                // Digest of the payload
+        private final JSONObject payload;
+        private final Map<Integer, String> echoes = new HashMap<>(); // Echo signatures, by server port (sender only)
+        private final long created = System.currentTimeMillis();
+        private boolean echoSent = false;
+        private boolean finalSent = false;
+        private boolean delivered = false;
+
+        private Instance(String id, String digest, JSONObject payload) {
+            this.id = id;
+            this.digest = digest;
+            this.payload = payload;
+        }
+    }
+}
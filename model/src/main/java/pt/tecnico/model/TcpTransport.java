@@ -0,0 +1,109 @@
+package pt.tecnico.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Transport over TCP connections on the loopback interface, what the clients and servers use when run on their own
+ */
+public class TcpTransport implements Transport {
+    public static final TcpTransport INSTANCE = new TcpTransport();
+    private static final String IP = "127.0.0.1";
+
+    private TcpTransport() {
+    }
+
+    @Override
+    public Channel connect(int port) throws IOException {
+        return channel(new Socket(IP, port));
+    }
+
+    @Override
+    public Acceptor listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getByName(IP));
+        return new Acceptor() {
+            @Override
+            public Channel accept() throws IOException {
+                return channel(serverSocket.accept());
+            }
+
+            @Override
+            public int getPort() {
+                return serverSocket.getLocalPort();
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    /**
+     * @param socket Socket of an open connection
+     * @return a Channel reading and writing UTF-8 lines on the socket
+     * @throws IOException in case the socket is already closed
+     */
+    public static Channel channel(Socket socket) throws IOException {
+        return channel(socket, new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)),
+                new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param socket Socket of an open connection
+     * @param in     BufferedReader of the socket
+     * @param out    PrintWriter of the socket, flushing each line
+     * @return a Channel reading and writing lines with the given reader and writer
+     */
+    public static Channel channel(Socket socket, BufferedReader in, PrintWriter out) {
+        return new SocketChannel(socket, in, out);
+    }
+
+    private static class SocketChannel implements Channel {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        private SocketChannel(Socket socket, BufferedReader in, PrintWriter out) {
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void writeLine(String line) throws IOException {
+            out.println(line);
+            if (out.checkError())
+                throw new IOException("write failed");
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            return in.readLine();
+        }
+
+        @Override
+        public boolean ready() throws IOException {
+            return in.ready();
+        }
+
+        @Override
+        public void setTimeout(int millis) throws IOException {
+            socket.setSoTimeout(millis);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // closing the socket first makes a blocked read of another thread return
+            socket.close();
+            out.close();
+            in.close();
+        }
+    }
+}
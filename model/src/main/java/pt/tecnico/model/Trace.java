@@ -0,0 +1,173 @@
+package pt.tecnico.model;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Timed spans of the requests, written to a local span file so that the path of a request can be rebuilt across
+ * the client and every server. A request carries its trace id in the trace_id parameter, set by a client that
+ * traces; the servers time the stages of the requests carrying one.
+ * <p>
+ * Each span is a tab separated line: trace id, where (client or server-PORT), span name, start and duration in
+ * microseconds, and a detail (the action or the server port) or -. Start times are wall clock, so the spans of
+ * processes of the same host line up.
+ */
+public final class Trace {
+    private static final int CAPACITY = 65536;                  // Spans waiting to be written
+    private static final long ORIGIN_MICROS = System.currentTimeMillis() * 1000;
+    private static final long ORIGIN_NANOS = System.nanoTime();
+    private static final ThreadLocal<String[]> CURRENT = new ThreadLocal<>();     // Trace id and where of the stage the thread runs
+    private static final LongAdder DROPPED = Metrics.counter("trace.dropped");
+
+    private static volatile BlockingQueue<String> queue = null;  // null while tracing is off
+
+    static {
+        String file = System.getProperty("dpas.trace.file");
+        if (file != null) {
+            try {
+                open(Paths.get(file));
+            } catch (IOException e) {
+                Log.error("Tracing disabled, can not open %s: %s", file, e.getMessage());
+            }
+        }
+    }
+
+    private Trace() {
+    }
+
+    /**
+     * Start tracing, appending the spans to a file. Only the first call of a JVM opens a file
+     *
+     * @param file Path of the span file
+     * @throws IOException in case the file can not be opened
+     */
+    public static synchronized void open(Path file) throws IOException {
+        if (queue != null)
+            return;
+        BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        BlockingQueue<String> spans = new ArrayBlockingQueue<>(CAPACITY);
+        Thread writer = new Thread(() -> write(spans, out), "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(spans, out), "trace-flush"));
+        queue = spans;
+    }
+
+    /**
+     * @return true if the spans are written
+     */
+    public static boolean isEnabled() {
+        return queue != null;
+    }
+
+    /**
+     * @return a new trace id, for a client request
+     */
+    public static String newId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Record a span ending now
+     *
+     * @param traceId String corresponding to the trace id of the request, null if it is not traced
+     * @param where   String corresponding to the process the span belongs to, client or server-PORT
+     * @param name    String corresponding to the stage
+     * @param start   long corresponding to the System.nanoTime() at the start of the stage
+     * @param detail  Object detailing the span, like the action or the port of the server, null for none
+     */
+    public static void span(String traceId, String where, String name, long start, Object detail) {
+        BlockingQueue<String> spans = queue;
+        if (spans == null || traceId == null)
+            return;
+        long end = System.nanoTime();
+        String line = traceId + '\t' + where + '\t' + name + '\t' + micros(start) + '\t' + (end - start) / 1000 + '\t'
+                + (detail == null ? "-" : detail);
+        if (!spans.offer(line))
+            DROPPED.increment();
+    }
+
+    /**
+     * Record a span ending now, within the stage the current thread runs, if any
+     *
+     * @param name  String corresponding to the stage
+     * @param start long corresponding to the System.nanoTime() at the start of the stage
+     */
+    public static void span(String name, long start) {
+        String[] current = CURRENT.get();
+        if (current != null)
+            span(current[0], current[1], name, start, null);
+    }
+
+    /**
+     * Run a stage of a request as a span, the spans recorded by the stage itself being part of the same trace
+     *
+     * @param traceId String corresponding to the trace id of the request, null if it is not traced
+     * @param where   String corresponding to the process the span belongs to
+     * @param name    String corresponding to the stage
+     * @param stage   Supplier running the stage
+     * @return the result of the stage
+     */
+    public static <T> T within(String traceId, String where, String name, Supplier<T> stage) {
+        if (queue == null || traceId == null)
+            return stage.get();
+        long start = System.nanoTime();
+        String[] outer = CURRENT.get();
+        CURRENT.set(new String[]{traceId, where});
+        try {
+            return stage.get();
+        } finally {
+            CURRENT.set(outer);
+            span(traceId, where, name, start, null);
+        }
+    }
+
+    private static long micros(long nanos) {
+        return ORIGIN_MICROS + (nanos - ORIGIN_NANOS) / 1000;
+    }
+
+    private static void write(BlockingQueue<String> spans, BufferedWriter out) {
+        List<String> batch = new ArrayList<>();
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                batch.add(spans.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            spans.drainTo(batch);
+            print(batch, out);
+            batch.clear();
+        }
+    }
+
+    private static void flush(BlockingQueue<String> spans, BufferedWriter out) {
+        List<String> batch = new ArrayList<>();
+        spans.drainTo(batch);
+        print(batch, out);
+    }
+
+    private static synchronized void print(List<String> batch, BufferedWriter out) {
+        try {
+            for (String line : batch) {
+                out.write(line);
+                out.newLine();
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.warn("Spans not written: %s", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package pt.tecnico.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Way the clients and the servers reach each other. Every message is a single line of JSON, so a connection only
+ * needs to carry lines in both directions: TcpTransport uses loopback sockets, and MemoryTransport queues the lines
+ * between servers and clients running in the same JVM.
+ */
+public interface Transport {
+    /**
+     * Open a connection to a server
+     *
+     * @param port int corresponding to the port the server listens on
+     * @return the Channel of the connection
+     * @throws IOException in case nothing listens on that port
+     */
+    Channel connect(int port) throws IOException;
+
+    /**
+     * Start listening for connections
+     *
+     * @param port int corresponding to the port to listen on
+     * @return the Acceptor of the connections made to that port
+     * @throws IOException in case the port is already taken
+     */
+    Acceptor listen(int port) throws IOException;
+
+    /**
+     * Connection carrying lines in both directions
+     */
+    interface Channel extends Closeable {
+        /**
+         * @param line String corresponding to the line to send, without its line break
+         * @throws IOException in case the connection is closed
+         */
+        void writeLine(String line) throws IOException;
+
+        /**
+         * Wait for the next line
+         *
+         * @return String corresponding to the next line, null once the other end closed the connection
+         * @throws java.net.SocketTimeoutException in case no line came within the timeout, the connection staying open
+         * @throws IOException                     in case the connection broke
+         */
+        String readLine() throws IOException;
+
+        /**
+         * @return true if a line can be read without waiting
+         * @throws IOException in case the connection broke
+         */
+        boolean ready() throws IOException;
+
+        /**
+         * @param millis int corresponding to the time readLine waits for a line, 0 to wait forever
+         * @throws IOException in case the connection broke
+         */
+        void setTimeout(int millis) throws IOException;
+
+        /**
+         * Close the connection, from any thread: a readLine in progress on either end returns right away
+         */
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * Connections made to a listening port
+     */
+    interface Acceptor extends Closeable {
+        /**
+         * @return the Channel of the next connection, waiting for one
+         * @throws IOException in case the acceptor was closed
+         */
+        Channel accept() throws IOException;
+
+        /**
+         * @return the port the connections are made to
+         */
+        int getPort();
+    }
+}
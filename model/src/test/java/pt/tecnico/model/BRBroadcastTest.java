@@ -0,0 +1,198 @@
+package pt.tecnico.model;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static pt.tecnico.model.MemoryCluster.await;
+import static pt.tecnico.model.MemoryCluster.port;
+
+/**
+ * Four servers, one of them faulty (N=4, F=1): the three correct ones must deliver every payload of each other,
+ * whatever the faulty one sends
+ */
+@Timeout(60)
+class BRBroadcastTest {
+    private static final int F = 1;
+    private static final int N = 4;
+    private static final int WINDOW = 4;
+    private static final long TIMEOUT = 20 * 1000;
+
+    private MemoryCluster cluster;
+    private final Set<String> instances = ConcurrentHashMap.newKeySet();   // Instances delivered by server 0, as origin:epoch:sequence
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        cluster = new MemoryCluster(Broadcast.Mode.bracha, F, N, WINDOW);
+        cluster.broadcast(0).observe((phase, instance) -> {
+            if (phase == Broadcast.Phase.DELIVER)
+                instances.add(instance);
+        });
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        cluster.close();
+    }
+
+    private static JSONObject payload(int origin, int number) {
+        JSONObject payload = new JSONObject();
+        payload.put(Parameters.origin.name(), origin);
+        payload.put(Parameters.number.name(), number);
+        return payload;
+    }
+
+    /**
+     * @return the numbers of the payloads a server delivered from an origin, in delivery order
+     */
+    private List<Integer> numbers(int server, int origin) {
+        List<Integer> numbers = new ArrayList<>();
+        for (JSONObject payload : cluster.delivered(server)) {
+            if (payload.getInt(Parameters.origin.name()) == origin)
+                numbers.add(payload.getInt(Parameters.number.name()));
+        }
+        return numbers;
+    }
+
+    private static List<Integer> range(int count) {
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            numbers.add(i);
+        return numbers;
+    }
+
+    /**
+     * @return the epoch of an origin, read from the instances server 0 delivered
+     */
+    private long epoch(int origin) {
+        String prefix = port(origin) + ":";
+        return instances.stream().filter(i -> i.startsWith(prefix)).mapToLong(i -> Long.parseLong(i.split(":")[1]))
+                .findFirst().orElseThrow(IllegalStateException::new);
+    }
+
+    private static JSONObject vote(String broadcast, int origin, long epoch, long sequence, String digest) {
+        JSONObject vote = new JSONObject();
+        vote.put(Parameters.broadcast.name(), broadcast);
+        vote.put(Parameters.origin.name(), port(origin));
+        vote.put(Parameters.epoch.name(), epoch);
+        vote.put(Parameters.sequence.name(), sequence);
+        vote.put(Parameters.payload_digest.name(), digest);
+        return vote;
+    }
+
+    @Test
+    void deliversEveryOriginInOrder() throws Exception {
+        int count = 50;     // many windows
+        List<Thread> origins = new ArrayList<>();
+        for (int i = 0; i < N - 1; i++) {
+            int origin = i;
+            Thread thread = new Thread(() -> {
+                for (int k = 0; k < count; k++)
+                    cluster.broadcast(origin).broadcast(payload(origin, k));
+            });
+            thread.start();
+            origins.add(thread);
+        }
+        for (Thread thread : origins)
+            thread.join(TIMEOUT);
+        for (int server = 0; server < N - 1; server++) {
+            int s = server;
+            await(() -> cluster.delivered(s).size() == (N - 2) * count, TIMEOUT, "Server " + s + " did not deliver every payload");
+            for (int origin = 0; origin < N - 1; origin++) {
+                if (origin != server)
+                    assertEquals(range(count), numbers(server, origin), "Payloads of " + origin + " delivered out of order by " + server);
+            }
+        }
+    }
+
+    @Test
+    void forgedVotesNeitherBlockNorForgeDelivery() throws Exception {
+        cluster.broadcast(1).broadcast(payload(1, 0));
+        await(() -> numbers(0, 1).size() == 1, TIMEOUT, "First payload not delivered");
+        long epoch = epoch(1);
+        // the faulty server votes alone for a payload origin 1 never sent, in this instance and in later ones
+        for (long sequence = 1; sequence < 1 + 2 * WINDOW; sequence++) {
+            cluster.inject(0, vote("ECHO", 1, epoch, sequence, "forged"), N - 1);
+            cluster.inject(0, vote("READY", 1, epoch, sequence, "forged"), N - 1);
+        }
+        for (int k = 1; k < 1 + 2 * WINDOW; k++)
+            cluster.broadcast(1).broadcast(payload(1, k));
+        for (int server : new int[]{0, 2}) {
+            await(() -> numbers(server, 1).size() == 1 + 2 * WINDOW, TIMEOUT, "Payloads blocked by forged votes");
+            assertEquals(range(1 + 2 * WINDOW), numbers(server, 1));
+        }
+    }
+
+    @Test
+    void forgedEpochDoesNotDropOrigin() throws Exception {
+        cluster.broadcast(1).broadcast(payload(1, 0));
+        await(() -> numbers(0, 1).size() == 1, TIMEOUT, "First payload not delivered");
+        // the faulty server claims origin 1 restarted, which would make server 0 drop every message of its real epoch
+        cluster.inject(0, vote("ECHO", 1, Long.MAX_VALUE, 0, "forged"), N - 1);
+        cluster.inject(0, vote("READY", 1, Long.MAX_VALUE, 0, "forged"), N - 1);
+        for (int k = 1; k < 10; k++)
+            cluster.broadcast(1).broadcast(payload(1, k));
+        await(() -> numbers(0, 1).size() == 10, TIMEOUT, "Origin dropped after a forged epoch");
+        assertEquals(range(10), numbers(0, 1));
+        assertEquals(0, ((BRBroadcast) cluster.broadcast(0)).getEvictedCount());
+    }
+
+    @Test
+    void deliveredInstancesAreReleased() throws Exception {
+        int count = 20;
+        for (int k = 0; k < count; k++)
+            cluster.broadcast(1).broadcast(payload(1, k));
+        for (int server = 0; server < N - 1; server++) {
+            BRBroadcast broadcast = (BRBroadcast) cluster.broadcast(server);
+            await(() -> broadcast.getLiveInstances() == 0, TIMEOUT, "Server " + server + " kept delivered instances");
+        }
+        // only the payloads are kept, to answer the FETCH of late servers
+        for (int server : new int[]{0, 2}) {
+            assertEquals(count, numbers(server, 1).size());
+            assertEquals(count, ((BRBroadcast) cluster.broadcast(server)).getRetainedPayloads());
+        }
+    }
+
+    @Test
+    void restartDropsUndeliveredInstances() throws Exception {
+        BRBroadcast broadcast = (BRBroadcast) cluster.broadcast(0);
+        JSONObject payload = payload(N - 1, 0);
+        // the faulty server starts an instance only server 0 hears of, then restarts before it is delivered
+        JSONObject send = vote("SEND", N - 1, 0, 0, null);
+        send.put(Parameters.payload.name(), payload);
+        cluster.inject(0, send, N - 1);
+        await(() -> broadcast.getLiveInstances() == 1, TIMEOUT, "Instance not created");
+        JSONObject restarted = vote("SEND", N - 1, 1, 0, null);
+        restarted.put(Parameters.payload.name(), payload(N - 1, 1));
+        cluster.inject(0, restarted, N - 1);
+        await(() -> broadcast.getEvictedCount() == 1, TIMEOUT, "Instance of the previous epoch not dropped");
+        assertEquals(1, broadcast.getLiveInstances());
+        assertEquals(0, numbers(0, N - 1).size());
+    }
+
+    @Test
+    void missingPayloadIsFetchedAgain() throws Exception {
+        JSONObject payload = payload(N - 1, 0);
+        String digest = Base64.getEncoder().encodeToString(MyCrypto.digest(payload.toString().getBytes()));
+        // server 0 is told to deliver a payload of the faulty server that none of the voters holds yet
+        for (int voter : new int[]{1, 2, N - 1})
+            cluster.inject(0, vote("READY", N - 1, 0, 0, digest), voter);
+        Thread.sleep(500);
+        assertEquals(0, numbers(0, N - 1).size());
+        // server 1 gets the payload afterwards, and is asked for it again
+        JSONObject send = vote("SEND", N - 1, 0, 0, digest);
+        send.remove(Parameters.payload_digest.name());
+        send.put(Parameters.payload.name(), payload);
+        cluster.inject(1, send, N - 1);
+        await(() -> numbers(0, N - 1).size() == 1, TIMEOUT, "Payload never fetched again");
+    }
+}
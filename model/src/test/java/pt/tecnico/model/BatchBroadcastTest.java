@@ -0,0 +1,108 @@
+package pt.tecnico.model;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static pt.tecnico.model.MemoryCluster.await;
+
+/**
+ * A client sends the same request to every server: each write must be executed once per server, its copies getting
+ * the outcome of the first execution
+ */
+@Timeout(60)
+class BatchBroadcastTest {
+    private static final int F = 1;
+    private static final int N = 4;
+    private static final long TIMEOUT = 20 * 1000;
+
+    private MemoryCluster cluster;
+    private final List<BatchBroadcast> batches = new ArrayList<>();
+    private final List<AtomicInteger> executions = new ArrayList<>();      // Requests each server executed
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        cluster = new MemoryCluster(Broadcast.Mode.bracha, F, N, BRBroadcast.DEFAULT_WINDOW);
+        for (int i = 0; i < N - 1; i++) {
+            AtomicInteger count = new AtomicInteger();
+            executions.add(count);
+            batches.add(new BatchBroadcast(cluster.broadcast(i), 1, 0, packet -> {
+                count.incrementAndGet();
+                if (packet.getString(Parameters.action.name()).equals(Action.REGISTER.name()))
+                    throw new IllegalArgumentException("Already registered");
+                JSONObject response = new JSONObject();
+                response.put(Parameters.data.name(), "done");
+                return response;
+            }));
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        cluster.close();
+    }
+
+    private static JSONObject request(Action action, String signature) {
+        JSONObject request = new JSONObject();
+        request.put(Parameters.action.name(), action.name());
+        request.put(Parameters.client_public_key.name(), "client");
+        request.put(Parameters.signature.name(), signature);
+        return request;
+    }
+
+    private void awaitExecutions(int count) throws InterruptedException {
+        for (int i = 0; i < N - 1; i++) {
+            int server = i;
+            await(() -> executions.get(server).get() == count, TIMEOUT, "Server " + server + " did not execute the write");
+        }
+    }
+
+    @Test
+    void duplicateWriteGetsCachedOutcome() throws Exception {
+        JSONObject post = request(Action.POST, "post");
+        JSONObject first = batches.get(0).submit(post).get();
+        assertEquals("done", first.getString(Parameters.data.name()));
+        awaitExecutions(1);
+        // the copies sent to the other servers, and sent again to the first one, are not executed again, and every
+        // server answers them as the first did, so that the client sees a single response
+        for (int i = 0; i < N - 1; i++)
+            assertEquals(first.toString(), batches.get(i).submit(post).get().toString());
+        Thread.sleep(200);
+        for (AtomicInteger count : executions)
+            assertEquals(1, count.get());
+    }
+
+    @Test
+    void duplicateFailedWriteGetsSameError() throws Exception {
+        JSONObject register = request(Action.REGISTER, "register");
+        assertThrows(ExecutionException.class, () -> batches.get(0).submit(register).get());
+        awaitExecutions(1);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> batches.get(1).submit(register).get());
+        assertEquals(IllegalArgumentException.class, e.getCause().getClass());
+        assertEquals("Already registered", e.getCause().getMessage());
+        assertEquals(1, executions.get(1).get());
+    }
+
+    @Test
+    void readRunsAgainOnlyWhereSent() throws Exception {
+        JSONObject read = request(Action.READ, "read");
+        batches.get(0).submit(read).get();
+        batches.get(0).submit(read).get();
+        assertEquals(2, executions.get(0).get());
+        // reads are not broadcast at all, the other servers only execute the write that follows
+        long delivered = cluster.broadcast(1).getDeliveredCount();
+        batches.get(0).submit(request(Action.POST, "post")).get();
+        await(() -> executions.get(1).get() == 1 && executions.get(2).get() == 1, TIMEOUT, "Write not executed");
+        assertEquals(3, executions.get(0).get());
+        assertEquals(delivered + 1, cluster.broadcast(1).getDeliveredCount());
+    }
+}
@@ -0,0 +1,189 @@
+package pt.tecnico.model;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Servers running a broadcast protocol over a MemoryTransport, the last of them being faulty: it never broadcasts,
+ * acknowledges what it is sent without running it, and the tests forge its messages with inject.
+ * <p>
+ * Each correct server reads its links the way ServerThread does: it checks the signature of every message, queues
+ * it for the protocol and acknowledges it once it caught up with the link.
+ */
+class MemoryCluster implements AutoCloseable {
+    static final int BASE_PORT = 9100;
+
+    private final MemoryTransport transport = new MemoryTransport();
+    private final List<KeyPair> keys = new ArrayList<>();
+    private final List<List<ServerChannel>> servers = new ArrayList<>();    // Channels to every server, as seen by each server
+    private final List<Broadcast> broadcasts = new ArrayList<>();           // Protocol of each correct server
+    private final List<Transport.Acceptor> acceptors = new ArrayList<>();
+    private final List<Transport.Channel> channels = new ArrayList<>();     // Accepted links, closed with the cluster
+    private final Map<Integer, List<JSONObject>> delivered = new ConcurrentHashMap<>();   // Delivered payloads, by port
+
+    /**
+     * @param mode   Broadcast.Mode run by the correct servers
+     * @param f      int corresponding to the maximum number of faulty servers
+     * @param n      int corresponding to the number of servers, the last one being faulty
+     * @param window int corresponding to the maximum number of concurrent instances per origin
+     */
+    MemoryCluster(Broadcast.Mode mode, int f, int n, int window) throws NoSuchAlgorithmException, IOException {
+        for (int i = 0; i < n; i++)
+            keys.add(MyCrypto.generateKeyPair());
+        for (int i = 0; i < n; i++) {
+            List<ServerChannel> channels = new ArrayList<>();
+            for (int j = 0; j < n; j++)
+                channels.add(new ServerChannel(port(j), keys.get(j).getPublic(), keys.get(i).getPublic(), keys.get(i).getPrivate(), transport));
+            servers.add(channels);
+        }
+        for (int i = 0; i < n; i++) {
+            Transport.Acceptor acceptor = transport.listen(port(i));
+            acceptors.add(acceptor);
+            Broadcast broadcast = null;
+            if (i < n - 1) {
+                broadcast = mode.create(f, servers.get(i), port(i), window);
+                List<JSONObject> payloads = new ArrayList<>();
+                delivered.put(port(i), payloads);
+                broadcast.listen(payload -> {
+                    synchronized (payloads) {
+                        payloads.add(payload);
+                    }
+                });
+                broadcasts.add(broadcast);
+            }
+            start(acceptor, i, broadcast);
+        }
+    }
+
+    static int port(int server) {
+        return BASE_PORT + server;
+    }
+
+    Broadcast broadcast(int server) {
+        return broadcasts.get(server);
+    }
+
+    /**
+     * @return a copy of the payloads delivered by a correct server, in delivery order
+     */
+    List<JSONObject> delivered(int server) {
+        List<JSONObject> payloads = delivered.get(port(server));
+        synchronized (payloads) {
+            return new ArrayList<>(payloads);
+        }
+    }
+
+    /**
+     * Hand a correct server a message as if it came from another server
+     *
+     * @param to      int corresponding to the index of the correct server
+     * @param message JSONObject corresponding to the message
+     * @param from    int corresponding to the index of the sender
+     */
+    void inject(int to, JSONObject message, int from) {
+        broadcasts.get(to).receive(message, servers.get(to).get(from));
+    }
+
+    /**
+     * Sign a statement with the key of a server, as the protocols do
+     *
+     * @param server    int corresponding to the index of the signing server
+     * @param statement bytes to sign
+     * @return the Base64 encoded signature
+     */
+    String sign(int server, byte[] statement) {
+        return servers.get(server).get(server).signStatement(statement);
+    }
+
+    /**
+     * Wait for a condition, failing after the timeout
+     *
+     * @param condition BooleanSupplier of the condition
+     * @param timeout   long corresponding to the longest wait, in ms
+     * @param message   String corresponding to the failure message
+     */
+    static void await(BooleanSupplier condition, long timeout, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, message);
+            Thread.sleep(10);
+        }
+    }
+
+    private void start(Transport.Acceptor acceptor, int server, Broadcast broadcast) {
+        Thread thread = new Thread(() -> {
+            try {
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    Transport.Channel channel = acceptor.accept();
+                    synchronized (channels) {
+                        channels.add(channel);
+                    }
+                    Thread reader = new Thread(() -> read(channel, server, broadcast), "link-reader-" + port(server));
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            } catch (IOException e) {
+                // closed with the cluster
+            }
+        }, "acceptor-" + port(server));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void read(Transport.Channel channel, int server, Broadcast broadcast) {
+        try {
+            String line;
+            while ((line = channel.readLine()) != null) {
+                JSONObject packet = new JSONObject(line);
+                ServerChannel sc = sender(server, packet);
+                if (broadcast != null)
+                    broadcast.receive(packet, sc);
+                if (!channel.ready()) {
+                    JSONObject ack = new JSONObject();
+                    ack.put(Parameters.ack.name(), packet.getLong(Parameters.message_id.name()));
+                    ack.put(Parameters.session.name(), packet.getString(Parameters.session.name()));
+                    ack.put(Parameters.signature.name(), MyCrypto.digestAndSignToB64(ack.toString().getBytes(), keys.get(server).getPrivate()));
+                    channel.writeLine(ack.toString());
+                }
+            }
+        } catch (Exception e) {
+            // the link is closed, the peer reconnects
+        }
+    }
+
+    /**
+     * @return the ServerChannel of the server that signed a message, as seen by the receiving server
+     */
+    private ServerChannel sender(int server, JSONObject packet) throws Exception {
+        PublicKey publicKey = MyCrypto.publicKeyFromB64String(packet.getString(Parameters.client_public_key.name()));
+        JSONObject body = new JSONObject(packet.toString());
+        byte[] sig = MyCrypto.decodeB64((String) body.remove(Parameters.signature.name()));
+        for (ServerChannel s : servers.get(server)) {
+            if (s.serverPublicKey.equals(publicKey) && MyCrypto.verifySignature(sig, body.toString().getBytes(), publicKey))
+                return s;
+        }
+        throw new IllegalArgumentException("Unknown server or bad signature");
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Transport.Acceptor acceptor : acceptors)
+            acceptor.close();
+        synchronized (channels) {
+            for (Transport.Channel channel : channels)
+                channel.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package pt.tecnico.model;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.security.KeyPair;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static pt.tecnico.model.MemoryCluster.await;
+
+/**
+ * A link to a peer played by the test: messages must stay in flight until the peer acknowledges them in the session
+ * of the link, and be written again on a new connection when the previous one breaks
+ */
+@Timeout(60)
+class PeerLinkTest {
+    private static final int PORT = 9200;
+    private static final long TIMEOUT = 10 * 1000;
+
+    private final MemoryTransport transport = new MemoryTransport();
+    private KeyPair peerKeys;
+    private Transport.Acceptor acceptor;
+    private PeerLink link;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        KeyPair keys = MyCrypto.generateKeyPair();
+        peerKeys = MyCrypto.generateKeyPair();
+        acceptor = transport.listen(PORT);
+        link = new PeerLink(new ServerChannel(PORT, peerKeys.getPublic(), keys.getPublic(), keys.getPrivate(), transport));
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        acceptor.close();
+    }
+
+    private static JSONObject message(int number) {
+        JSONObject msg = new JSONObject();
+        msg.put(Parameters.number.name(), number);
+        return msg;
+    }
+
+    /**
+     * Acknowledge every message up to an id, as ServerThread does
+     */
+    private void ack(Transport.Channel channel, long id, String session) throws Exception {
+        JSONObject ack = new JSONObject();
+        ack.put(Parameters.ack.name(), id);
+        ack.put(Parameters.session.name(), session);
+        ack.put(Parameters.signature.name(), MyCrypto.digestAndSignToB64(ack.toString().getBytes(), peerKeys.getPrivate()));
+        channel.writeLine(ack.toString());
+    }
+
+    @Test
+    void acksClearMessagesInFlight() throws Exception {
+        for (int k = 0; k < 3; k++)
+            link.send(message(k));
+        Transport.Channel channel = acceptor.accept();
+        String session = null;
+        for (int k = 0; k < 3; k++) {
+            JSONObject msg = new JSONObject(channel.readLine());
+            assertEquals(k + 1, msg.getLong(Parameters.message_id.name()));
+            assertEquals(k, msg.getInt(Parameters.number.name()));
+            if (session == null)
+                session = msg.getString(Parameters.session.name());
+            assertEquals(session, msg.getString(Parameters.session.name()));
+        }
+        assertEquals(3, link.getInFlight());
+        // acks are cumulative
+        ack(channel, 2, session);
+        await(() -> link.getInFlight() == 1, TIMEOUT, "Acknowledged messages still in flight");
+        ack(channel, 3, session);
+        await(() -> link.getInFlight() == 0, TIMEOUT, "Acknowledged messages still in flight");
+    }
+
+    @Test
+    void unacknowledgedMessagesAreWrittenAgainAfterReconnection() throws Exception {
+        link.send(message(0));
+        link.send(message(1));
+        Transport.Channel first = acceptor.accept();
+        String session = new JSONObject(first.readLine()).getString(Parameters.session.name());
+        first.readLine();
+        ack(first, 1, session);
+        await(() -> link.getInFlight() == 1, TIMEOUT, "Acknowledged message still in flight");
+        first.close();
+
+        // the link reconnects by itself, and writes what the peer did not acknowledge before any new message
+        Transport.Channel second = acceptor.accept();
+        link.send(message(2));
+        JSONObject again = new JSONObject(second.readLine());
+        assertEquals(2, again.getLong(Parameters.message_id.name()));
+        assertEquals(1, again.getInt(Parameters.number.name()));
+        JSONObject next = new JSONObject(second.readLine());
+        assertEquals(3, next.getLong(Parameters.message_id.name()));
+        assertEquals(session, next.getString(Parameters.session.name()));
+        ack(second, 3, session);
+        await(() -> link.getInFlight() == 0, TIMEOUT, "Acknowledged messages still in flight");
+    }
+
+    @Test
+    void acksOfOtherSessionsOrUnsentMessagesAreIgnored() throws Exception {
+        link.send(message(0));
+        link.send(message(1));
+        Transport.Channel channel = acceptor.accept();
+        String session = new JSONObject(channel.readLine()).getString(Parameters.session.name());
+        channel.readLine();
+        // a previous run of the link, whose ids started over, and an ack beyond what was sent
+        ack(channel, 2, "previous");
+        ack(channel, 5, session);
+        ack(channel, 1, session);
+        await(() -> link.getInFlight() < 2, TIMEOUT, "Acknowledged message still in flight");
+        Thread.sleep(200);
+        assertEquals(1, link.getInFlight());
+    }
+}
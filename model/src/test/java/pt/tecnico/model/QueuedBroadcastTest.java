@@ -0,0 +1,138 @@
+package pt.tecnico.model;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static pt.tecnico.model.MemoryCluster.await;
+
+/**
+ * The readers of the links only queue their messages: a single protocol thread, started by start(), must run them
+ * in arrival order, whatever the protocol does with them
+ */
+@Timeout(60)
+class QueuedBroadcastTest {
+    private static final long TIMEOUT = 10 * 1000;
+
+    private ServerChannel sender;
+    private Recording protocol;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        KeyPair keys = MyCrypto.generateKeyPair();
+        sender = new ServerChannel(9301, keys.getPublic(), keys.getPublic(), keys.getPrivate(), new MemoryTransport());
+        protocol = new Recording();
+    }
+
+    private static JSONObject message(int number) {
+        JSONObject msg = new JSONObject();
+        msg.put(Parameters.number.name(), number);
+        return msg;
+    }
+
+    @Test
+    void messagesWaitForStart() throws Exception {
+        for (int k = 0; k < 3; k++)
+            protocol.receive(message(k), sender);
+        Thread.sleep(200);
+        assertEquals(List.of(), protocol.handled());
+        assertEquals(3, protocol.getInboxSize());
+
+        protocol.start();
+        protocol.start();
+        await(() -> protocol.handled().size() == 3, TIMEOUT, "Queued messages not run");
+        assertEquals(List.of(0, 1, 2), protocol.handled());
+        assertEquals(Set.of("test-protocol"), protocol.threads);
+        assertEquals(1, protocol.started.get());
+        assertEquals(0, protocol.getInboxSize());
+    }
+
+    @Test
+    void receiveDoesNotWaitForProtocol() throws Exception {
+        protocol.start();
+        protocol.blocked = new CountDownLatch(1);
+        protocol.receive(message(0), sender);
+        // the protocol thread is stuck in the first message, the next ones are queued all the same
+        for (int k = 1; k < 100; k++)
+            protocol.receive(message(k), sender);
+        assertTrue(protocol.getInboxSize() >= 99);
+        protocol.blocked.countDown();
+        await(() -> protocol.handled().size() == 100, TIMEOUT, "Queued messages not run");
+        for (int k = 0; k < 100; k++)
+            assertEquals(k, protocol.handled().get(k));
+    }
+
+    @Test
+    void malformedMessageDoesNotStopProtocol() throws Exception {
+        protocol.start();
+        protocol.receive(message(0), sender);
+        protocol.receive(new JSONObject(), sender);
+        protocol.receive(message(2), sender);
+        await(() -> protocol.handled().size() == 2, TIMEOUT, "Protocol stopped by a malformed message");
+        assertEquals(List.of(0, 2), protocol.handled());
+    }
+
+    /**
+     * Protocol recording the numbers of the messages it runs, and the threads running them
+     */
+    private static class Recording extends QueuedBroadcast {
+        private final List<Integer> handled = new ArrayList<>();
+        private final Set<String> threads = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger started = new AtomicInteger();
+        private volatile CountDownLatch blocked = new CountDownLatch(0);    // Holds the protocol thread in handle
+
+        private Recording() {
+            super("test-protocol", 9300);
+        }
+
+        @Override
+        void started() {
+            started.incrementAndGet();
+        }
+
+        @Override
+        void handle(JSONObject message, ServerChannel sc) {
+            threads.add(Thread.currentThread().getName());
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            int number = message.getInt(Parameters.number.name());
+            synchronized (handled) {
+                handled.add(number);
+            }
+        }
+
+        private List<Integer> handled() {
+            synchronized (handled) {
+                return new ArrayList<>(handled);
+            }
+        }
+
+        @Override
+        public void broadcast(JSONObject msg) {
+        }
+
+        @Override
+        public long getDeliveredCount() {
+            return 0;
+        }
+
+        @Override
+        public long getSentCount() {
+            return 0;
+        }
+    }
+}
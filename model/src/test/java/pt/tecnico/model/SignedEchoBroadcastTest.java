@@ -0,0 +1,161 @@
+package pt.tecnico.model;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static pt.tecnico.model.MemoryCluster.await;
+import static pt.tecnico.model.MemoryCluster.port;
+
+/**
+ * Four servers, one of them faulty (N=4, F=1): the three correct ones must deliver the payloads of each other without
+ * the faulty one, and only deliver the payloads of the faulty one under a certificate of (N+F)/2+1 valid echoes
+ */
+@Timeout(60)
+class SignedEchoBroadcastTest {
+    private static final int F = 1;
+    private static final int N = 4;
+    private static final long TIMEOUT = 20 * 1000;
+    private static final int FAULTY = N - 1;
+
+    private MemoryCluster cluster;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        cluster = new MemoryCluster(Broadcast.Mode.signed_echo, F, N, BRBroadcast.DEFAULT_WINDOW);
+    }
+
+    @AfterEach
+    void afterEach() throws Exception {
+        cluster.close();
+    }
+
+    private static JSONObject payload(int origin, int number) {
+        JSONObject payload = new JSONObject();
+        payload.put(Parameters.origin.name(), origin);
+        payload.put(Parameters.number.name(), number);
+        return payload;
+    }
+
+    private static String digest(JSONObject payload) throws Exception {
+        return Base64.getEncoder().encodeToString(MyCrypto.digest(payload.toString().getBytes()));
+    }
+
+    /**
+     * @return the echo signature of a server for an instance of the faulty server
+     */
+    private String echo(int signer, String id, String digest) {
+        byte[] statement = ("ECHO\n" + port(FAULTY) + "\n" + id + "\n" + digest).getBytes(StandardCharsets.UTF_8);
+        return cluster.sign(signer, statement);
+    }
+
+    /**
+     * Hand server 0 the SEND of an instance of the faulty server
+     */
+    private void send(String id, JSONObject payload) {
+        JSONObject send = new JSONObject();
+        send.put(Parameters.broadcast.name(), "SEND");
+        send.put(Parameters.instance_id.name(), id);
+        send.put(Parameters.payload.name(), payload);
+        cluster.inject(0, send, FAULTY);
+    }
+
+    /**
+     * Hand server 0 the FINAL of an instance of the faulty server
+     */
+    private void fin(String id, String digest, JSONObject certificate) {
+        JSONObject fin = new JSONObject();
+        fin.put(Parameters.broadcast.name(), "FINAL");
+        fin.put(Parameters.instance_id.name(), id);
+        fin.put(Parameters.payload_digest.name(), digest);
+        fin.put(Parameters.certificate.name(), certificate);
+        cluster.inject(0, fin, FAULTY);
+    }
+
+    /**
+     * @return a certificate holding the genuine echoes of some servers
+     */
+    private JSONObject certificate(String id, String digest, int... signers) {
+        JSONObject certificate = new JSONObject();
+        for (int signer : signers)
+            certificate.put(String.valueOf(port(signer)), echo(signer, id, digest));
+        return certificate;
+    }
+
+    @Test
+    void deliversWithFaultyServerSilent() throws Exception {
+        int count = 10;
+        for (int k = 0; k < count; k++) {
+            for (int origin = 0; origin < N - 1; origin++)
+                cluster.broadcast(origin).broadcast(payload(origin, k));
+        }
+        for (int server = 0; server < N - 1; server++) {
+            int s = server;
+            await(() -> cluster.delivered(s).size() == (N - 2) * count, TIMEOUT, "Server " + s + " did not deliver every payload");
+            await(() -> ((SignedEchoBroadcast) cluster.broadcast(s)).getLiveInstances() == 0, TIMEOUT, "Server " + s + " kept delivered instances");
+        }
+    }
+
+    @Test
+    void rejectsShortAndForgedCertificates() throws Exception {
+        JSONObject shortPayload = payload(FAULTY, 0);
+        String shortDigest = digest(shortPayload);
+        send("short", shortPayload);
+        // genuine echoes, but one short of the quorum of 3
+        fin("short", shortDigest, certificate("short", shortDigest, 0, FAULTY));
+
+        JSONObject forgedPayload = payload(FAULTY, 1);
+        String forgedDigest = digest(forgedPayload);
+        send("forged", forgedPayload);
+        // the faulty server signs in the name of servers 1 and 2
+        JSONObject forged = certificate("forged", forgedDigest, FAULTY);
+        forged.put(String.valueOf(port(1)), echo(FAULTY, "forged", forgedDigest));
+        forged.put(String.valueOf(port(2)), echo(FAULTY, "forged", forgedDigest));
+        fin("forged", forgedDigest, forged);
+        // genuine echoes of servers 1 and 2, but for another instance
+        fin("forged", forgedDigest, certificate("other", forgedDigest, 1, 2, FAULTY));
+
+        // the link is FIFO: once a valid certificate is delivered, the ones before it were all rejected
+        JSONObject validPayload = payload(FAULTY, 2);
+        String validDigest = digest(validPayload);
+        send("valid", validPayload);
+        fin("valid", validDigest, certificate("valid", validDigest, 1, 2, FAULTY));
+        await(() -> cluster.delivered(0).size() == 1, TIMEOUT, "Valid certificate rejected");
+        Thread.sleep(200);
+        assertEquals(1, cluster.delivered(0).size());
+        assertEquals(validPayload.toString(), cluster.delivered(0).get(0).toString());
+        assertEquals(2, ((SignedEchoBroadcast) cluster.broadcast(0)).getLiveInstances());
+    }
+
+    @Test
+    void evictsUncertifiedInstances() throws Exception {
+        SignedEchoBroadcast broadcast = (SignedEchoBroadcast) cluster.broadcast(0);
+        JSONObject stalePayload = payload(FAULTY, 0);
+        String staleDigest = digest(stalePayload);
+        send("stale", stalePayload);
+        await(() -> broadcast.getLiveInstances() == 1, TIMEOUT, "Instance not created");
+        broadcast.evict(System.currentTimeMillis());
+        assertEquals(1, broadcast.getLiveInstances());
+        assertEquals(0, broadcast.getEvictedCount());
+
+        // an hour later, the sender never sent its FINAL
+        broadcast.evict(System.currentTimeMillis() + 60 * 60 * 1000);
+        assertEquals(0, broadcast.getLiveInstances());
+        assertEquals(1, broadcast.getEvictedCount());
+
+        // a FINAL coming after the eviction finds no payload to deliver
+        fin("stale", staleDigest, certificate("stale", staleDigest, 1, 2, FAULTY));
+        JSONObject nextPayload = payload(FAULTY, 1);
+        String nextDigest = digest(nextPayload);
+        send("next", nextPayload);
+        fin("next", nextDigest, certificate("next", nextDigest, 1, 2, FAULTY));
+        await(() -> cluster.delivered(0).size() == 1, TIMEOUT, "Valid certificate rejected");
+        assertEquals(nextPayload.toString(), cluster.delivered(0).get(0).toString());
+    }
+}
@@ -1,25 +1,28 @@
 package pt.tecnico.server;
 
 import pt.tecnico.model.Announcement;
+import pt.tecnico.model.BoardRange;
+import pt.tecnico.model.Log;
 import pt.tecnico.model.MyCrypto;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 public class Board {
     private final String publicKey;                     // Board public key identifier
     private final List<Announcement> announcements;     // List of announcements the Board contains
+    private final List<byte[]> digests;                 // Hash chain values, digests.get(i) covers the first i announcements
     private Integer id = null;                          // Board id, null if it had not been inserted in the database
 
     /**
      * @param publicKey PublicKey identifying the Board
      */
     public Board(String publicKey) {
-        this.publicKey = publicKey;
-        this.announcements = new ArrayList<>();
+        this(publicKey, null, new ArrayList<>());
     }
 
     /**
@@ -31,6 +34,11 @@ public class Board {
         this.publicKey = publicKey;
         this.id = id;
         this.announcements = announcements;
+        this.digests = new ArrayList<>();
+        this.digests.add(BoardRange.EMPTY_DIGEST);
+        //noinspection unchecked
+        Collections.sort(announcements);
+        announcements.forEach(this::appendDigest);
     }
 
     /**
@@ -43,7 +51,7 @@ public class Board {
         try {
             board_key = MyCrypto.generateKeyPair().getPublic();
         } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+            Log.error("%s", e.getMessage(), e);
         }
         return new Board(MyCrypto.publicKeyToB64String(board_key));
     }
@@ -52,8 +60,21 @@ public class Board {
         return publicKey;
     }
 
-    public void addAnnouncement(Announcement announcement) {
+    /**
+     * Append an announcement to the Board and to its hash chain, which relies on the announcements being appended in
+     * id order: the caller must hold the Board lock from the time the id is assigned
+     *
+     * @param announcement Announcement to append, with the highest id of the Board
+     */
+    public synchronized void addAnnouncement(Announcement announcement) {
+        if (!announcements.isEmpty() && announcements.get(announcements.size() - 1).getId() >= announcement.getId())
+            throw new IllegalStateException("Announcement " + announcement.getId() + " appended out of id order");
         announcements.add(announcement);
+        appendDigest(announcement);
+    }
+
+    private void appendDigest(Announcement announcement) {
+        digests.add(BoardRange.chain(digests.get(digests.size() - 1), announcement));
     }
 
     /**
@@ -61,14 +82,75 @@ public class Board {
      * @return a sublist of announcements containing the number most recent announcements
      */
     public List<Announcement> getAnnouncements(int number) {
-        //noinspection unchecked
-        Collections.sort(announcements); // should already be sorted by id (so, chronological) but we never now...
-        if (number == 0)
-            return announcements;
+        return getRange(number).getAnnouncements();
+    }
 
+    /**
+     * @param number Integer corresponding to the number of most recent announcements to get (0 for all announcements)
+     * @return a BoardRange with the number most recent announcements and the digests proving them
+     */
+    public BoardRange getRange(int number) {
+        return getRange(number, null);
+    }
+
+    /**
+     * @param number      Integer corresponding to the number of most recent announcements to get (0 for all announcements)
+     * @param boardDigest Base64 encoded String corresponding to the chain value of the state to read, null for the current one
+     * @return a BoardRange with the number most recent announcements of that state and the digests proving them
+     * @throws IllegalArgumentException in case the Board never was in that state
+     */
+    public synchronized BoardRange getRange(int number, String boardDigest) throws IllegalArgumentException {
+        // announcements are appended in id (so, chronological) order, which the hash chain relies on
+        int size = sizeAt(boardDigest);
+        int from = number == 0 || number > size ? 0 : size - number;
+        return new BoardRange(new ArrayList<>(announcements.subList(from, size)), digests.get(from), digests.get(size));
+    }
+
+    /**
+     * @param afterId int corresponding to the id of the last announcement the reader already has
+     * @return a BoardRange with the announcements posted after it and the digests proving them, the prefix digest
+     * being the chain value the reader must already hold for its copy to continue into this range
+     */
+    public BoardRange getRangeAfter(int afterId) {
+        return getRangeAfter(afterId, null);
+    }
+
+    /**
+     * @param afterId     int corresponding to the id of the last announcement the reader already has
+     * @param boardDigest Base64 encoded String corresponding to the chain value of the state to read, null for the current one
+     * @return a BoardRange with the announcements posted after it up to that state and the digests proving them
+     * @throws IllegalArgumentException in case the Board never was in that state
+     */
+    public synchronized BoardRange getRangeAfter(int afterId, String boardDigest) throws IllegalArgumentException {
+        // ids grow with the position in the board, so the first newer announcement can be found by bisection
+        int size = sizeAt(boardDigest);
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (announcements.get(mid).getId() <= afterId)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return new BoardRange(new ArrayList<>(announcements.subList(low, size)), digests.get(low), digests.get(size));
+    }
+
+    /**
+     * @param boardDigest Base64 encoded String corresponding to a chain value, null for the current one
+     * @return the number of announcements the Board had when its chain value was boardDigest
+     * @throws IllegalArgumentException in case the Board never was in that state
+     */
+    private int sizeAt(String boardDigest) throws IllegalArgumentException {
         int size = announcements.size();
-        int from = number <= size ? size - number : 0;
-        return announcements.subList(from, size);
+        if (boardDigest == null)
+            return size;
+        byte[] digest = MyCrypto.decodeB64(boardDigest);
+        // readers ask for a recent state, the posts made since their digest round are few
+        for (int i = size; i >= 0; i--) {
+            if (Arrays.equals(digests.get(i), digest))
+                return i;
+        }
+        throw new IllegalArgumentException("The board never had the requested digest");
     }
 
     public Integer getId() {
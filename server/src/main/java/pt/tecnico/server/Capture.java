@@ -0,0 +1,187 @@
+package pt.tecnico.server;
+
+import pt.tecnico.model.Log;
+import pt.tecnico.model.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Capture of the client requests a server receives, to replay them later against a test cluster.
+ * <p>
+ * The capture file is a gzip stream: a header (magic number and wall clock start in milliseconds), then one frame per
+ * request: the time it was received in microseconds since the start, the length of the request and the request line
+ * itself in UTF-8. The requests are written by a background thread, and flushed at least every second so that the
+ * file of a killed server can still be read up to then.
+ */
+public final class Capture {
+    private static final int MAGIC = 0x44504331;                // "DPC1"
+    private static final int CAPACITY = 65536;                  // Requests waiting to be written
+    private static final long FLUSH_PERIOD = 1000;              // Longest time a written request stays buffered, in ms
+    private static final LongAdder DROPPED = Metrics.counter("capture.dropped");
+
+    private static volatile BlockingQueue<Frame> queue = null;  // null while not capturing
+    private static long originNanos;                            // System.nanoTime() when the capture started
+
+    private Capture() {
+    }
+
+    /**
+     * Start capturing, writing the requests to a new file. Only the first call of a JVM opens a file
+     *
+     * @param file Path of the capture file, replaced if it exists
+     * @throws IOException in case the file can not be created
+     */
+    public static synchronized void open(Path file) throws IOException {
+        if (queue != null)
+            return;
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(file)), true));
+        out.writeInt(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+        out.flush();
+        originNanos = System.nanoTime();
+        BlockingQueue<Frame> frames = new ArrayBlockingQueue<>(CAPACITY);
+        Thread writer = new Thread(() -> write(frames, out), "capture-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> close(frames, out), "capture-close"));
+        queue = frames;
+    }
+
+    /**
+     * Capture a client request, received now
+     *
+     * @param request String corresponding to the request line, as the client sent it
+     */
+    static void record(String request) {
+        BlockingQueue<Frame> frames = queue;
+        if (frames == null || request == null)
+            return;
+        if (!frames.offer(new Frame((System.nanoTime() - originNanos) / 1000, request)))
+            DROPPED.increment();
+    }
+
+    private static void write(BlockingQueue<Frame> frames, DataOutputStream out) {
+        List<Frame> batch = new ArrayList<>();
+        long flushed = System.currentTimeMillis();
+        //noinspection InfiniteLoopStatement
+        while (true) {
+            try {
+                Frame first = frames.poll(FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+                if (first != null)
+                    batch.add(first);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            frames.drainTo(batch);
+            boolean flush = batch.isEmpty() || System.currentTimeMillis() - flushed >= FLUSH_PERIOD;
+            print(batch, out, flush);
+            if (flush)
+                flushed = System.currentTimeMillis();
+            batch.clear();
+        }
+    }
+
+    private static void close(BlockingQueue<Frame> frames, DataOutputStream out) {
+        List<Frame> batch = new ArrayList<>();
+        frames.drainTo(batch);
+        print(batch, out, true);
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.warn("Capture not closed: %s", e.getMessage());
+        }
+    }
+
+    private static synchronized void print(List<Frame> batch, DataOutputStream out, boolean flush) {
+        try {
+            for (Frame frame : batch) {
+                byte[] bytes = frame.request.getBytes(StandardCharsets.UTF_8);
+                out.writeLong(frame.offset);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            if (flush)
+                out.flush();
+        } catch (IOException e) {
+            Log.warn("Requests not captured: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * A captured request
+     */
+    public static class Frame {
+        public final long offset;           // us since the start of the capture
+        public final String request;        // Request line, as the client sent it
+
+        Frame(long offset, String request) {
+            this.offset = offset;
+            this.request = request;
+        }
+    }
+
+    /**
+     * Reader of the frames of a capture file, in the order they were received
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long start;           // Wall clock start of the capture, in ms
+
+        /**
+         * @param file Path of the capture file
+         * @throws IOException in case the file can not be read or is not a capture
+         */
+        public Reader(Path file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException(file + " is not a capture file");
+            }
+            start = in.readLong();
+        }
+
+        /**
+         * @return the wall clock time the capture started at, in milliseconds since the epoch
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the next Frame, null at the end of the capture, or where the file of a killed server stops
+         * @throws IOException in case the file can not be read
+         */
+        public Frame next() throws IOException {
+            try {
+                long offset = in.readLong();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new Frame(offset, new String(bytes, StandardCharsets.UTF_8));
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package pt.tecnico.server;
 
 import pt.tecnico.model.Announcement;
+import pt.tecnico.model.Log;
+import pt.tecnico.model.Metrics;
+import pt.tecnico.model.Trace;
 
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -12,6 +16,9 @@ import java.util.List;
 public class Connect {
     //private static final String DB_DRIVER = "jdbc:mysql://localhost/sqldb?user=sqluser&password=sqluserpw" // MySQL example
     private final String DB_DRIVER;
+    private final Metrics.Timer boardInserts;           // Time to insert and commit a board
+    private final Metrics.Timer announcementInserts;    // Time to insert and commit an announcement and its references
+    private final String database;                      // Name of the database file, for the recorded events
 
     /**
      * Constructor creating the database, tables, adding the general board if needed, or populating the boards
@@ -21,6 +28,10 @@ public class Connect {
      */
     public Connect(String serverAlias, List<Board> boards, List<Integer> announcements) {
         DB_DRIVER = "jdbc:sqlite:" + serverAlias + ".db";
+        database = Paths.get(serverAlias).getFileName().toString();
+        String scope = "db." + database + ".";
+        boardInserts = Metrics.timer(scope + "commit_board");
+        announcementInserts = Metrics.timer(scope + "commit_announcement");
         try (Connection conn = this.connect();
              ResultSet tableBoards = conn.getMetaData()
                      .getTables(null, null, "boards", null);
@@ -34,10 +45,13 @@ public class Connect {
             } else {
                 // Tables do not exist
                 createNewTables();
-                insertBoard(Board.genGeneralBoard());
+                // the general board must also be the first one in memory, where the reads and posts look for it
+                Board general = Board.genGeneralBoard();
+                if (insertBoard(general))
+                    boards.add(general);
             }
         } catch (SQLException e) {
-            System.out.println(e.getMessage());
+            Log.error("%s", e.getMessage());
         }
     }
 
@@ -52,7 +66,7 @@ public class Connect {
             // create a connection to the database
             conn = DriverManager.getConnection(DB_DRIVER);
         } catch (SQLException e) {
-            System.out.println(e.getMessage());
+            Log.error("%s", e.getMessage());
         }
         return conn;
     }
@@ -93,7 +107,7 @@ public class Connect {
             stmt.execute(sql_announcements);
             stmt.execute(rel_announcements_referring);
         } catch (SQLException e) {
-            System.out.println(e.getMessage());
+            Log.error("%s", e.getMessage());
         }
     }
 
@@ -106,6 +120,9 @@ public class Connect {
     protected boolean insertBoard(Board board) {
         String sql = "INSERT INTO boards(public_key) VALUES(?)";
         boolean ret;
+        long start = System.nanoTime();
+        ServerEvents.DatabaseWrite event = new ServerEvents.DatabaseWrite();
+        event.begin();
 
         try (Connection conn = this.connect();
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -119,10 +136,12 @@ public class Connect {
                 throw new NullPointerException("Cannot retrieve last inserted board");
             }
         } catch (SQLException e) {
-            System.out.println(e.getMessage());
+            Log.error("%s", e.getMessage());
             ret = false;
         }
-
+        boardInserts.recordSince(start);
+        Trace.span("db.insert_board", start);
+        written(event, "boards", ret);
         return ret;
     }
 
@@ -138,6 +157,9 @@ public class Connect {
         boolean flagUpdatedRetToFalse = false;
         String sql = "INSERT INTO announcements(board_id, public_key, signature, message) VALUES(?,?,?,?)";
         String sql_rel = "INSERT INTO rel_announcements_referring(announcement_id, announcement_referring_id) VALUES(?,?)";
+        long start = System.nanoTime();
+        ServerEvents.DatabaseWrite event = new ServerEvents.DatabaseWrite();
+        event.begin();
 
         try (Connection conn = this.connect();
              PreparedStatement pstmt = conn.prepareStatement(sql);
@@ -162,12 +184,25 @@ public class Connect {
                 throw new NullPointerException("Cannot retrieve last inserted announcement");
             }
         } catch (SQLException e) {
-            System.out.println(e.getMessage());
+            Log.error("%s", e.getMessage());
             ret = false;
         }
+        announcementInserts.recordSince(start);
+        Trace.span("db.insert_announcement", start);
+        written(event, "announcements", ret);
         return ret;
     }
 
+    private void written(ServerEvents.DatabaseWrite event, String table, boolean success) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.database = database;
+            event.table = table;
+            event.success = success;
+            event.commit();
+        }
+    }
+
     /**
      * Populate the model from the database
      *
@@ -223,7 +258,7 @@ public class Connect {
                 ret = true;
             }
         } catch (SQLException e) {
-            System.out.println(e.getMessage());
+            Log.error("%s", e.getMessage());
             ret = false;
         }
         return ret;
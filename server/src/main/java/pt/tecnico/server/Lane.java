@@ -0,0 +1,86 @@
+package pt.tecnico.server;
+
+import pt.tecnico.model.Metrics;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor dedicated to one kind of traffic (clients or other servers), with its own threads and queue, so that one
+ * kind never waits behind the other
+ */
+public class Lane implements Executor {
+    private final String name;
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong totalWait = new AtomicLong();      // Sum of the times tasks waited in the queue, in ns
+    private final AtomicLong maxWait = new AtomicLong();        // Highest time a task waited in the queue, in ns
+    private final Metrics.Timer waitTimer;                      // Distribution of the times tasks waited in the queue
+
+    /**
+     * @param name    String corresponding to the name of the lane, also used for its threads
+     * @param threads int corresponding to the number of threads of the lane
+     */
+    public Lane(String name, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("A lane needs at least one thread");
+        this.name = name;
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.waitTimer = Metrics.timer("lane." + name + ".wait");
+        Metrics.gauge("lane." + name + ".queued", this::getQueued);
+        Metrics.gauge("lane." + name + ".active", this::getActive);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        long queued = System.nanoTime();
+        pool.execute(() -> {
+            long wait = System.nanoTime() - queued;
+            started.incrementAndGet();
+            totalWait.addAndGet(wait);
+            maxWait.accumulateAndGet(wait, Math::max);
+            waitTimer.record(wait);
+            task.run();
+        });
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueued() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return the number of threads running a task
+     */
+    public int getActive() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * @return the number of tasks that got a thread since startup
+     */
+    public long getStarted() {
+        return started.get();
+    }
+
+    /**
+     * @return a String summing up the occupation and queue of the lane
+     */
+    public String getStats() {
+        long count = started.get();
+        return String.format("%s: %d/%d threads busy, %d queued, %d started, queue wait avg %.2f ms max %.2f ms",
+                name, getActive(), pool.getMaximumPoolSize(), getQueued(), count,
+                count == 0 ? 0.0 : totalWait.get() / 1e6 / count, maxWait.get() / 1e6);
+    }
+}
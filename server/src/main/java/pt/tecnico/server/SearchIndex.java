@@ -0,0 +1,137 @@
+package pt.tecnico.server;
+
+import pt.tecnico.model.Announcement;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over the announcements messages, to answer keyword searches without scanning the boards
+ */
+public class SearchIndex {
+    private final Map<String, List<Posting>> postings = new HashMap<>();   // Token to the announcements containing it
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Split a text into lower case words, ignoring punctuation
+     *
+     * @param text String to tokenize
+     * @return a List of the words of the text, in order and with repetitions
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null)
+            return tokens;
+        for (String token : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{Nd}]+")) {
+            if (!token.isEmpty())
+                tokens.add(token);
+        }
+        return tokens;
+    }
+
+    /**
+     * Index every announcement of a Board, meant to be called when the boards are loaded from the database
+     *
+     * @param board Board whose announcements to index
+     */
+    public void addBoard(Board board) {
+        for (Announcement announcement : board.getAnnouncements(0))
+            add(board, announcement);
+    }
+
+    /**
+     * Index a newly posted announcement
+     *
+     * @param board        Board the announcement was posted to
+     * @param announcement Announcement to index
+     */
+    public void add(Board board, Announcement announcement) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String token : tokenize(announcement.getMessage()))
+            frequencies.merge(token, 1, Integer::sum);
+        lock.writeLock().lock();
+        try {
+            frequencies.forEach((token, frequency) ->
+                    postings.computeIfAbsent(token, k -> new ArrayList<>()).add(new Posting(board, announcement, frequency)));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rank the announcements matching a query, by number of distinct query words matched, then by number of
+     * occurrences, then most recent first
+     *
+     * @param query  String corresponding to the words to search for
+     * @param board  Board to search in, null to search all boards
+     * @param number int corresponding to the number of best ranked announcements to return (0 for all matches)
+     * @return a List of the number best ranked announcements, most relevant first
+     */
+    public List<Announcement> search(String query, Board board, int number) {
+        Map<Announcement, Score> scores = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (String token : new LinkedHashSet<>(tokenize(query))) {
+                for (Posting posting : postings.getOrDefault(token, Collections.emptyList())) {
+                    if (board != null && posting.board != board)
+                        continue;
+                    Score score = scores.computeIfAbsent(posting.announcement, Score::new);
+                    score.terms++;
+                    score.occurrences += posting.frequency;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        // we keep only the number best scores in a min-heap
+        int limit = number == 0 ? scores.size() : number;
+        PriorityQueue<Score> best = new PriorityQueue<>();
+        for (Score score : scores.values()) {
+            best.add(score);
+            if (best.size() > limit)
+                best.poll();
+        }
+        LinkedList<Announcement> ranked = new LinkedList<>();
+        while (!best.isEmpty())
+            ranked.addFirst(best.poll().announcement);
+        return ranked;
+    }
+
+    /**
+     * Occurrence of a token in an announcement
+     */
+    private static class Posting {
+        private final Board board;                  // Board the announcement belongs to
+        private final Announcement announcement;    // Announcement containing the token
+        private final int frequency;                // Number of times the token appears in the message
+
+        private Posting(Board board, Announcement announcement, int frequency) {
+            this.board = board;
+            this.announcement = announcement;
+            this.frequency = frequency;
+        }
+    }
+
+    /**
+     * Relevance of an announcement for a query, lowest first
+     */
+    private static class Score implements Comparable<Score> {
+        private final Announcement announcement;
+        private int terms = 0;                      // Number of distinct query words matched
+        private int occurrences = 0;                // Number of occurrences of the query words
+
+        private Score(Announcement announcement) {
+            this.announcement = announcement;
+        }
+
+        @Override
+        public int compareTo(Score o) {
+            if (terms != o.terms)
+                return Integer.compare(terms, o.terms);
+            if (occurrences != o.occurrences)
+                return Integer.compare(occurrences, o.occurrences);
+            return Integer.compare(announcement.getId(), o.announcement.getId());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package pt.tecnico.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events of the lifecycle of a client request, and of the database writes, under DPAS / Server
+ * in the recordings. They cost nothing while no recording runs
+ */
+final class ServerEvents {
+    private ServerEvents() {
+    }
+
+    @Name("pt.tecnico.RequestReceive")
+    @Label("Request Receive")
+    @Category({"DPAS", "Server"})
+    @Description("A thread of the lane waiting for the first line of a connection")
+    @StackTrace(false)
+    static class Receive extends jdk.jfr.Event {
+        @Label("Server")
+        int server;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+
+    @Name("pt.tecnico.RequestVerify")
+    @Label("Request Verify")
+    @Category({"DPAS", "Server"})
+    @Description("The signature check of a client request")
+    @StackTrace(false)
+    static class Verify extends jdk.jfr.Event {
+        @Label("Server")
+        int server;
+
+        @Label("Action")
+        String action;
+
+        @Label("Valid")
+        boolean valid;
+    }
+
+    @Name("pt.tecnico.RequestHandle")
+    @Label("Request Handle")
+    @Category({"DPAS", "Server"})
+    @Description("The execution of a request, received from the client or delivered by the broadcast")
+    @StackTrace(false)
+    static class Handle extends jdk.jfr.Event {
+        @Label("Action")
+        String action;
+
+        @Label("Board")
+        @Description("End of the public key of the board, none for the general board")
+        String board;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+
+    @Name("pt.tecnico.RequestRespond")
+    @Label("Request Respond")
+    @Category({"DPAS", "Server"})
+    @Description("Signing and writing the response to a client request")
+    @StackTrace(false)
+    static class Respond extends jdk.jfr.Event {
+        @Label("Server")
+        int server;
+
+        @Label("Action")
+        String action;
+
+        @Label("Status")
+        String status;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+
+    @Name("pt.tecnico.DatabaseWrite")
+    @Label("Database Write")
+    @Category({"DPAS", "Server"})
+    @Description("An insert into the SQLite database, committed")
+    @StackTrace(false)
+    static class DatabaseWrite extends jdk.jfr.Event {
+        @Label("Database")
+        String database;
+
+        @Label("Table")
+        String table;
+
+        @Label("Success")
+        boolean success;
+    }
+}
@@ -1,14 +1,22 @@
 package pt.tecnico.server;
 
+import org.json.JSONObject;
 import pt.tecnico.model.BRBroadcast;
-import pt.tecnico.model.MyCrypto;
+import pt.tecnico.model.Broadcast;
+import pt.tecnico.model.BatchBroadcast;
+import pt.tecnico.model.BroadcastMetrics;
+import pt.tecnico.model.KeyStoreLoader;
+import pt.tecnico.model.Log;
+import pt.tecnico.model.Metrics;
+import pt.tecnico.model.Parameters;
 import pt.tecnico.model.ServerChannel;
+import pt.tecnico.model.TcpTransport;
+import pt.tecnico.model.Trace;
+import pt.tecnico.model.Transport;
 
 import java.io.*;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.ArrayList;
@@ -16,7 +24,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 // https://dzone.com/articles/simple-http-server-in-java
 
@@ -25,6 +36,10 @@ import java.util.concurrent.ThreadPoolExecutor;
  */
 public class ServerTCP {
     private static final String IP = "127.0.0.1";
+    private static final int DEFAULT_BATCH_SIZE = 16;
+    private static final long DEFAULT_BATCH_LINGER = 2;
+    private static final int DEFAULT_CLIENT_THREADS = 10;
+    private static final long STATS_PERIOD = 60 * 1000;        // How often the lanes statistics are printed, and the metrics file written, in ms
     private final int TIMEOUT = 50;
 
     /**
@@ -39,6 +54,9 @@ public class ServerTCP {
                 throw new IllegalArgumentException("Syntax: client <path/to/settings/file> server_number port");
             // We need the the path of the folder where to save the keys
             Map<String, String> opts = parseOptions(args[0]);
+            // optional logging level and payload sampling, the requests themselves are logged at DEBUG
+            Log.configure(Log.Level.valueOf(opts.getOrDefault("log_level", Log.Level.INFO.name())),
+                    Integer.parseInt(opts.getOrDefault("log_sample", "1")));
 
             PublicKey pub;
             PrivateKey priv;
@@ -49,52 +67,158 @@ public class ServerTCP {
             String serverNumber = args[1];
             int port = Integer.parseInt(args[2]);
             String serverAlias = "server_" + serverNumber;
-            // server private key
-            priv = MyCrypto.getPrivateKey(serverkeyStore, serverAlias, serverKeyPasswd);
-            pub = MyCrypto.getPublicKey(serverkeyStore, serverAlias, serverKeyPasswd);
+            // the keystore is opened once for all the keys, starting with the server private key
+            KeyStoreLoader keyStore = new KeyStoreLoader(serverkeyStore, serverKeyPasswd);
+            priv = keyStore.getPrivateKey(serverAlias);
+            pub = keyStore.getPublicKey(serverAlias);
             if (priv == null || pub == null) throw new IllegalArgumentException("Private/Public keys are null");
 
             // We get the servers's public keys a
-            // nd we parse the ports
-            PublicKey serverPublicKey;
-            ports = ports.replace(" ", "");
-            ports = ports.substring(1, ports.length() - 1);
-            String[] list = ports.split(",");
+            // nd we parse the ports, the servers talk to each other on the replica ports if there are any
+            String[] list = parsePorts(opts.getOrDefault("replica_ports", ports));
+            List<PublicKey> serverKeys = keyStore.getServerKeys(list.length);
             List<ServerChannel> servers = new ArrayList<>();
             for (int i = 0; i < list.length; i++) {
-                serverPublicKey = MyCrypto.getPublicKey(serverkeyStore, "server_" + i, serverKeyPasswd);
                 int portAux = Integer.parseInt(list[i]);
-                servers.add(new ServerChannel(portAux, serverPublicKey, pub, priv));
+                servers.add(new ServerChannel(portAux, serverKeys.get(i), pub, priv));
             }
+            int replicaPort = opts.containsKey("replica_ports") ? Integer.parseInt(list[Integer.parseInt(serverNumber)]) : port;
+            // optional ports the servers actually listen to each other on, when the replica ports are those of a proxy
+            int replicaListenPort = opts.containsKey("replica_listen_ports")
+                    ? Integer.parseInt(parsePorts(opts.get("replica_listen_ports"))[Integer.parseInt(serverNumber)]) : replicaPort;
             int F = Integer.parseInt(opts.get("f"));
+            // optional batching parameters
+            int batchSize = Integer.parseInt(opts.getOrDefault("batch_size", String.valueOf(DEFAULT_BATCH_SIZE)));
+            long batchLinger = Long.parseLong(opts.getOrDefault("batch_linger_ms", String.valueOf(DEFAULT_BATCH_LINGER)));
+            // optional broadcast protocol
+            Broadcast.Mode mode = Broadcast.Mode.valueOf(opts.getOrDefault("broadcast_mode", Broadcast.Mode.bracha.name()));
+            int window = Integer.parseInt(opts.getOrDefault("broadcast_window", String.valueOf(BRBroadcast.DEFAULT_WINDOW)));
+            // optional threads of each lane, the replica lane needs one per link from another server, and some room for reconnections
+            Lane clientLane = new Lane("client", Integer.parseInt(opts.getOrDefault("client_threads", String.valueOf(DEFAULT_CLIENT_THREADS))));
+            Lane replicaLane = new Lane("replica", Integer.parseInt(opts.getOrDefault("replica_threads", String.valueOf(2 * servers.size()))));
 
             // We start the server
             Twitter twitter = new Twitter(serverAlias);
             ServerTCP server = new ServerTCP();
-            server.start(port, twitter, priv, F, servers);
+            Broadcast broadcast = mode.create(F, servers, replicaPort, window);
+            BroadcastMetrics.register(broadcast, replicaPort);
+            // optional span file of the traced requests
+            if (opts.containsKey("trace_file"))
+                Trace.open(Paths.get(opts.get("trace_file")));
+            // optional capture of the client requests, to replay them with the Replayer of the loadgen module
+            if (opts.containsKey("capture_file"))
+                Capture.open(Paths.get(opts.get("capture_file")));
+            server.start(TcpTransport.INSTANCE, TcpTransport.INSTANCE.listen(port), replicaPort, replicaListenPort, twitter, priv, F, servers, new BatchBroadcast(broadcast, batchSize, batchLinger,
+                    handler(twitter, port)), clientLane, replicaLane, opts.get("metrics_file"));
         } catch (Exception e) {
-            System.err.println("Server exception: " + e.toString());
-            e.printStackTrace();
+            Log.error("Server exception: %s", e.toString(), e);
         }
     }
 
-    private void start(int port, Twitter twitter, PrivateKey privateKey, int F, List<ServerChannel> servers) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getByName(IP));
-        System.out.println("Server up, listening on " + IP + ":" + port + " and waiting for connections");
-        ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
-        BRBroadcast broadCast = new BRBroadcast(F, servers, port);
+    /**
+     * Start a server of a cluster running in this JVM, listening to the clients and the other servers on the same port,
+     * in background threads. The server runs until the JVM exits
+     *
+     * @param port       int corresponding to the port of the server
+     * @param twitter    Twitter holding the state of the server
+     * @param privateKey PrivateKey of the server
+     * @param F          int corresponding to the maximum number of faulty servers
+     * @param servers    List of ServerChannel to every server, holding the key pair of this server
+     * @param broadcast  Broadcast of this server, created for the same servers and port
+     * @param transport  Transport the clients and the other servers use to reach this server
+     * @throws IOException in case the port can not be bound
+     */
+    public static void startInBackground(int port, Twitter twitter, PrivateKey privateKey, int F, List<ServerChannel> servers, Broadcast broadcast, Transport transport) throws IOException {
+        // bound here, so that the server accepts connections as soon as we return
+        Transport.Acceptor acceptor = transport.listen(port);
+        BroadcastMetrics.register(broadcast, port);
+        BatchBroadcast batchBroadcast = new BatchBroadcast(broadcast, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_LINGER, handler(twitter, port));
+        Lane clientLane = new Lane("client-" + port, DEFAULT_CLIENT_THREADS);
+        Lane replicaLane = new Lane("replica-" + port, 2 * servers.size());
+        Thread server = new Thread(() -> {
+            try {
+                new ServerTCP().start(transport, acceptor, port, port, twitter, privateKey, F, servers, batchBroadcast, clientLane, replicaLane, null);
+            } catch (IOException e) {
+                Log.error("Server exception: %s", e.toString());
+            }
+        }, "server-" + port);
+        server.setDaemon(true);
+        server.start();
+    }
+
+    /**
+     * @param twitter Twitter holding the state of the server
+     * @param port    int corresponding to the client port of the server, naming its spans
+     * @return the handler of the requests, received or delivered, timing the handling of the traced ones
+     */
+    private static Function<JSONObject, JSONObject> handler(Twitter twitter, int port) {
+        String where = "server-" + port;
+        return packet -> Trace.within(packet.optString(Parameters.trace_id.name(), null), where, "handle",
+                () -> ServerThread.handleRequest(twitter, packet));
+    }
+
+    private void start(Transport transport, Transport.Acceptor acceptor, int replicaPort, int replicaListenPort, Twitter twitter, PrivateKey privateKey, int F, List<ServerChannel> servers, BatchBroadcast broadCast, Lane clientLane, Lane replicaLane, String metricsFile) throws IOException {
+        int port = acceptor.getPort();
+        Log.info("Server up, listening on %s:%d and waiting for connections", IP, port);
+        if (replicaListenPort != port) {
+            // the other servers have their own port, accepted in its own thread
+            Transport.Acceptor replicaAcceptor = transport.listen(replicaListenPort);
+            Log.info("Listening to the other servers on %s:%d", IP, replicaListenPort);
+            Thread replicaThread = new Thread(() -> accept(replicaAcceptor, channel -> replicaLane.execute(
+                    new ServerThread(twitter, privateKey, channel, F, servers, replicaPort, broadCast, null))), "replica-acceptor");
+            replicaThread.setDaemon(true);
+            replicaThread.start();
+        }
+        ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lane-stats");
+            t.setDaemon(true);
+            return t;
+        });
+        stats.scheduleAtFixedRate(() -> Log.info("Lanes: %s; %s", clientLane.getStats(), replicaLane.getStats()),
+                STATS_PERIOD, STATS_PERIOD, TimeUnit.MILLISECONDS);
+        Metrics.gauge("batch." + port + ".batches", broadCast::getBatches);
+        Metrics.gauge("batch." + port + ".requests", broadCast::getRequests);
+        if (metricsFile != null) {
+            // the whole dump is written again, so the file always holds the latest values
+            stats.scheduleAtFixedRate(() -> {
+                try (PrintStream out = new PrintStream(metricsFile, StandardCharsets.UTF_8)) {
+                    Metrics.dump(out);
+                } catch (IOException e) {
+                    Log.warn("Metrics not written: %s", e.getMessage());
+                }
+            }, STATS_PERIOD, STATS_PERIOD, TimeUnit.MILLISECONDS);
+        }
+        // client-server connections, and server links too when the servers share the client port
+        accept(acceptor, channel -> clientLane.execute(
+                new ServerThread(twitter, privateKey, channel, F, servers, port, broadCast, replicaLane)));
+    }
+
+    /**
+     * Accept the connections made to a port forever
+     *
+     * @param acceptor Transport.Acceptor to accept connections from
+     * @param handler  Consumer of the accepted connections, that must not block
+     */
+    private void accept(Transport.Acceptor acceptor, Consumer<Transport.Channel> handler) {
         //noinspection InfiniteLoopStatement
         while (true) {
-            Socket socket = serverSocket.accept();
-            socket.setSoTimeout(TIMEOUT * 1000);
-            System.out.printf("Established connection with socket-> %s:%d in a new thread\n", socket.getInetAddress().toString(), socket.getPort());
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
-            // client-server socket
-            threadPoolExecutor.execute(new ServerThread(twitter, privateKey, socket, in, out, F, servers, port, broadCast));
+            try {
+                Transport.Channel channel = acceptor.accept();
+                channel.setTimeout(TIMEOUT * 1000);
+                Log.debug("Established connection on port %d in a new thread", acceptor.getPort());
+                handler.accept(channel);
+            } catch (IOException e) {
+                Log.warn("Accept failed: %s", e.getMessage());
+            }
         }
     }
 
+    private static String[] parsePorts(String ports) {
+        ports = ports.replace(" ", "");
+        ports = ports.substring(1, ports.length() - 1);
+        return ports.split(",");
+    }
+
     private static Map<String, String> parseOptions(String file) throws IOException {
         Map<String, String> resp = new HashMap<>();
         // Open the file
@@ -20,24 +20,34 @@ import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 /**
  * Server class to handle client requests
  */
 public class ServerThread implements Runnable {
-    private final BRBroadcast broadcast;
+    private static final long MAX_PEER_IDLE = 5 * 60 * 1000;   // Time after which an idle server link is closed, in ms
+    // Current link of each server to each other, by our port and its port: a server opening a new link closes its
+    // previous one, which may be half-open and would otherwise hold a thread of the replica lane for good
+    private static final Map<String, Transport.Channel> PEER_LINKS = new ConcurrentHashMap<>();
+
+    private final BatchBroadcast broadcast;
+    private final Executor replicaLane;
     private int F;
     private ServerInt server;
     private PrivateKey privateKey;
 
-    private Socket clientSocket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private Transport.Channel channel;      // Connection opened by the client or by another server
     private List<ServerChannel> servers;
     private int port;
 
     private String clientPublicKey;
     private String clientNonce;
+    private final long accepted = System.nanoTime();    // When the connection was accepted, for the traces
+    private long started;                               // When a thread of the lane took the connection
 
     /**
      * @param server       ServerInt object that will handle register/post/read logic
@@ -48,53 +58,173 @@ public class ServerThread implements Runnable {
      * @param F
      * @param servers
      * @param port
-     * @param broadcast
+     * @param broadcast    BatchBroadcast used to broadcast the client requests and receive the other servers messages
      */
-    public ServerThread(ServerInt server, PrivateKey privateKey, Socket clientSocket, BufferedReader in, PrintWriter out, int F, List<ServerChannel> servers, int port, BRBroadcast broadcast) {
+    public ServerThread(ServerInt server, PrivateKey privateKey, Socket clientSocket, BufferedReader in, PrintWriter out, int F, List<ServerChannel> servers, int port, BatchBroadcast broadcast) {
+        this(server, privateKey, TcpTransport.channel(clientSocket, in, out), F, servers, port, broadcast, null);
+    }
+
+    /**
+     * @param server      ServerInt object that will handle register/post/read logic
+     * @param privateKey  PrivateKey to sign messages with
+     * @param channel     Transport.Channel of the connection, opened by a client or by another server
+     * @param F
+     * @param servers
+     * @param port
+     * @param broadcast   BatchBroadcast used to broadcast the client requests and receive the other servers messages
+     * @param replicaLane Executor where to move the connection if it turns out to be a server link, null to keep
+     *                    reading it in the current thread
+     */
+    public ServerThread(ServerInt server, PrivateKey privateKey, Transport.Channel channel, int F, List<ServerChannel> servers, int port, BatchBroadcast broadcast, Executor replicaLane) {
         this.server = server;
         this.privateKey = privateKey;
-        this.clientSocket = clientSocket;
-        this.in = in;
-        this.out = out;
+        this.channel = channel;
         this.F = F;
         this.servers = servers;
         this.port = port;
         this.broadcast = broadcast;
+        this.replicaLane = replicaLane;
     }
 
 
     @Override
     public void run() {
+        started = System.nanoTime();
         try {
-            String firstLine = in.readLine();
-            if (isClient(firstLine)) {
+            ServerEvents.Receive receive = new ServerEvents.Receive();
+            receive.begin();
+            String firstLine = channel.readLine();
+            receive.end();
+            if (receive.shouldCommit()) {
+                receive.server = port;
+                receive.size = firstLine == null ? 0 : firstLine.length();
+                receive.commit();
+            }
+            if (firstLine == null) {
+                // a client that got its answers from the other servers may give up before sending its request
+                closeClientConn();
+            } else if (isClient(firstLine)) {
                 clientReceive(firstLine);
+            } else if (replicaLane != null) {
+                // A server opened its long-lived link to our client port, we leave the client threads to the clients
+                replicaLane.execute(() -> peerReceive(firstLine));
             } else {
-                JSONObject packet = new JSONObject(firstLine);
-                PublicKey publicKey = MyCrypto.publicKeyFromB64String(packet.getString(Parameters.client_public_key.name()));
-                ServerChannel sc = null;
-                for (ServerChannel s : servers) {
-                    if (s.serverPublicKey.equals(publicKey)) {
-                        sc = s;
-                        break;
-                    }
-                }
-                System.out.printf("Received message from server:%d %s\n", sc.port, firstLine);
-                JSONObject req = broadcast.listen(packet, sc);
-                if (clientPublicKey == null || clientPublicKey.isEmpty()) {
-                    clientPublicKey = req.getString(Parameters.client_public_key.name());
-                }
-                handleRequest(req);
+                peerReceive(firstLine);
             }
         } catch (SocketTimeoutException e) {
-            System.err.println("Timeout reached");
+            Log.warn("Timeout reached");
         } catch (IllegalBlockSizeException | NoSuchPaddingException | BadPaddingException | NoSuchAlgorithmException | InvalidKeyException e) {
             throw new InternalError(e);
         } catch (IOException e) {
-            System.err.println(e.getMessage());
-        } catch (BadResponseException | BadSignatureException | InvalidKeySpecException e) {
-            e.printStackTrace();
+            Log.warn("%s", e.getMessage());
+        }
+    }
+
+    /**
+     * Read the messages of a server link until it is closed, queue them for the broadcast protocol (which handles
+     * the requests it delivers) and acknowledge what was read
+     *
+     * @param line String corresponding to the first message of the link
+     */
+    private void peerReceive(String line) {
+        String link = null;
+        try {
+            while (line != null) {
+                JSONObject packet = new JSONObject(line);
+                ServerChannel sc = checkPeer(packet);
+                if (link == null) {
+                    link = port + ":" + sc.port;
+                    Transport.Channel previous = PEER_LINKS.put(link, channel);
+                    if (previous != null) {
+                        Log.info("Server %d opened a new link, closing its previous one", sc.port);
+                        try {
+                            previous.close();
+                        } catch (IOException e) {
+                            Log.debug("Previous link not closed: %s", e.getMessage());
+                        }
+                    }
+                }
+                Log.payload("Received message from server:%d %s", sc.port, line);
+                broadcast.receive(packet, sc);
+                // acknowledge once we caught up with the link, to acknowledge bursts with a single message
+                if (!channel.ready())
+                    acknowledge(packet.getLong(Parameters.message_id.name()), packet.optString(Parameters.session.name()));
+                line = readPeerLine();
+            }
+        } catch (IllegalBlockSizeException | NoSuchPaddingException | BadPaddingException | NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new InternalError(e);
+        } catch (IOException | IllegalArgumentException | JSONException e) {
+            Log.warn("Server link closed: %s", e.getMessage());
+        } catch (InvalidKeySpecException e) {
+            Log.error("Bad server key: %s", e.getMessage(), e);
+        } finally {
+            if (link != null)
+                PEER_LINKS.remove(link, channel);
+            try {
+                closeClientConn();
+            } catch (IOException e) {
+                Log.warn("%s", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Wait for the next message of a server link, links being idle most of the time. A link idle for too long is
+     * closed, the other server opens a new one when it has something to send
+     *
+     * @return String corresponding to the next message, null if the link was closed or idle for too long
+     */
+    private String readPeerLine() throws IOException {
+        long idleSince = System.currentTimeMillis();
+        while (true) {
+            try {
+                return channel.readLine();
+            } catch (SocketTimeoutException e) {
+                if (System.currentTimeMillis() - idleSince >= MAX_PEER_IDLE) {
+                    Log.info("Closing a server link idle for %d s", MAX_PEER_IDLE / 1000);
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the server that sent a link message and check its signature
+     *
+     * @param packet JSONObject corresponding to the message
+     * @return the ServerChannel of the sender
+     * @throws IllegalArgumentException in case the sender is not a known server or the signature does not match
+     */
+    private ServerChannel checkPeer(JSONObject packet) throws InvalidKeySpecException, NoSuchAlgorithmException, NoSuchPaddingException, BadPaddingException, IllegalBlockSizeException, InvalidKeyException {
+        PublicKey publicKey = MyCrypto.publicKeyFromB64String(packet.getString(Parameters.client_public_key.name()));
+        ServerChannel sc = null;
+        for (ServerChannel s : servers) {
+            if (s.serverPublicKey.equals(publicKey)) {
+                sc = s;
+                break;
+            }
         }
+        if (sc == null)
+            throw new IllegalArgumentException("Unknown server");
+        JSONObject body = new JSONObject(packet.toString());
+        byte[] sig = MyCrypto.decodeB64((String) body.remove(Parameters.signature.name()));
+        if (!MyCrypto.verifySignature(sig, body.toString().getBytes(), publicKey))
+            throw new IllegalArgumentException("Server signature does not match the body");
+        return sc;
+    }
+
+    /**
+     * Tell the server at the other end of the link that every message up to the given id was received
+     *
+     * @param messageId long corresponding to the id of the last message read
+     * @param session   String corresponding to the session of the link the message carries, bound to the ack
+     */
+    private void acknowledge(long messageId, String session) throws NoSuchAlgorithmException, IllegalBlockSizeException, InvalidKeyException, BadPaddingException, NoSuchPaddingException, IOException {
+        JSONObject ack = new JSONObject();
+        ack.put(Parameters.ack.name(), messageId);
+        ack.put(Parameters.session.name(), session);
+        ack.put(Parameters.signature.name(), MyCrypto.digestAndSignToB64(ack.toString().getBytes(), privateKey));
+        channel.writeLine(ack.toString());
     }
 
     private boolean isClient(String msg) {
@@ -104,37 +234,83 @@ public class ServerThread implements Runnable {
 
 
     JSONObject clientReceive(String msg) throws IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException, NoSuchAlgorithmException, InvalidKeyException {
+        long start = System.nanoTime();
+        Capture.record(msg);
+        String action = "INVALID";      // until the request is checked
+        String traceId = null;
+        String where = "server-" + port;
         JSONObject resp;
         try {
             // extract the client's nonce and public key and check signature
-            JSONObject packet = check(msg);
-            System.out.println("Client message:" + packet.toString(2));
+            JSONObject packet = verify(msg);
+            action = packet.optString(Parameters.action.name(), action);
+            traceId = packet.optString(Parameters.trace_id.name(), null);
+            Trace.span(traceId, where, "queue", accepted, action);
+            Trace.span(traceId, where, "read", started, null);
+            Trace.span(traceId, where, "verify", start, null);
+            Log.payload("Client message: %s", packet);
             // we set the client's nonce
             setClientNonce(packet.getString(Parameters.client_nonce.name()));
-            broadcast.broadcast(packet);
-            resp = handleRequest(packet);
+            long ordered = System.nanoTime();
+            resp = broadcastAndHandle(packet);
+            Trace.span(traceId, where, "order", ordered, null);
             resp.put(Parameters.status.name(), Status.OK.name());
+            long responded = System.nanoTime();
             handleResponse(resp);
+            Trace.span(traceId, where, "respond", responded, null);
         } catch (IllegalArgumentException | JSONException e) {
             resp = new JSONObject();
             resp.put(Parameters.err_msg.name(), e.getMessage());
             resp.put(Parameters.status.name(), Status.CLIENT_ERROR.name());
             handleResponse(resp);
-            System.out.println("Client error: " + e.getMessage());
+            Log.debug("Client error: %s", e.getMessage());
         } catch (InternalError e) {
             resp = new JSONObject();
             resp.put(Parameters.err_msg.name(), "Ups.... we had an internal error");
             resp.put(Parameters.status.name(), Status.SERVER_ERROR.name());
             handleResponse(resp);
-            System.err.println(e.getMessage());
+            Log.error("%s", e.getMessage());
         }
+        // from the request read to the response written, broadcast included
+        Metrics.timer("server." + port + ".action." + action).recordSince(start);
+        Metrics.counter("server." + port + ".status." + resp.getString(Parameters.status.name())).increment();
         return resp;
     }
 
+    /**
+     * Broadcast a client request with the next batch and wait for it to be handled
+     *
+     * @param packet JSONObject corresponding to the checked client request
+     * @return JSONObject corresponding to the response
+     * @throws IllegalArgumentException in case the request is not valid
+     */
+    private JSONObject broadcastAndHandle(JSONObject packet) throws IllegalArgumentException {
+        try {
+            return broadcast.submit(packet).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new InternalError(e.getCause());
+        } catch (InterruptedException e) {
+            throw new InternalError(e);
+        }
+    }
+
+    /**
+     * Execute a client request, either received from the client or delivered by the broadcast
+     *
+     * @param server ServerInt object that will handle register/post/read logic
+     * @param joMap  JSONObject corresponding to the client request, signed with its client_public_key
+     * @return JSONObject corresponding to the response
+     * @throws IllegalArgumentException in case the request can not be executed
+     */
     @SuppressWarnings("unchecked")
-    private JSONObject handleRequest(JSONObject joMap) {
+    static JSONObject handleRequest(ServerInt server, JSONObject joMap) throws IllegalArgumentException {
+        ServerEvents.Handle event = new ServerEvents.Handle();
+        event.begin();
         JSONObject resp = new JSONObject();
         try {
+            String clientPublicKey = joMap.getString(Parameters.client_public_key.name());
             String action = joMap.getString(Parameters.action.name());
             if (action == null || action.isEmpty())
                 throw new IllegalArgumentException("Action can not be null");
@@ -142,17 +318,28 @@ public class ServerThread implements Runnable {
             String msg, signature, boardPublicKey;
             List<Integer> ann;
             List<Announcement> list;
+            BoardRange range;
+            // the state the reader agreed on with the other servers, when it fetches the announcements
+            String boardDigest = joMap.optString(Parameters.board_digest.name(), null);
             switch (Action.valueOf(action)) {
                 case READ:
                     boardPublicKey = joMap.getString(Parameters.board_public_key.name());
-                    number = joMap.getInt(Parameters.number.name());
-                    list = server.read(boardPublicKey, number);
-                    resp.put(Parameters.data.name(), new JSONArray(list));
+                    if (joMap.has(Parameters.after_id.name())) {
+                        range = server.readRangeAfter(boardPublicKey, joMap.getInt(Parameters.after_id.name()), boardDigest);
+                    } else {
+                        number = joMap.getInt(Parameters.number.name());
+                        range = server.readRange(boardPublicKey, number, boardDigest);
+                    }
+                    putRange(resp, range, joMap.optBoolean(Parameters.digest_only.name()));
                     break;
                 case READGENERAL:
-                    number = joMap.getInt(Parameters.number.name());
-                    list = server.readGeneral(number);
-                    resp.put(Parameters.data.name(), new JSONArray(list));
+                    if (joMap.has(Parameters.after_id.name())) {
+                        range = server.readGeneralRangeAfter(joMap.getInt(Parameters.after_id.name()), boardDigest);
+                    } else {
+                        number = joMap.getInt(Parameters.number.name());
+                        range = server.readGeneralRange(number, boardDigest);
+                    }
+                    putRange(resp, range, joMap.optBoolean(Parameters.digest_only.name()));
                     break;
                 case REGISTER:
                     server.register(clientPublicKey);
@@ -172,17 +359,71 @@ public class ServerThread implements Runnable {
                     server.postGeneral(clientPublicKey, signature, msg, ann);
                     resp.put(Parameters.data.name(), "Posted successfully!");
                     break;
+                case SEARCH:
+                    boardPublicKey = joMap.optString(Parameters.board_public_key.name(), null);
+                    number = joMap.getInt(Parameters.number.name());
+                    list = server.search(boardPublicKey, joMap.getString(Parameters.query.name()), number);
+                    resp.put(Parameters.data.name(), new JSONArray(list));
+                    break;
                 default:
                     throw new IllegalArgumentException("Unexpected value: " + Action.valueOf(action).name() + " for action param.");
             }
-            System.out.printf("%s executed successfully\n", action);
+            Log.debug("%s executed successfully", action);
         } catch (Exception e) {
             throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                String board = joMap.optString(Parameters.board_public_key.name(), null);
+                event.action = joMap.optString(Parameters.action.name());
+                event.board = board == null ? null : board.substring(Math.max(0, board.length() - 16));
+                event.size = joMap.optString(Parameters.message.name()).length();
+                event.commit();
+            }
         }
         return resp;
     }
 
-    private String checkPostSignature(JSONObject body, PublicKey publicKey) throws NoSuchAlgorithmException, IllegalBlockSizeException, InvalidKeyException, BadPaddingException, NoSuchPaddingException {
+    /**
+     * Check a client request, recorded as an event
+     *
+     * @param msg String corresponding to the request received
+     * @return JSONObject corresponding to the checked request
+     * @throws IllegalArgumentException in case the request is not valid
+     */
+    private JSONObject verify(String msg) throws IllegalArgumentException, InternalError {
+        ServerEvents.Verify event = new ServerEvents.Verify();
+        event.begin();
+        JSONObject packet = null;
+        try {
+            packet = check(msg);
+            return packet;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.server = port;
+                event.action = packet == null ? null : packet.optString(Parameters.action.name());
+                event.valid = packet != null;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Add a read range to a response, the announcements themselves being left out if only the digests were asked for
+     *
+     * @param resp       JSONObject corresponding to the response to fill
+     * @param range      BoardRange read from the board
+     * @param digestOnly true if the client only wants to compare digests with other servers
+     */
+    private static void putRange(JSONObject resp, BoardRange range, boolean digestOnly) {
+        resp.put(Parameters.board_digest.name(), range.getBoardDigest());
+        resp.put(Parameters.prefix_digest.name(), range.getPrefixDigest());
+        if (!digestOnly)
+            resp.put(Parameters.data.name(), new JSONArray(range.getAnnouncements()));
+    }
+
+    private static String checkPostSignature(JSONObject body, PublicKey publicKey) throws NoSuchAlgorithmException, IllegalBlockSizeException, InvalidKeyException, BadPaddingException, NoSuchPaddingException {
         JSONObject postData = new JSONObject();
         postData.put(Parameters.message.name(), body.getString(Parameters.message.name()));
         postData.put(Parameters.announcements.name(), body.getJSONArray(Parameters.announcements.name()));
@@ -214,23 +455,33 @@ public class ServerThread implements Runnable {
         } catch (IllegalArgumentException | BadPaddingException | InvalidKeySpecException | JSONException e) {
             throw new IllegalArgumentException(e.getMessage());
         } catch (Exception e) {
-            System.err.println(e.getMessage());
+            Log.error("%s", e.getMessage());
             throw new InternalError(e.getMessage());
         }
         return new JSONObject(msg);
     }
 
     private void handleResponse(JSONObject response) throws InternalError, InvalidKeyException, BadPaddingException, NoSuchAlgorithmException, IllegalBlockSizeException, NoSuchPaddingException {
+        ServerEvents.Respond event = new ServerEvents.Respond();
+        event.begin();
         response = new JSONObject(response.toString());
         response.put(Parameters.client_nonce.name(), clientNonce);
         String sig = MyCrypto.digestAndSignToB64(response.toString().getBytes(), privateKey);
         response.put(Parameters.signature.name(), sig);
-        out.println(response.toString());
+        String line = response.toString();
         try {
+            channel.writeLine(line);
             closeClientConn();
         } catch (IOException e) {
             throw new InternalError(e);
         }
+        event.end();
+        if (event.shouldCommit()) {
+            event.server = port;
+            event.status = response.optString(Parameters.status.name());
+            event.size = line.length();
+            event.commit();
+        }
     }
 
     private void setClientNonce(String nonce) throws IllegalArgumentException {
@@ -240,13 +491,11 @@ public class ServerThread implements Runnable {
     }
 
     private void closeClientConn() throws IOException {
-        in.close();
-        out.close();
-        clientSocket.close();
+        channel.close();
     }
 
     @SuppressWarnings({"unchecked", "rawtypes"})
-    private List jsonArrayToList(JSONArray jsonArray) {
+    private static List jsonArrayToList(JSONArray jsonArray) {
         List resp = new ArrayList();
         jsonArray.forEach(resp::add);
         return resp;
@@ -1,6 +1,7 @@
 package pt.tecnico.server;
 
 import pt.tecnico.model.Announcement;
+import pt.tecnico.model.BoardRange;
 import pt.tecnico.model.ServerInt;
 
 import java.util.ArrayList;
@@ -12,10 +13,12 @@ import java.util.List;
 public class Twitter implements ServerInt {
     private final List<Board> boards = new ArrayList<>();           // List of boards, populated by the Connect class and appended on board registration
     private final List<Integer> announcements = new ArrayList<>();  // List of announcements ids, populated by the Connect class and appended on announcement post
+    private final SearchIndex index = new SearchIndex();                // Inverted index over the announcements messages
     private final Connect conn;
 
     public Twitter(String serverAlias) {
         conn = new Connect(serverAlias, this.boards, this.announcements); //init the database connection
+        this.boards.forEach(index::addBoard);                              // rebuild the search index from the loaded boards
     }
 
     /**
@@ -66,10 +69,15 @@ public class Twitter implements ServerInt {
             throw new IllegalArgumentException("One or more referring announcements specified do not exist");
 
         Announcement announcement = new Announcement(key, signature, message, announcements);
-        ret = conn.insertAnnouncement(board, announcement); // insert announcement and update its id
+        // the id is assigned and the announcement appended under the board lock, so the board stays in id order
+        synchronized (board) {
+            ret = conn.insertAnnouncement(board, announcement); // insert announcement and update its id
+            if (ret)
+                board.addAnnouncement(announcement);
+        }
         if (ret) {
-            board.addAnnouncement(announcement);
             this.announcements.add(announcement.getId());
+            index.add(board, announcement);
         }
         return ret;
     }
@@ -101,19 +109,63 @@ public class Twitter implements ServerInt {
 
     @Override
     public List<Announcement> read(String key, int number) throws IllegalArgumentException {
+        return readRange(key, number, null).getAnnouncements();
+    }
+
+    @Override
+    public List<Announcement> readGeneral(int number) throws IllegalArgumentException {
+        return readGeneralRange(number, null).getAnnouncements();
+    }
+
+    @Override
+    public BoardRange readRange(String key, int number, String boardDigest) throws IllegalArgumentException {
         readCheck(number);
         Board b = findBoard(key);
         if (b == null)
             throw new IllegalArgumentException("No such board registered with this key");
-        return b.getAnnouncements(number);
+        return b.getRange(number, boardDigest);
     }
 
     @Override
-    public List<Announcement> readGeneral(int number) throws IllegalArgumentException {
+    public BoardRange readGeneralRange(int number, String boardDigest) throws IllegalArgumentException {
         readCheck(number);
         Board b = boards.get(0); // the general board is the first one
         if (b == null)
             throw new IllegalArgumentException("No general board registered"); // should never happen, in that case a keypair should have been generated earlier
-        return b.getAnnouncements(number);
+        return b.getRange(number, boardDigest);
+    }
+
+    @Override
+    public BoardRange readRangeAfter(String key, int afterId, String boardDigest) throws IllegalArgumentException {
+        if (afterId < 0)
+            throw new IllegalArgumentException("Announcement id must be positive");
+        Board b = findBoard(key);
+        if (b == null)
+            throw new IllegalArgumentException("No such board registered with this key");
+        return b.getRangeAfter(afterId, boardDigest);
+    }
+
+    @Override
+    public BoardRange readGeneralRangeAfter(int afterId, String boardDigest) throws IllegalArgumentException {
+        if (afterId < 0)
+            throw new IllegalArgumentException("Announcement id must be positive");
+        Board b = boards.get(0); // the general board is the first one
+        if (b == null)
+            throw new IllegalArgumentException("No general board registered"); // should never happen, in that case a keypair should have been generated earlier
+        return b.getRangeAfter(afterId, boardDigest);
+    }
+
+    @Override
+    public List<Announcement> search(String key, String query, int number) throws IllegalArgumentException {
+        readCheck(number);
+        if (SearchIndex.tokenize(query).isEmpty())
+            throw new IllegalArgumentException("The query must contain at least one word");
+        Board b = null;
+        if (key != null) {
+            b = findBoard(key);
+            if (b == null)
+                throw new IllegalArgumentException("No such board registered with this key");
+        }
+        return index.search(query, b, number);
     }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+package pt.tecnico.server;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import pt.tecnico.model.Announcement;
+import pt.tecnico.model.BoardRange;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoardTest {
+
+    private static Board boardWith(int count) {
+        Board board = new Board("board", 1, new ArrayList<>());
+        for (int i = 1; i <= count; i++)
+            board.addAnnouncement(new Announcement("owner", "signature" + i, "message " + i, List.of(), i));
+        return board;
+    }
+
+    @Test
+    void test_digest_is_the_same_when_loaded_or_appended() {
+        System.out.println("A board loaded from the database has the same digest as one built by appending");
+        Board appended = boardWith(5);
+        Board loaded = new Board("board", 1, new ArrayList<>(appended.getAnnouncements(0)));
+
+        assertEquals(appended.getRange(0).getBoardDigest(), loaded.getRange(0).getBoardDigest());
+    }
+
+    @Test
+    void test_range_verifies_against_its_digests() {
+        System.out.println("The most recent announcements fold from the prefix digest into the board digest");
+        BoardRange range = boardWith(10).getRange(3);
+        JSONArray data = new JSONArray(new JSONArray(range.getAnnouncements()).toString());
+
+        assertEquals(3, data.length());
+        assertTrue(BoardRange.verify(range.getPrefixDigest(), data, range.getBoardDigest()));
+    }
+
+    @Test
+    void test_tampered_range_does_not_verify() {
+        System.out.println("Changing one announcement of the range breaks the digest");
+        BoardRange range = boardWith(10).getRange(3);
+        JSONArray data = new JSONArray(new JSONArray(range.getAnnouncements()).toString());
+        JSONObject tampered = data.getJSONObject(1);
+        tampered.put("message", "tampered");
+
+        assertFalse(BoardRange.verify(range.getPrefixDigest(), data, range.getBoardDigest()));
+    }
+
+    @Test
+    void test_range_after_continues_the_previous_read() {
+        System.out.println("The announcements after a known id fold from the digest the reader already holds");
+        Board board = boardWith(5);
+        BoardRange first = board.getRange(0);
+        board.addAnnouncement(new Announcement("owner", "signature6", "message 6", List.of(), 6));
+        board.addAnnouncement(new Announcement("owner", "signature7", "message 7", List.of(), 7));
+        BoardRange delta = board.getRangeAfter(5);
+        JSONArray data = new JSONArray(new JSONArray(delta.getAnnouncements()).toString());
+
+        assertEquals(2, data.length());
+        assertEquals(6, data.getJSONObject(0).getInt("id"));
+        assertEquals(first.getBoardDigest(), delta.getPrefixDigest());
+        assertTrue(BoardRange.verify(delta.getPrefixDigest(), data, delta.getBoardDigest()));
+        assertTrue(board.getRangeAfter(7).getAnnouncements().isEmpty());
+    }
+
+    @Test
+    void test_range_of_an_agreed_state_ignores_later_posts() {
+        System.out.println("A range read at an agreed board digest is the same after new posts");
+        Board board = boardWith(5);
+        BoardRange agreed = board.getRange(3);
+        board.addAnnouncement(new Announcement("owner", "signature6", "message 6", List.of(), 6));
+        BoardRange pinned = board.getRange(3, agreed.getBoardDigest());
+        JSONArray data = new JSONArray(new JSONArray(pinned.getAnnouncements()).toString());
+
+        assertEquals(agreed.getPrefixDigest(), pinned.getPrefixDigest());
+        assertEquals(agreed.getBoardDigest(), pinned.getBoardDigest());
+        assertEquals(5, data.getJSONObject(2).getInt("id"));
+        assertTrue(BoardRange.verify(pinned.getPrefixDigest(), data, pinned.getBoardDigest()));
+        assertEquals(0, board.getRangeAfter(5, agreed.getBoardDigest()).getAnnouncements().size());
+        byte[] unknown = new byte[64];
+        unknown[0] = 1;
+        assertThrows(IllegalArgumentException.class, () -> board.getRange(3, Base64.getEncoder().encodeToString(unknown)));
+    }
+
+    @Test
+    void test_out_of_order_append_is_refused() {
+        System.out.println("An announcement appended after a newer one would break the hash chain");
+        Board board = boardWith(5);
+
+        assertThrows(IllegalStateException.class, () -> board.addAnnouncement(new Announcement("owner", "signature", "late", List.of(), 4)));
+        assertEquals(5, board.getAnnouncements(0).size());
+    }
+}
@@ -0,0 +1,84 @@
+package pt.tecnico.server;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import pt.tecnico.model.*;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Clients and other servers are served by separate lanes: a client lane with every thread busy must not hold up the
+ * links of the other servers
+ */
+@Timeout(60)
+class LaneTest {
+    private static final int PORT = 8100;
+
+    @Test
+    void busyClientLaneDoesNotHoldReplicaLane() throws Exception {
+        Lane clients = new Lane("test-client", 1);
+        Lane replicas = new Lane("test-replica", 1);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int k = 0; k < 5; k++) {
+            clients.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        CountDownLatch ran = new CountDownLatch(1);
+        replicas.execute(ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS), "Replica task waited for the client lane");
+        assertEquals(1, clients.getActive());
+        assertEquals(4, clients.getQueued());
+        release.countDown();
+        assertTrue(replicas.getStats().startsWith("test-replica: "));
+    }
+
+    @Test
+    void laneNeedsAThread() {
+        assertThrows(IllegalArgumentException.class, () -> new Lane("test-empty", 0));
+    }
+
+    @Test
+    void serverLinkOnClientPortMovesToReplicaLane() throws Exception {
+        MemoryTransport transport = new MemoryTransport();
+        List<Runnable> moved = new ArrayList<>();
+        try (Transport.Acceptor acceptor = transport.listen(PORT)) {
+            // a server link: its first line is a broadcast message
+            Transport.Channel link = transport.connect(PORT);
+            JSONObject message = new JSONObject();
+            message.put(Parameters.broadcast.name(), "ECHO");
+            link.writeLine(message.toString());
+            // run in the test thread, standing for a client lane thread, which must be handed back at once
+            serverThread(acceptor.accept(), moved::add).run();
+            assertEquals(1, moved.size());
+
+            // a client request is answered in the client lane
+            Transport.Channel client = transport.connect(PORT);
+            client.writeLine(new JSONObject().toString());
+            serverThread(acceptor.accept(), moved::add).run();
+            assertEquals(1, moved.size());
+            JSONObject response = new JSONObject(client.readLine());
+            assertEquals(Status.CLIENT_ERROR.name(), response.getString(Parameters.status.name()));
+        }
+    }
+
+    private static ServerThread serverThread(Transport.Channel channel, Executor replicaLane) throws Exception {
+        KeyPair keys = MyCrypto.generateKeyPair();
+        Twitter twitter = mock(Twitter.class);
+        BatchBroadcast batchBroadcast = new BatchBroadcast(mock(BRBroadcast.class), 1, 0, packet -> ServerThread.handleRequest(twitter, packet));
+        return new ServerThread(twitter, keys.getPrivate(), channel, 1, new ArrayList<>(), PORT, batchBroadcast, replicaLane);
+    }
+}
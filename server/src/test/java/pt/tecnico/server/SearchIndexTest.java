@@ -0,0 +1,68 @@
+package pt.tecnico.server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import pt.tecnico.model.Announcement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTest {
+    private SearchIndex index;
+    private Board general;
+    private Board personal;
+    private int nextId;
+
+    @BeforeEach
+    void beforeEach() {
+        index = new SearchIndex();
+        general = new Board("general", 1, new ArrayList<>());
+        personal = new Board("personal", 2, new ArrayList<>());
+        nextId = 1;
+    }
+
+    private Announcement post(Board board, String message) {
+        Announcement announcement = new Announcement("owner", "signature", message, List.of(), nextId++);
+        board.addAnnouncement(announcement);
+        index.add(board, announcement);
+        return announcement;
+    }
+
+    @Test
+    void test_tokenize_ignores_case_and_punctuation() {
+        assertEquals(List.of("hello", "world", "42"), SearchIndex.tokenize("Hello, WORLD... 42!"));
+    }
+
+    @Test
+    void test_search_ranks_by_matched_words_then_recency() {
+        System.out.println("Announcements matching more query words come first, ties are broken by most recent");
+        Announcement older = post(general, "Byzantine servers");
+        Announcement both = post(general, "reliable broadcast between Byzantine servers");
+        Announcement newer = post(personal, "Byzantine generals");
+        post(general, "nothing to see here");
+
+        assertEquals(List.of(both, newer, older), index.search("byzantine broadcast", null, 0));
+        assertEquals(List.of(both, newer), index.search("byzantine broadcast", null, 2));
+    }
+
+    @Test
+    void test_search_is_limited_to_the_requested_board() {
+        Announcement mine = post(personal, "my own announcement");
+        post(general, "a general announcement");
+
+        assertEquals(List.of(mine), index.search("announcement", personal, 0));
+        assertTrue(index.search("general", personal, 0).isEmpty());
+    }
+
+    @Test
+    void test_add_board_indexes_loaded_announcements() {
+        Board loaded = new Board("loaded", 3, new ArrayList<>(List.of(
+                new Announcement("owner", "signature", "loaded from the database", List.of(), 7))));
+        index.addBoard(loaded);
+
+        assertEquals(1, index.search("database", null, 0).size());
+    }
+}
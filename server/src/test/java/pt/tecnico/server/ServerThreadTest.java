@@ -47,7 +47,9 @@ class ServerThreadTest {
         BufferedReader in = mock(BufferedReader.class);
         clientSocket = mock(Socket.class);
         BRBroadcast brBroadcast = mock(BRBroadcast.class);
-        serverThread = new ServerThread(mock(Twitter.class), serverPrivateKey, clientSocket, in, out, 1, new ArrayList<>(), 8000, brBroadcast);
+        Twitter twitter = mock(Twitter.class);
+        BatchBroadcast batchBroadcast = new BatchBroadcast(brBroadcast, 1, 0, packet -> ServerThread.handleRequest(twitter, packet));
+        serverThread = new ServerThread(twitter, serverPrivateKey, clientSocket, in, out, 1, new ArrayList<>(), 8000, batchBroadcast);
     }
 
     @AfterEach